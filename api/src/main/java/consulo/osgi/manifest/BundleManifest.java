@@ -140,6 +140,14 @@ public interface BundleManifest extends ModificationTracker
 	 */
 	boolean isFragmentBundle();
 
+	/**
+	 * Returns the host specification of this fragment bundle as in the "Fragment-Host" header.
+	 *
+	 * @return the host spec, or null if this manifest does not represent a fragment bundle.
+	 */
+	@Nullable
+	String getFragmentHost();
+
 	/**
 	 * Checks, if this bundle would be a potential fragment host for the given fragment bundle.
 	 *
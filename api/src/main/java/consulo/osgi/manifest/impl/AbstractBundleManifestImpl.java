@@ -3,19 +3,11 @@ package consulo.osgi.manifest.impl;
 import static org.osgi.framework.Constants.*;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
 import javax.annotation.Nonnull;
 
-import org.apache.felix.framework.util.manifestparser.Capability;
-import org.apache.felix.framework.util.manifestparser.ManifestParser;
-import org.apache.felix.framework.util.manifestparser.R4Attribute;
-import org.apache.felix.framework.util.manifestparser.R4Directive;
-import org.apache.felix.moduleloader.ICapability;
-import org.apache.felix.moduleloader.IRequirement;
-
 import javax.annotation.Nullable;
 import org.osmorc.manifest.lang.psi.Clause;
 import org.osmorc.manifest.lang.psi.Directive;
@@ -30,6 +22,8 @@ import consulo.osgi.manifest.BundleManifest;
  */
 public abstract class AbstractBundleManifestImpl implements BundleManifest
 {
+	private volatile ManifestCapabilities myCapabilities;
+
 	@Nullable
 	protected abstract Header getHeaderByName(@Nonnull String heaaderName);
 
@@ -44,6 +38,22 @@ public abstract class AbstractBundleManifestImpl implements BundleManifest
 		return headerByName.getSimpleConvertedValue();
 	}
 
+	/**
+	 * Returns the parsed capabilities of this manifest. They are parsed again only after the manifest has been modified.
+	 */
+	@Nonnull
+	protected ManifestCapabilities getCapabilities()
+	{
+		long modificationCount = getModificationCount();
+		ManifestCapabilities capabilities = myCapabilities;
+		if(capabilities == null || capabilities.getModificationCount() != modificationCount)
+		{
+			capabilities = ManifestCapabilities.create(this, modificationCount);
+			myCapabilities = capabilities;
+		}
+		return capabilities;
+	}
+
 	@Nonnull
 	public Version getBundleVersion()
 	{
@@ -69,58 +79,7 @@ public abstract class AbstractBundleManifestImpl implements BundleManifest
 
 	public boolean exportsPackage(@Nonnull String packageSpec)
 	{
-		Header header = getHeaderByName(EXPORT_PACKAGE);
-		if(header == null)
-		{
-			return false;
-		}
-
-		List<ICapability> capabilities = new ArrayList<ICapability>();
-		Clause[] clauses = header.getClauses();
-		for(Clause clause : clauses)
-		{
-			try
-			{
-				capabilities.addAll(Arrays.asList(ManifestParser.parseExportHeader(clause.getClauseText())));
-			}
-			catch(Exception e)
-			{
-				// unparseable header
-				return false;
-			}
-		}
-
-		IRequirement[] requirements;
-		try
-		{
-			requirements = ManifestParser.parseImportHeader(packageSpec);
-		}
-		catch(Exception e)
-		{
-			// unparseable header
-			return false;
-		}
-
-		for(IRequirement requirement : requirements)
-		{
-			boolean satisfied = false;
-			for(ICapability capability : capabilities)
-			{
-				if(requirement.isSatisfied(capability))
-				{
-					satisfied = true;
-					break;
-				}
-			}
-			if(!satisfied)
-			{
-				// at least one requirement is not satisfied by any of the capabilities in this bundle
-				return false;
-			}
-		}
-
-		// all requiremets are satisfied
-		return true;
+		return getCapabilities().exportsPackage(packageSpec);
 	}
 
 	@Nonnull
@@ -210,42 +169,7 @@ public abstract class AbstractBundleManifestImpl implements BundleManifest
 	@Override
 	public boolean isRequiredBundle(@Nonnull String bundleSpec)
 	{
-
-		IRequirement[] requirements;
-		try
-		{
-			requirements = ManifestParser.parseRequireBundleHeader(bundleSpec);
-		}
-		catch(Exception e)
-		{
-			// invalid require spec
-			return false;
-		}
-
-		// build a capability for this
-
-		String symbolicName = getBundleSymbolicName();
-		if(symbolicName == null)
-		{
-			return false;
-		}
-		Version version = getBundleVersion();
-
-		ICapability moduleCapability = new Capability(ICapability.MODULE_NAMESPACE, new R4Directive[]{new R4Directive(BUNDLE_SYMBOLICNAME, symbolicName)}, new R4Attribute[]{
-				new R4Attribute(BUNDLE_SYMBOLICNAME_ATTRIBUTE, symbolicName, false),
-				new R4Attribute(BUNDLE_VERSION_ATTRIBUTE, new org.osgi.framework.Version(version.getMajor(), version.getMinor(), version.getMicro(), version.getQualifier()), false)
-		});
-
-
-		for(IRequirement requirement : requirements)
-		{
-			if(!requirement.isSatisfied(moduleCapability))
-			{
-				return false;
-			}
-		}
-		// all requirements are satisfied
-		return true;
+		return getCapabilities().isRequiredBundle(bundleSpec);
 	}
 
 	@Override
@@ -285,6 +209,24 @@ public abstract class AbstractBundleManifestImpl implements BundleManifest
 		return header != null;
 	}
 
+	@Nullable
+	@Override
+	public String getFragmentHost()
+	{
+		Header header = getHeaderByName(FRAGMENT_HOST);
+		if(header == null)
+		{
+			return null;
+		}
+
+		Clause[] clauses = header.getClauses();
+		if(clauses.length != 1)
+		{ // bundle should have exactly one clause
+			return null;
+		}
+		return clauses[0].getClauseText();
+	}
+
 	@Nonnull
 	public List<String> getBundleClassPathEntries()
 	{
@@ -307,19 +249,11 @@ public abstract class AbstractBundleManifestImpl implements BundleManifest
 	@Override
 	public boolean isFragmentHostFor(@Nonnull BundleManifest fragmentBundle)
 	{
-		Header header = fragmentBundle.getManifestFile().getHeaderByName(FRAGMENT_HOST);
-		if(header == null)
+		String hostSpec = fragmentBundle.getFragmentHost();
+		if(hostSpec == null)
 		{
 			return false;
 		}
-
-		Clause[] clauses = header.getClauses();
-		if(clauses.length != 1)
-		{ // bundle should have exactly one clause
-			return false;
-		}
-		Clause clause = clauses[0];
-		String hostSpec = clause.getClauseText();
 		// they follow the same semantics so i think it is safe to reuse this method here. We do not handle extension bundles at all.
 		return isRequiredBundle(hostSpec);
 	}
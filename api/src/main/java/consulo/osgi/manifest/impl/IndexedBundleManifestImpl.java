@@ -0,0 +1,427 @@
+package consulo.osgi.manifest.impl;
+
+import static org.osgi.framework.Constants.*;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.osmorc.manifest.lang.psi.ManifestFile;
+import org.osmorc.manifest.lang.valueparser.impl.valueobject.Version;
+import com.intellij.openapi.util.Computable;
+import com.intellij.psi.NavigatablePsiElement;
+import consulo.osgi.manifest.BundleManifest;
+
+/**
+ * Bundle manifest which is not backed by PSI, but by the header values read from a jar file. Used for library bundles, so they can be
+ * indexed and queried without opening the jar through the VFS. The PSI of the manifest is only looked up for navigation, through the
+ * provider given to {@link #withManifestFile(Computable)}.
+ */
+public class IndexedBundleManifestImpl implements BundleManifest
+{
+	@Nullable
+	private final String mySymbolicName;
+	@Nullable
+	private final String myVersion;
+	@Nullable
+	private final String myActivator;
+	@Nullable
+	private final String myFragmentHost;
+	@Nonnull
+	private final List<String> myExports;
+	@Nonnull
+	private final List<String> myImports;
+	@Nonnull
+	private final List<String> myRequiredBundles;
+	@Nonnull
+	private final List<String> myBundleClassPathEntries;
+	private final long myModificationCount;
+
+	private final Version myBundleVersion;
+	private final List<String> myReExportedBundles;
+	private final ManifestCapabilities myCapabilities;
+
+	@Nullable
+	private final Computable<ManifestFile> myManifestFileProvider;
+
+	public IndexedBundleManifestImpl(@Nullable String symbolicName,
+			@Nullable String version,
+			@Nullable String activator,
+			@Nullable String fragmentHost,
+			@Nonnull List<String> exports,
+			@Nonnull List<String> imports,
+			@Nonnull List<String> requiredBundles,
+			@Nonnull List<String> bundleClassPathEntries,
+			long modificationCount)
+	{
+		mySymbolicName = symbolicName;
+		myVersion = version;
+		myActivator = activator;
+		myFragmentHost = fragmentHost;
+		myExports = exports;
+		myImports = imports;
+		myRequiredBundles = requiredBundles;
+		myBundleClassPathEntries = bundleClassPathEntries;
+		myModificationCount = modificationCount;
+
+		myBundleVersion = parseVersion(version);
+		myReExportedBundles = findReExportedBundles(requiredBundles);
+		myCapabilities = ManifestCapabilities.create(exports, symbolicName, myBundleVersion, modificationCount);
+		myManifestFileProvider = null;
+	}
+
+	private IndexedBundleManifestImpl(@Nonnull IndexedBundleManifestImpl original, @Nonnull Computable<ManifestFile> manifestFileProvider)
+	{
+		mySymbolicName = original.mySymbolicName;
+		myVersion = original.myVersion;
+		myActivator = original.myActivator;
+		myFragmentHost = original.myFragmentHost;
+		myExports = original.myExports;
+		myImports = original.myImports;
+		myRequiredBundles = original.myRequiredBundles;
+		myBundleClassPathEntries = original.myBundleClassPathEntries;
+		myModificationCount = original.myModificationCount;
+
+		myBundleVersion = original.myBundleVersion;
+		myReExportedBundles = original.myReExportedBundles;
+		myCapabilities = original.myCapabilities;
+		myManifestFileProvider = manifestFileProvider;
+	}
+
+	/**
+	 * Returns a manifest with the same headers which finds its manifest file with the given provider, for navigation.
+	 *
+	 * @param manifestFileProvider computes the PSI of the manifest in the jar, or null if it cannot be found
+	 */
+	@Nonnull
+	public IndexedBundleManifestImpl withManifestFile(@Nonnull Computable<ManifestFile> manifestFileProvider)
+	{
+		return new IndexedBundleManifestImpl(this, manifestFileProvider);
+	}
+
+	/**
+	 * Creates a bundle manifest from the main attributes of the given jar manifest.
+	 *
+	 * @param manifest          the jar manifest
+	 * @param modificationCount the modification count, usually the time stamp of the jar file
+	 */
+	@Nonnull
+	public static IndexedBundleManifestImpl create(@Nonnull Manifest manifest, long modificationCount)
+	{
+		Attributes attributes = manifest.getMainAttributes();
+		List<String> fragmentHost = splitClauses(attributes.getValue(FRAGMENT_HOST));
+		return new IndexedBundleManifestImpl(getSymbolicName(attributes.getValue(BUNDLE_SYMBOLICNAME)), trim(attributes.getValue(BUNDLE_VERSION)),
+				trim(attributes.getValue(BUNDLE_ACTIVATOR)), fragmentHost.size() == 1 ? fragmentHost.get(0) : null, splitClauses(attributes.getValue(EXPORT_PACKAGE)),
+				splitClauses(attributes.getValue(IMPORT_PACKAGE)), splitClauses(attributes.getValue(REQUIRE_BUNDLE)),
+				splitClauses(attributes.getValue(BUNDLE_CLASSPATH)), modificationCount);
+	}
+
+	@Nonnull
+	public static IndexedBundleManifestImpl read(@Nonnull DataInput in) throws IOException
+	{
+		String symbolicName = readString(in);
+		String version = readString(in);
+		String activator = readString(in);
+		String fragmentHost = readString(in);
+		List<String> exports = readList(in);
+		List<String> imports = readList(in);
+		List<String> requiredBundles = readList(in);
+		List<String> bundleClassPathEntries = readList(in);
+		long modificationCount = in.readLong();
+		return new IndexedBundleManifestImpl(symbolicName, version, activator, fragmentHost, exports, imports, requiredBundles, bundleClassPathEntries,
+				modificationCount);
+	}
+
+	public void write(@Nonnull DataOutput out) throws IOException
+	{
+		writeString(out, mySymbolicName);
+		writeString(out, myVersion);
+		writeString(out, myActivator);
+		writeString(out, myFragmentHost);
+		writeList(out, myExports);
+		writeList(out, myImports);
+		writeList(out, myRequiredBundles);
+		writeList(out, myBundleClassPathEntries);
+		out.writeLong(myModificationCount);
+	}
+
+	@Nullable
+	@Override
+	public ManifestFile getManifestFile()
+	{
+		return myManifestFileProvider == null ? null : myManifestFileProvider.compute();
+	}
+
+	@Nullable
+	@Override
+	public NavigatablePsiElement getNavigateTargetByHeaderName(@Nonnull String name)
+	{
+		ManifestFile manifestFile = getManifestFile();
+		return manifestFile == null ? null : (NavigatablePsiElement) manifestFile.getHeaderByName(name);
+	}
+
+	@Override
+	public void setHeaderValue(@Nonnull String key, @Nonnull String value)
+	{
+		// jar manifests are read only
+	}
+
+	@Nonnull
+	@Override
+	public Version getBundleVersion()
+	{
+		return myBundleVersion;
+	}
+
+	@Nullable
+	@Override
+	public String getBundleSymbolicName()
+	{
+		return mySymbolicName;
+	}
+
+	@Nullable
+	@Override
+	public String getBundleActivator()
+	{
+		return myActivator;
+	}
+
+	@Override
+	public boolean exportsPackage(@Nonnull String packageSpec)
+	{
+		return myCapabilities.exportsPackage(packageSpec);
+	}
+
+	@Nonnull
+	@Override
+	public List<String> getImports()
+	{
+		return myImports;
+	}
+
+	@Nonnull
+	@Override
+	public List<String> getExports()
+	{
+		return myExports;
+	}
+
+	@Nonnull
+	@Override
+	public List<String> getRequiredBundles()
+	{
+		return myRequiredBundles;
+	}
+
+	@Nonnull
+	@Override
+	public List<String> getBundleClassPathEntries()
+	{
+		return myBundleClassPathEntries;
+	}
+
+	@Override
+	public boolean isRequiredBundle(@Nonnull String bundleSpec)
+	{
+		return myCapabilities.isRequiredBundle(bundleSpec);
+	}
+
+	@Override
+	public boolean reExportsBundle(@Nonnull BundleManifest otherBundle)
+	{
+		for(String reExportedBundle : myReExportedBundles)
+		{
+			if(otherBundle.isRequiredBundle(reExportedBundle))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public boolean isFragmentBundle()
+	{
+		return myFragmentHost != null;
+	}
+
+	@Nullable
+	@Override
+	public String getFragmentHost()
+	{
+		return myFragmentHost;
+	}
+
+	@Override
+	public boolean isFragmentHostFor(@Nonnull BundleManifest fragmentBundle)
+	{
+		String hostSpec = fragmentBundle.getFragmentHost();
+		return hostSpec != null && isRequiredBundle(hostSpec);
+	}
+
+	@Nonnull
+	@Override
+	public List<String> getReExportedBundles()
+	{
+		return myReExportedBundles;
+	}
+
+	@Override
+	public long getModificationCount()
+	{
+		return myModificationCount;
+	}
+
+	/**
+	 * Splits a header value into its clauses. Commas inside quoted strings do not separate clauses.
+	 *
+	 * @param headerValue the header value
+	 * @return the trimmed clauses, or an empty list if the header is not set
+	 */
+	@Nonnull
+	static List<String> splitClauses(@Nullable String headerValue)
+	{
+		return split(headerValue, ',');
+	}
+
+	@Nonnull
+	private static List<String> split(@Nullable String value, char separator)
+	{
+		if(value == null)
+		{
+			return Collections.emptyList();
+		}
+		List<String> result = new ArrayList<String>();
+		int start = 0;
+		boolean quoted = false;
+		for(int i = 0; i <= value.length(); i++)
+		{
+			char c = i < value.length() ? value.charAt(i) : separator;
+			if(c == '"')
+			{
+				quoted = !quoted;
+			}
+			else if(c == separator && !quoted)
+			{
+				String part = value.substring(start, i).trim();
+				if(!part.isEmpty())
+				{
+					result.add(part);
+				}
+				start = i + 1;
+			}
+		}
+		return result;
+	}
+
+	@Nullable
+	private static String getSymbolicName(@Nullable String headerValue)
+	{
+		// the header may carry directives like singleton:=true
+		List<String> parameters = split(headerValue, ';');
+		return parameters.isEmpty() ? null : parameters.get(0);
+	}
+
+	@Nonnull
+	private static List<String> findReExportedBundles(@Nonnull List<String> requiredBundles)
+	{
+		List<String> result = new ArrayList<String>();
+		for(String requiredBundle : requiredBundles)
+		{
+			for(String parameter : split(requiredBundle, ';'))
+			{
+				int index = parameter.indexOf(":=");
+				if(index > 0 && VISIBILITY_DIRECTIVE.equals(parameter.substring(0, index).trim()) && VISIBILITY_REEXPORT.equals(unquote(parameter.substring(index + 2))))
+				{
+					result.add(requiredBundle);
+					break;
+				}
+			}
+		}
+		return result.isEmpty() ? Collections.<String>emptyList() : result;
+	}
+
+	@Nonnull
+	private static Version parseVersion(@Nullable String version)
+	{
+		if(version != null)
+		{
+			try
+			{
+				org.osgi.framework.Version osgiVersion = org.osgi.framework.Version.parseVersion(version);
+				return new Version(osgiVersion.getMajor(), osgiVersion.getMinor(), osgiVersion.getMicro(), osgiVersion.getQualifier());
+			}
+			catch(IllegalArgumentException ignore)
+			{
+				// invalid version, treat like no version
+			}
+		}
+		return new Version(0, 0, 0, null);
+	}
+
+	@Nonnull
+	private static String unquote(@Nonnull String value)
+	{
+		value = value.trim();
+		if(value.length() >= 2 && value.startsWith("\"") && value.endsWith("\""))
+		{
+			return value.substring(1, value.length() - 1);
+		}
+		return value;
+	}
+
+	@Nullable
+	private static String trim(@Nullable String value)
+	{
+		return value == null ? null : value.trim();
+	}
+
+	@Nullable
+	private static String readString(@Nonnull DataInput in) throws IOException
+	{
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void writeString(@Nonnull DataOutput out, @Nullable String value) throws IOException
+	{
+		out.writeBoolean(value != null);
+		if(value != null)
+		{
+			out.writeUTF(value);
+		}
+	}
+
+	@Nonnull
+	private static List<String> readList(@Nonnull DataInput in) throws IOException
+	{
+		int size = in.readInt();
+		if(size == 0)
+		{
+			return Collections.emptyList();
+		}
+		List<String> result = new ArrayList<String>(size);
+		for(int i = 0; i < size; i++)
+		{
+			result.add(in.readUTF());
+		}
+		return result;
+	}
+
+	private static void writeList(@Nonnull DataOutput out, @Nonnull List<String> values) throws IOException
+	{
+		out.writeInt(values.size());
+		for(String value : values)
+		{
+			out.writeUTF(value);
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package consulo.osgi.manifest.impl;
+
+import static org.osgi.framework.Constants.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.felix.framework.util.manifestparser.Capability;
+import org.apache.felix.framework.util.manifestparser.ManifestParser;
+import org.apache.felix.framework.util.manifestparser.R4Attribute;
+import org.apache.felix.framework.util.manifestparser.R4Directive;
+import org.apache.felix.moduleloader.ICapability;
+import org.apache.felix.moduleloader.IRequirement;
+import org.osmorc.manifest.lang.valueparser.impl.valueobject.Version;
+
+/**
+ * Immutable snapshot of the capabilities a bundle manifest provides, parsed once per manifest revision.
+ * Requirement specs queried against the snapshot are parsed once and shared by all manifests.
+ */
+public final class ManifestCapabilities
+{
+	private static final int MAX_CACHED_REQUIREMENTS = 4096;
+
+	private static final IRequirement[] UNPARSEABLE = new IRequirement[0];
+
+	private static final Map<String, IRequirement[]> ourImportRequirements = new ConcurrentHashMap<String, IRequirement[]>();
+	private static final Map<String, IRequirement[]> ourRequireBundleRequirements = new ConcurrentHashMap<String, IRequirement[]>();
+
+	private final long myModificationCount;
+	@Nullable
+	private final ICapability[] myExportCapabilities;
+	@Nullable
+	private final ICapability myModuleCapability;
+
+	private ManifestCapabilities(long modificationCount, @Nullable ICapability[] exportCapabilities, @Nullable ICapability moduleCapability)
+	{
+		myModificationCount = modificationCount;
+		myExportCapabilities = exportCapabilities;
+		myModuleCapability = moduleCapability;
+	}
+
+	@Nonnull
+	static ManifestCapabilities create(@Nonnull AbstractBundleManifestImpl manifest, long modificationCount)
+	{
+		return create(manifest.getExports(), manifest.getBundleSymbolicName(), manifest.getBundleVersion(), modificationCount);
+	}
+
+	/**
+	 * @param exports           the clauses of the Export-Package header
+	 * @param symbolicName      the bundle symbolic name
+	 * @param version           the bundle version
+	 * @param modificationCount the modification count of the manifest the capabilities are taken from
+	 */
+	@Nonnull
+	static ManifestCapabilities create(@Nonnull List<String> exports, @Nullable String symbolicName, @Nonnull Version version, long modificationCount)
+	{
+		return new ManifestCapabilities(modificationCount, parseExports(exports), createModuleCapability(symbolicName, version));
+	}
+
+	public long getModificationCount()
+	{
+		return myModificationCount;
+	}
+
+	/**
+	 * @param packageSpec a package specification as in the "Import-Package" header
+	 * @return true if all packages of the spec are exported by this snapshot
+	 */
+	public boolean exportsPackage(@Nonnull String packageSpec)
+	{
+		if(myExportCapabilities == null || myExportCapabilities.length == 0)
+		{
+			return false;
+		}
+
+		IRequirement[] requirements = getRequirements(ourImportRequirements, packageSpec, false);
+		if(requirements == UNPARSEABLE)
+		{
+			return false;
+		}
+
+		for(IRequirement requirement : requirements)
+		{
+			boolean satisfied = false;
+			for(ICapability capability : myExportCapabilities)
+			{
+				if(isSatisfied(requirement, capability))
+				{
+					satisfied = true;
+					break;
+				}
+			}
+			if(!satisfied)
+			{
+				// at least one requirement is not satisfied by any of the capabilities in this bundle
+				return false;
+			}
+		}
+
+		// all requiremets are satisfied
+		return true;
+	}
+
+	/**
+	 * @param bundleSpec the bundle specification as in the "Require-Bundle" header.
+	 * @return true if the bundle of this snapshot could satisfy the spec
+	 */
+	public boolean isRequiredBundle(@Nonnull String bundleSpec)
+	{
+		if(myModuleCapability == null)
+		{
+			return false;
+		}
+
+		IRequirement[] requirements = getRequirements(ourRequireBundleRequirements, bundleSpec, true);
+		if(requirements == UNPARSEABLE)
+		{
+			return false;
+		}
+
+		for(IRequirement requirement : requirements)
+		{
+			if(!isSatisfied(requirement, myModuleCapability))
+			{
+				return false;
+			}
+		}
+		// all requirements are satisfied
+		return true;
+	}
+
+	@Nullable
+	private static ICapability[] parseExports(@Nonnull List<String> exports)
+	{
+		List<ICapability> capabilities = new ArrayList<ICapability>();
+		for(String export : exports)
+		{
+			try
+			{
+				capabilities.addAll(Arrays.asList(ManifestParser.parseExportHeader(export)));
+			}
+			catch(Exception e)
+			{
+				// unparseable header
+				return null;
+			}
+		}
+		return capabilities.toArray(new ICapability[capabilities.size()]);
+	}
+
+	@Nullable
+	private static ICapability createModuleCapability(@Nullable String symbolicName, @Nonnull Version version)
+	{
+		if(symbolicName == null)
+		{
+			return null;
+		}
+
+		return new Capability(ICapability.MODULE_NAMESPACE, new R4Directive[]{new R4Directive(BUNDLE_SYMBOLICNAME, symbolicName)}, new R4Attribute[]{
+				new R4Attribute(BUNDLE_SYMBOLICNAME_ATTRIBUTE, symbolicName, false),
+				new R4Attribute(BUNDLE_VERSION_ATTRIBUTE, new org.osgi.framework.Version(version.getMajor(), version.getMinor(), version.getMicro(), version.getQualifier()), false)
+		});
+	}
+
+	@Nonnull
+	private static IRequirement[] getRequirements(@Nonnull Map<String, IRequirement[]> cache, @Nonnull String spec, boolean requireBundle)
+	{
+		IRequirement[] requirements = cache.get(spec);
+		if(requirements != null)
+		{
+			return requirements;
+		}
+
+		try
+		{
+			requirements = requireBundle ? ManifestParser.parseRequireBundleHeader(spec) : ManifestParser.parseImportHeader(spec);
+		}
+		catch(Exception e)
+		{
+			// invalid spec
+			requirements = UNPARSEABLE;
+		}
+
+		if(cache.size() >= MAX_CACHED_REQUIREMENTS)
+		{
+			cache.clear();
+		}
+		cache.put(spec, requirements);
+		return requirements;
+	}
+
+	private static boolean isSatisfied(@Nonnull IRequirement requirement, @Nonnull ICapability capability)
+	{
+		// requirements are shared between threads, and the filter evaluation of felix is not thread safe
+		synchronized(requirement)
+		{
+			return requirement.isSatisfied(capability);
+		}
+	}
+}
@@ -1,5 +1,11 @@
 package consulo.osgi.module.extension;
 
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.psi.util.CachedValue;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
 import consulo.java.roots.SpecialDirUtil;
 import consulo.module.extension.impl.ModuleExtensionImpl;
 import consulo.osgi.OSGiConstants;
@@ -7,8 +13,10 @@ import consulo.osgi.manifest.BundleManifest;
 import consulo.osgi.module.manifest.ManifestProvider;
 import consulo.osgi.module.manifest.impl.ui.UseExistingManifestManifestProvider;
 import consulo.roots.ModuleRootLayer;
+import org.osmorc.manifest.lang.psi.ManifestFile;
 
 import javax.annotation.Nonnull;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author VISTALL
@@ -16,16 +24,62 @@ import javax.annotation.Nonnull;
  */
 public class OSGiModuleExtension extends ModuleExtensionImpl<OSGiModuleExtension>
 {
+	private final ManifestProvider myManifestProvider = new UseExistingManifestManifestProvider();
+
+	private volatile CachedValue<BundleManifest> myManifest;
+	private final AtomicLong myManifestResolveCount = new AtomicLong();
+
+	/**
+	 * Resolves the manifest again when the manifest file changes, when files are created, deleted, moved or renamed and when the
+	 * module roots change, as the location of the META-INF directory depends on them.
+	 */
+	private class ManifestCachedValueProvider implements CachedValueProvider<BundleManifest>
+	{
+		@Nonnull
+		@Override
+		public Result<BundleManifest> compute()
+		{
+			Project project = getModule().getProject();
+			BundleManifest manifest = myManifestProvider.getBundleManifest(OSGiModuleExtension.this);
+			myManifestResolveCount.incrementAndGet();
+
+			ManifestFile manifestFile = manifest.getManifestFile();
+			if(manifestFile == null)
+			{
+				return Result.create(manifest, VirtualFileManager.VFS_STRUCTURE_MODIFICATIONS, ProjectRootManager.getInstance(project));
+			}
+			return Result.create(manifest, manifestFile, VirtualFileManager.VFS_STRUCTURE_MODIFICATIONS, ProjectRootManager.getInstance(project));
+		}
+	}
+
 	public OSGiModuleExtension(@Nonnull String id, @Nonnull ModuleRootLayer module)
 	{
 		super(id, module);
 	}
 
+	/**
+	 * The manifest of the module, resolved once and cached until the manifest file changes.
+	 */
 	@Nonnull
 	public BundleManifest getManifest()
 	{
-		final ManifestProvider activeManifestProvider = new UseExistingManifestManifestProvider();
-		return activeManifestProvider.getBundleManifest(this);
+		CachedValue<BundleManifest> manifest = myManifest;
+		if(manifest == null)
+		{
+			manifest = CachedValuesManager.getManager(getModule().getProject()).createCachedValue(new ManifestCachedValueProvider());
+			myManifest = manifest;
+		}
+		return manifest.getValue();
+	}
+
+	/**
+	 * A count that changes whenever the manifest of the module is resolved again, which it is when its content changes, for caches
+	 * which are computed from the manifest.
+	 */
+	public long getManifestModificationCount()
+	{
+		getManifest();
+		return myManifestResolveCount.get();
 	}
 
 	public String getOSGiInf()
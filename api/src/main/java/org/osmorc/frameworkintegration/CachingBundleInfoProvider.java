@@ -32,7 +32,11 @@ import org.osgi.framework.Constants;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.WeakHashMap;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.Attributes;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 
@@ -47,11 +51,37 @@ import java.util.jar.Manifest;
  * @version $Id:$
  */
 public class CachingBundleInfoProvider {
-  private static final WeakHashMap<String, Manifest> _cache = new WeakHashMap<String, Manifest>();
+  /**
+   * Maximum number of cached bundles. When exceeded, the least recently used entries are evicted.
+   */
+  private static final int MAX_CACHE_SIZE = 2048;
+  /**
+   * Headers which are kept in the cache, all others are not available through {@link #getBundleAttribute(String, String)}.
+   */
+  private static final String[] CACHED_HEADERS = {Constants.BUNDLE_SYMBOLICNAME, Constants.BUNDLE_VERSION, Constants.FRAGMENT_HOST};
+
+  private static final ConcurrentMap<String, BundleInfo> ourCache = new ConcurrentHashMap<String, BundleInfo>();
+  private static final AtomicLong ourAccessCounter = new AtomicLong();
+  private static final AtomicLong ourHits = new AtomicLong();
+  private static final AtomicLong ourMisses = new AtomicLong();
 
   private CachingBundleInfoProvider() {
   }
 
+  /**
+   * @return the number of lookups which were answered from the cache.
+   */
+  public static long getHitCount() {
+    return ourHits.get();
+  }
+
+  /**
+   * @return the number of lookups which had to read the manifest, because it was not cached or the bundle was modified.
+   */
+  public static long getMissCount() {
+    return ourMisses.get();
+  }
+
   /**
    * Returns true if the file at the given path is a bundle, false otherwise.
    *
@@ -119,46 +149,121 @@ public class CachingBundleInfoProvider {
 
   /**
    * Returns the attribute of the bundle located at the given path. If the bundle cannot be found there or the jar at
-   * that location isn't a bundle, this returns null.
+   * that location isn't a bundle, this returns null. Cached entries are validated against the time stamp and size of the
+   * jar (or of the manifest of an exploded bundle), so bundles rebuilt in place are read again.
    *
    * @param path the path of the bundle
-   * @param attribute the attribute to resolve
+   * @param attribute the attribute to resolve, one of {@link #CACHED_HEADERS}
    * @return the attribute's value or null if there is no such bundle or no such attribute
    */
   @Nullable
-  private synchronized static String getBundleAttribute(String path, String attribute) {
+  private static String getBundleAttribute(String path, String attribute) {
     final String indepPath = FileUtil.toSystemIndependentName(path);
 
-    Manifest manifest = _cache.get(indepPath);
-    if (manifest == null) {
-      try {
-        File bundleFile = new File(indepPath);
-        if (bundleFile.isDirectory()) {
-          File manifestFile = new File(bundleFile, "META-INF/MANIFEST.MF");
-          if (manifestFile.exists() && !manifestFile.isDirectory()) {
-            FileInputStream fileInputStream = new FileInputStream(manifestFile);
-
-            manifest = new Manifest(fileInputStream);
+    File bundleFile = new File(indepPath);
+    File stampFile = bundleFile.isDirectory() ? new File(bundleFile, "META-INF/MANIFEST.MF") : bundleFile;
+    long timeStamp = stampFile.lastModified();
+    long length = stampFile.length();
 
-            fileInputStream.close();
-            _cache.put(indepPath, manifest);
-          }
-        }
-        else {
-          JarFile file = new JarFile(bundleFile);
-          _cache.put(indepPath, manifest = file.getManifest());
-          file.close();
-        }
+    BundleInfo info = ourCache.get(indepPath);
+    if (info != null && info.myTimeStamp == timeStamp && info.myLength == length) {
+      ourHits.incrementAndGet();
+    }
+    else {
+      ourMisses.incrementAndGet();
+      Manifest manifest;
+      try {
+        manifest = readManifest(bundleFile, stampFile);
       }
       catch (IOException e) {
         return null;
       }
+      info = new BundleInfo(timeStamp, length, manifest);
+      ourCache.put(indepPath, info);
+      if (ourCache.size() > MAX_CACHE_SIZE) {
+        evictLeastRecentlyUsed();
+      }
     }
+    info.myLastAccess = ourAccessCounter.incrementAndGet();
+    return info.getHeader(attribute);
+  }
 
+  @Nullable
+  private static Manifest readManifest(File bundleFile, File manifestFile) throws IOException {
+    if (bundleFile.isDirectory()) {
+      if (!manifestFile.isFile()) {
+        return null;
+      }
+      FileInputStream fileInputStream = new FileInputStream(manifestFile);
+      try {
+        return new Manifest(fileInputStream);
+      }
+      finally {
+        fileInputStream.close();
+      }
+    }
+
+    JarFile file = new JarFile(bundleFile, false);
+    try {
+      return file.getManifest();
+    }
+    finally {
+      file.close();
+    }
+  }
 
-    return manifest != null ? manifest.getMainAttributes().getValue(attribute) : null;
+  /**
+   * Removes the least recently used quarter of the cache.
+   */
+  private static void evictLeastRecentlyUsed() {
+    List<Map.Entry<String, BundleInfo>> entries = new ArrayList<Map.Entry<String, BundleInfo>>(ourCache.entrySet());
+    if (entries.size() <= MAX_CACHE_SIZE) {
+      return; // someone else already evicted
+    }
+    long[] accesses = new long[entries.size()];
+    for (int i = 0; i < accesses.length; i++) {
+      accesses[i] = entries.get(i).getValue().myLastAccess;
+    }
+    Arrays.sort(accesses);
+    long threshold = accesses[entries.size() - MAX_CACHE_SIZE * 3 / 4];
+    for (Map.Entry<String, BundleInfo> entry : entries) {
+      if (entry.getValue().myLastAccess < threshold) {
+        ourCache.remove(entry.getKey(), entry.getValue());
+      }
+    }
   }
 
+  /**
+   * The cached headers of a bundle together with the stamp of the file they were read from.
+   */
+  private static final class BundleInfo {
+    private final long myTimeStamp;
+    private final long myLength;
+    private final String[] myHeaders;
+    private volatile long myLastAccess;
+
+    private BundleInfo(long timeStamp, long length, @Nullable Manifest manifest) {
+      myTimeStamp = timeStamp;
+      myLength = length;
+      myHeaders = new String[CACHED_HEADERS.length];
+      if (manifest != null) {
+        Attributes attributes = manifest.getMainAttributes();
+        for (int i = 0; i < CACHED_HEADERS.length; i++) {
+          myHeaders[i] = attributes.getValue(CACHED_HEADERS[i]);
+        }
+      }
+    }
+
+    @Nullable
+    private String getHeader(String name) {
+      for (int i = 0; i < CACHED_HEADERS.length; i++) {
+        if (CACHED_HEADERS[i].equals(name)) {
+          return myHeaders[i];
+        }
+      }
+      throw new IllegalArgumentException("Header is not cached: " + name);
+    }
+  }
 
   public static boolean isExploded(String path) {
     File bundleFile = new File(path);
@@ -0,0 +1,300 @@
+package org.osmorc.run;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.osmorc.frameworkintegration.FrameworkInstanceDefinition;
+import org.osmorc.frameworkintegration.FrameworkRunner;
+import org.osmorc.run.ui.BundleType;
+import org.osmorc.run.ui.SelectedBundle;
+import com.intellij.openapi.project.Project;
+import com.intellij.packaging.artifacts.Artifact;
+import com.intellij.packaging.artifacts.ArtifactManager;
+import consulo.container.boot.ContainerPathManager;
+import consulo.logging.Logger;
+
+/**
+ * The outcome of preparing an OSGi run configuration for launch: the bundles to install, the framework starter libraries and the
+ * program parameters of the framework. Plans are persisted per run configuration, keyed by a fingerprint of the run configuration,
+ * the framework instance and the stamps of all bundle files, so a relaunch with nothing changed does not prepare the bundles again.
+ */
+final class OsgiLaunchPlan {
+  private static final Logger LOG = Logger.getInstance(OsgiLaunchPlan.class);
+
+  private static final int FORMAT_VERSION = 1;
+
+  private final String myFingerprint;
+  private final SelectedBundle[] myBundles;
+  private final List<String> myStarterLibraries;
+  private final long[] myStarterLibraryStamps;
+  private final List<String> myProgramParameters;
+
+  OsgiLaunchPlan(@Nonnull String fingerprint,
+                 @Nonnull SelectedBundle[] bundles,
+                 @Nonnull List<String> starterLibraries,
+                 @Nonnull List<String> programParameters) {
+    this(fingerprint, bundles, starterLibraries, getStamps(starterLibraries), programParameters);
+  }
+
+  private OsgiLaunchPlan(@Nonnull String fingerprint,
+                         @Nonnull SelectedBundle[] bundles,
+                         @Nonnull List<String> starterLibraries,
+                         @Nonnull long[] starterLibraryStamps,
+                         @Nonnull List<String> programParameters) {
+    myFingerprint = fingerprint;
+    myBundles = bundles;
+    myStarterLibraries = starterLibraries;
+    myStarterLibraryStamps = starterLibraryStamps;
+    myProgramParameters = programParameters;
+  }
+
+  @Nonnull
+  SelectedBundle[] getBundles() {
+    return myBundles;
+  }
+
+  @Nonnull
+  List<String> getStarterLibraries() {
+    return myStarterLibraries;
+  }
+
+  @Nonnull
+  List<String> getProgramParameters() {
+    return myProgramParameters;
+  }
+
+  /**
+   * Computes the fingerprint of everything the launch plan of the given run configuration is derived from. Artifacts are resolved to their
+   * output paths, and the length and time stamp of every bundle file (the manifest of exploded bundles) is included, so the fingerprint
+   * changes whenever one of the bundles is rebuilt.
+   *
+   * @return the fingerprint, or null if an artifact of the run configuration cannot be resolved.
+   */
+  @Nullable
+  static String computeFingerprint(@Nonnull Project project, @Nonnull OsgiRunConfiguration runConfiguration, @Nonnull FrameworkRunner runner) {
+    StringBuilder builder = new StringBuilder();
+    builder.append(FORMAT_VERSION).append('\n');
+    builder.append(runner.getClass().getName()).append('\n');
+
+    FrameworkInstanceDefinition definition = runConfiguration.getInstanceToUse();
+    if (definition != null) {
+      builder.append(definition.getFrameworkIntegratorName()).append('|').append(definition.getName()).append('|')
+        .append(definition.getBaseFolder()).append('|').append(definition.getVersion()).append('\n');
+    }
+
+    builder.append(runConfiguration.getFrameworkStartLevel()).append('|').append(runConfiguration.getDefaultStartLevel()).append('|')
+      .append(runConfiguration.isAutoStartLevel()).append('|').append(runConfiguration.getProgramParameters()).append('\n');
+    for (Map.Entry<String, String> property : new TreeMap<String, String>(runConfiguration.getAdditionalProperties()).entrySet()) {
+      builder.append(property.getKey()).append('=').append(property.getValue()).append('\n');
+    }
+
+    for (SelectedBundle bundle : runConfiguration.getBundlesToDeploy()) {
+      String path = bundle.getBundlePath();
+      if (bundle.getBundleType() == BundleType.Artifact) {
+        Artifact artifact = ArtifactManager.getInstance(project).findArtifact(bundle.getName());
+        path = artifact != null ? artifact.getOutputFilePath() : null;
+        if (path == null) {
+          return null;
+        }
+      }
+      builder.append(bundle.getBundleType()).append('|').append(bundle.getName()).append('|').append(path).append('|')
+        .append(bundle.getStartLevel()).append('|').append(bundle.isStartAfterInstallation());
+      if (path != null) {
+        builder.append('|').append(getStamp(path));
+      }
+      builder.append('\n');
+    }
+    return digest(builder.toString());
+  }
+
+  /**
+   * Loads the persisted plan of the given run configuration.
+   *
+   * @param fingerprint the current fingerprint of the run configuration
+   * @return the plan, or null if there is none, it was made for a different fingerprint or one of the starter libraries has changed since.
+   */
+  @Nullable
+  static OsgiLaunchPlan load(@Nonnull Project project, @Nonnull OsgiRunConfiguration runConfiguration, @Nonnull String fingerprint) {
+    File file = getPlanFile(project, runConfiguration);
+    if (!file.isFile()) {
+      return null;
+    }
+    try {
+      OsgiLaunchPlan plan = read(file);
+      if (plan == null || !plan.myFingerprint.equals(fingerprint)) {
+        return null;
+      }
+      for (int i = 0; i < plan.myStarterLibraries.size(); i++) {
+        if (getStamp(plan.myStarterLibraries.get(i)) != plan.myStarterLibraryStamps[i]) {
+          return null;
+        }
+      }
+      return plan;
+    }
+    catch (IOException e) {
+      LOG.info("Could not read launch plan " + file, e);
+      return null;
+    }
+  }
+
+  void save(@Nonnull Project project, @Nonnull OsgiRunConfiguration runConfiguration) {
+    File file = getPlanFile(project, runConfiguration);
+    try {
+      write(file);
+    }
+    catch (IOException e) {
+      LOG.info("Could not write launch plan " + file, e);
+    }
+  }
+
+  @Nullable
+  private static OsgiLaunchPlan read(@Nonnull File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (in.readInt() != FORMAT_VERSION) {
+        return null;
+      }
+      String fingerprint = in.readUTF();
+
+      SelectedBundle[] bundles = new SelectedBundle[in.readInt()];
+      for (int i = 0; i < bundles.length; i++) {
+        String name = in.readUTF();
+        String path = in.readBoolean() ? in.readUTF() : null;
+        BundleType type = BundleType.valueOf(in.readUTF());
+        SelectedBundle bundle = new SelectedBundle(name, path, type);
+        bundle.setStartLevel(in.readInt());
+        bundle.setStartAfterInstallation(in.readBoolean());
+        bundles[i] = bundle;
+      }
+
+      int starterLibraryCount = in.readInt();
+      List<String> starterLibraries = new ArrayList<String>(starterLibraryCount);
+      long[] starterLibraryStamps = new long[starterLibraryCount];
+      for (int i = 0; i < starterLibraryCount; i++) {
+        starterLibraries.add(in.readUTF());
+        starterLibraryStamps[i] = in.readLong();
+      }
+
+      int programParameterCount = in.readInt();
+      List<String> programParameters = new ArrayList<String>(programParameterCount);
+      for (int i = 0; i < programParameterCount; i++) {
+        programParameters.add(in.readUTF());
+      }
+      return new OsgiLaunchPlan(fingerprint, bundles, starterLibraries, starterLibraryStamps, programParameters);
+    }
+    catch (IllegalArgumentException e) {
+      // unknown bundle type
+      return null;
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  private void write(@Nonnull File file) throws IOException {
+    File parent = file.getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Could not create " + parent);
+    }
+
+    File tempFile = new File(parent, file.getName() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+    try {
+      out.writeInt(FORMAT_VERSION);
+      out.writeUTF(myFingerprint);
+
+      out.writeInt(myBundles.length);
+      for (SelectedBundle bundle : myBundles) {
+        out.writeUTF(bundle.getName());
+        out.writeBoolean(bundle.getBundlePath() != null);
+        if (bundle.getBundlePath() != null) {
+          out.writeUTF(bundle.getBundlePath());
+        }
+        out.writeUTF(bundle.getBundleType().name());
+        out.writeInt(bundle.getStartLevel());
+        out.writeBoolean(bundle.isStartAfterInstallation());
+      }
+
+      out.writeInt(myStarterLibraries.size());
+      for (int i = 0; i < myStarterLibraries.size(); i++) {
+        out.writeUTF(myStarterLibraries.get(i));
+        out.writeLong(myStarterLibraryStamps[i]);
+      }
+
+      out.writeInt(myProgramParameters.size());
+      for (String programParameter : myProgramParameters) {
+        out.writeUTF(programParameter);
+      }
+    }
+    finally {
+      out.close();
+    }
+    if (file.exists() && !file.delete() || !tempFile.renameTo(file)) {
+      throw new IOException("Could not replace " + file);
+    }
+  }
+
+  @Nonnull
+  private static File getPlanFile(@Nonnull Project project, @Nonnull OsgiRunConfiguration runConfiguration) {
+    // one plan per run configuration, a stale plan is simply overwritten
+    String key = digest(project.getBasePath() + "|" + runConfiguration.getName());
+    return new File(ContainerPathManager.get().getSystemPath() + File.separator + "osmorc" + File.separator + "launch-plans", key + ".plan");
+  }
+
+  @Nonnull
+  private static long[] getStamps(@Nonnull List<String> paths) {
+    long[] stamps = new long[paths.size()];
+    for (int i = 0; i < stamps.length; i++) {
+      stamps[i] = getStamp(paths.get(i));
+    }
+    return stamps;
+  }
+
+  /**
+   * @return a stamp of the length and time stamp of the given file, or of the manifest if the file is an exploded bundle. 0 if the file does not exist.
+   */
+  private static long getStamp(@Nonnull String path) {
+    File file = new File(path);
+    if (file.isDirectory()) {
+      file = new File(file, "META-INF" + File.separator + "MANIFEST.MF");
+    }
+    if (!file.exists()) {
+      return 0;
+    }
+    return file.lastModified() * 31 + file.length();
+  }
+
+  @Nonnull
+  private static String digest(@Nonnull String value) {
+    try {
+      byte[] bytes = MessageDigest.getInstance("SHA-1").digest(value.getBytes("UTF-8"));
+      StringBuilder builder = new StringBuilder(bytes.length * 2);
+      for (byte b : bytes) {
+        builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return builder.toString();
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
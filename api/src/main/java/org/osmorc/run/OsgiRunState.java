@@ -24,11 +24,18 @@
  */
 package org.osmorc.run;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -64,7 +71,9 @@ import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.packaging.artifacts.Artifact;
 import com.intellij.packaging.artifacts.ArtifactManager;
+import com.intellij.util.PathUtil;
 import com.intellij.util.PathsList;
+import com.intellij.util.concurrency.PooledThreadExecutor;
 import consulo.java.execution.configurations.OwnJavaParameters;
 
 /**
@@ -79,8 +88,13 @@ public class OsgiRunState extends JavaCommandLineState {
   private final Project project;
   private final Sdk jdkForRun;
   private SelectedBundle[] mySelectedBundles;
+  private boolean myPreparationCancelled;
   private final FrameworkRunner runner;
   private static final String FILE_URL_PREFIX = "file:///";
+  /**
+   * Maximum number of bundles of a run configuration that are prepared at the same time.
+   */
+  private static final int MAX_PREPARATION_THREADS = 8;
 
   public OsgiRunState(@Nonnull Executor executor,
                       @Nonnull ExecutionEnvironment env,
@@ -127,16 +141,42 @@ public class OsgiRunState extends JavaCommandLineState {
     // the rest is is to be provided by bundles
     params.configureByProject(project, OwnJavaParameters.JDK_ONLY, jdkForRun);
     PathsList classpath = params.getClassPath();
-    for (VirtualFile libraryFile : runner.getFrameworkStarterLibraries()) {
-      classpath.add(libraryFile);
+
+    // a relaunch with nothing changed reuses the plan of the previous launch
+    String fingerprint = mySelectedBundles == null ? OsgiLaunchPlan.computeFingerprint(project, runConfiguration, runner) : null;
+    OsgiLaunchPlan plan = fingerprint != null ? OsgiLaunchPlan.load(project, runConfiguration, fingerprint) : null;
+    if (plan != null) {
+      mySelectedBundles = plan.getBundles();
     }
+    else {
+      List<String> starterLibraries = new ArrayList<String>();
+      for (VirtualFile libraryFile : runner.getFrameworkStarterLibraries()) {
+        starterLibraries.add(PathUtil.getLocalPath(libraryFile));
+      }
+
+      // get the bundles to be run.
+      SelectedBundle[] preparedBundles = getSelectedBundles();
+      if (preparedBundles == null && myPreparationCancelled) {
+        throw new CantRunException("Preparing the bundles has been cancelled.");
+      }
+      if (preparedBundles == null) {
+        throw new CantRunException(
+          "One or more modules seem to be missing their OSGi facets or you have modules in your run configuration that no longer exist. Please re-add the OSGi facets or clean the run configuration and try again.");
+      }
 
+      // setup the commandline parameters
+      ParametersList programParameters = new ParametersList();
+      runner.fillCommandLineParameters(programParameters, preparedBundles);
 
-    // get the bundles to be run.
-    SelectedBundle[] bundles = getSelectedBundles();
-    if (bundles == null) {
-      throw new CantRunException(
-        "One or more modules seem to be missing their OSGi facets or you have modules in your run configuration that no longer exist. Please re-add the OSGi facets or clean the run configuration and try again.");
+      plan = new OsgiLaunchPlan(fingerprint != null ? fingerprint : "", preparedBundles, starterLibraries, programParameters.getList());
+      if (fingerprint != null) {
+        plan.save(project, runConfiguration);
+      }
+    }
+    SelectedBundle[] bundles = plan.getBundles();
+
+    for (String libraryPath : plan.getStarterLibraries()) {
+      classpath.add(libraryPath);
     }
 
     if (runConfiguration.isIncludeAllBundlesInClassPath()) {
@@ -152,9 +192,7 @@ public class OsgiRunState extends JavaCommandLineState {
     // setup  the main class
     params.setMainClass(runner.getMainClass());
 
-    // setup the commandline parameters
-    final ParametersList programParameters = params.getProgramParametersList();
-    runner.fillCommandLineParameters(programParameters, bundles);
+    params.getProgramParametersList().addAll(plan.getProgramParameters());
 
     // and the vm parameters
     final ParametersList vmParameters = params.getVMParametersList();
@@ -175,52 +213,37 @@ public class OsgiRunState extends JavaCommandLineState {
   private SelectedBundle[] getSelectedBundles() {
 
     if (mySelectedBundles == null) {
-      ProgressManager.getInstance().run(new Task.Modal(project, "Preparing bundles...", false) {
+      ProgressManager.getInstance().run(new Task.Modal(project, "Preparing bundles...", true) {
 
         public void run(@Nonnull ProgressIndicator progressIndicator) {
           progressIndicator.setIndeterminate(false);
-          final HashSet<SelectedBundle> selectedBundles = new HashSet<SelectedBundle>();
-
-          int bundleCount = runConfiguration.getBundlesToDeploy().size();
-          for (int i = 0; i < bundleCount; i++) {
-            final SelectedBundle selectedBundle = runConfiguration.getBundlesToDeploy().get(i);
-            progressIndicator.setFraction(i / bundleCount);
-
-            if(selectedBundle.getBundleType() == BundleType.Artifact) {
-              final Artifact artifact = ArtifactManager.getInstance(project).findArtifact(selectedBundle.getName());
-              if(artifact == null) {
-                showErrorMessage("Artifact '" + selectedBundle.getName() + "' is not found");
-                OsgiRunState.this.mySelectedBundles = null;
-                return;
-              }
-              final String outputFilePath = artifact.getOutputFilePath();
-              if(outputFilePath == null) {
-                showErrorMessage("Artifact '" + selectedBundle.getName() + "' is not builded");
-                OsgiRunState.this.mySelectedBundles = null;
-                return;
-              }
+          List<PreparedBundle> preparedBundles = prepareBundles(runConfiguration.getBundlesToDeploy(), progressIndicator);
+          if (preparedBundles == null) {
+            OsgiRunState.this.mySelectedBundles = null;
+            OsgiRunState.this.myPreparationCancelled = true;
+            return;
+          }
 
-              selectedBundle.setBundlePath(outputFilePath);
-              selectedBundles.add(selectedBundle);
-            }
-            else {
-              if (selectedBundles.contains(selectedBundle)) {
-                // if the user selected a dependency as runnable library, we need to replace the dependency with
-                // the runnable library part
-                selectedBundles.remove(selectedBundle);
-              }
-              selectedBundles.add(selectedBundle);
+          // results are merged in the order of the run configuration, so the outcome does not depend on the thread scheduling
+          final Map<SelectedBundle, PreparedBundle> selectedBundles = new LinkedHashMap<SelectedBundle, PreparedBundle>();
+          for (PreparedBundle preparedBundle : preparedBundles) {
+            if (preparedBundle.myError != null) {
+              showErrorMessage(preparedBundle.myError);
+              OsgiRunState.this.mySelectedBundles = null;
+              return;
             }
+            // if the user selected a dependency as runnable library, we need to replace the dependency with
+            // the runnable library part
+            selectedBundles.remove(preparedBundle.myBundle);
+            selectedBundles.put(preparedBundle.myBundle, preparedBundle);
           }
-          HashMap<String, SelectedBundle> finalList = new HashMap<String, SelectedBundle>();
 
           // filter out bundles which have the same symbolic name
-          for (SelectedBundle selectedBundle : selectedBundles) {
-            String name = CachingBundleInfoProvider.getBundleSymbolicName(selectedBundle.getBundlePath());
-            String version = CachingBundleInfoProvider.getBundleVersions(selectedBundle.getBundlePath());
-            String key = name + version;
+          Map<String, SelectedBundle> finalList = new LinkedHashMap<String, SelectedBundle>();
+          for (PreparedBundle preparedBundle : selectedBundles.values()) {
+            String key = preparedBundle.mySymbolicName + preparedBundle.myVersion;
             if (!finalList.containsKey(key)) {
-              finalList.put(key, selectedBundle);
+              finalList.put(key, preparedBundle.myBundle);
             }
           }
 
@@ -233,6 +256,92 @@ public class OsgiRunState extends JavaCommandLineState {
     return mySelectedBundles;
   }
 
+  /**
+   * Resolves the paths of the given bundles and reads their symbolic names and versions on pooled threads of the application, at most
+   * {@link #MAX_PREPARATION_THREADS} bundles at a time. A bundle which cannot be prepared is returned with an error message.
+   *
+   * @param bundles           the bundles to prepare
+   * @param progressIndicator the indicator to report progress to
+   * @return the prepared bundles in the order of the given list, or null if the preparation was cancelled.
+   */
+  @Nullable
+  private List<PreparedBundle> prepareBundles(@Nonnull final List<SelectedBundle> bundles, @Nonnull ProgressIndicator progressIndicator) {
+    CompletionService<Void> completionService = new ExecutorCompletionService<Void>(PooledThreadExecutor.INSTANCE);
+    final PreparedBundle[] prepared = new PreparedBundle[bundles.size()];
+    List<Future<Void>> futures = new ArrayList<Future<Void>>(bundles.size());
+    int maxRunning = Math.max(1, Math.min(MAX_PREPARATION_THREADS, Runtime.getRuntime().availableProcessors()));
+    try {
+      int completed = 0;
+      while (completed < bundles.size()) {
+        // keep at most maxRunning bundles in preparation, the next one is submitted when one is done
+        while (futures.size() < bundles.size() && futures.size() - completed < maxRunning) {
+          final int index = futures.size();
+          futures.add(completionService.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+              SelectedBundle bundle = bundles.get(index);
+              try {
+                prepared[index] = prepareBundle(bundle);
+              }
+              catch (RuntimeException e) {
+                prepared[index] = new PreparedBundle(bundle, "Could not prepare bundle '" + bundle.getName() + "': " + e);
+              }
+              return null;
+            }
+          }));
+        }
+
+        if (progressIndicator.isCanceled()) {
+          return null;
+        }
+        if (completionService.poll(100, TimeUnit.MILLISECONDS) != null) {
+          completed++;
+          progressIndicator.setFraction((double)completed / bundles.size());
+        }
+      }
+
+      List<PreparedBundle> result = new ArrayList<PreparedBundle>(bundles.size());
+      for (int i = 0; i < prepared.length; i++) {
+        SelectedBundle bundle = bundles.get(i);
+        result.add(prepared[i] != null ? prepared[i] : new PreparedBundle(bundle, "Could not prepare bundle '" + bundle.getName() + "'"));
+      }
+      return result;
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    finally {
+      // only has an effect on cancellation, the other tasks are done
+      for (Future<Void> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  @Nonnull
+  private PreparedBundle prepareBundle(@Nonnull SelectedBundle selectedBundle) {
+    if (selectedBundle.getBundleType() == BundleType.Artifact) {
+      final Artifact artifact = ArtifactManager.getInstance(project).findArtifact(selectedBundle.getName());
+      if (artifact == null) {
+        return new PreparedBundle(selectedBundle, "Artifact '" + selectedBundle.getName() + "' is not found");
+      }
+      final String outputFilePath = artifact.getOutputFilePath();
+      if (outputFilePath == null) {
+        return new PreparedBundle(selectedBundle, "Artifact '" + selectedBundle.getName() + "' is not builded");
+      }
+
+      selectedBundle.setBundlePath(outputFilePath);
+    }
+
+    String bundlePath = selectedBundle.getBundlePath();
+    if (bundlePath == null) {
+      return new PreparedBundle(selectedBundle, null, null);
+    }
+    return new PreparedBundle(selectedBundle, CachingBundleInfoProvider.getBundleSymbolicName(bundlePath),
+                              CachingBundleInfoProvider.getBundleVersions(bundlePath));
+  }
+
   private static void showErrorMessage(final String message) {
     try {
 
@@ -264,6 +373,30 @@ public class OsgiRunState extends JavaCommandLineState {
     return handler;
   }
 
+  /**
+   * A bundle of the run configuration with its resolved symbolic name and version, or the error which prevents it from being run.
+   */
+  private static final class PreparedBundle {
+    private final SelectedBundle myBundle;
+    @Nullable private final String mySymbolicName;
+    @Nullable private final String myVersion;
+    @Nullable private final String myError;
+
+    private PreparedBundle(SelectedBundle bundle, @Nullable String symbolicName, @Nullable String version) {
+      myBundle = bundle;
+      mySymbolicName = symbolicName;
+      myVersion = version;
+      myError = null;
+    }
+
+    private PreparedBundle(SelectedBundle bundle, @Nonnull String error) {
+      myBundle = bundle;
+      mySymbolicName = null;
+      myVersion = null;
+      myError = error;
+    }
+  }
+
   /**
    * Comparator for sorting bundles by their start level.
    *
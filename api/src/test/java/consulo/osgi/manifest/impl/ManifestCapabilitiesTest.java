@@ -0,0 +1,259 @@
+package consulo.osgi.manifest.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.osgi.framework.Constants.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.felix.framework.util.manifestparser.Capability;
+import org.apache.felix.framework.util.manifestparser.ManifestParser;
+import org.apache.felix.framework.util.manifestparser.R4Attribute;
+import org.apache.felix.framework.util.manifestparser.R4Directive;
+import org.apache.felix.moduleloader.ICapability;
+import org.apache.felix.moduleloader.IRequirement;
+import org.junit.Test;
+import org.osmorc.manifest.lang.psi.Header;
+import org.osmorc.manifest.lang.psi.ManifestFile;
+import org.osmorc.manifest.lang.valueparser.impl.valueobject.Version;
+import com.intellij.psi.NavigatablePsiElement;
+import consulo.osgi.manifest.BundleManifest;
+
+/**
+ * Checks that the cached capabilities answer like the manifest parser does without caching, also after the manifest was modified.
+ */
+public class ManifestCapabilitiesTest
+{
+	private static final String[] PACKAGE_SPECS = {
+			"org.foo",
+			"org.foo;version=1.0",
+			"org.foo;version=\"[1.0,2.0)\"",
+			"org.foo;version=\"[2.0,3.0)\"",
+			"org.foo;org.bar",
+			"org.foo;version=1.5;org.bar;version=1.0",
+			"org.bar;version=\"[1.0,1.0]\"",
+			"org.baz",
+			"org.foo.impl",
+			";;version=",
+	};
+
+	private static final String[] BUNDLE_SPECS = {
+			"org.test.bundle",
+			"org.test.bundle;bundle-version=1.0",
+			"org.test.bundle;bundle-version=\"[1.0,2.0)\"",
+			"org.test.bundle;bundle-version=\"[2.0,3.0)\"",
+			"org.test.bundle;visibility:=reexport",
+			"org.test.other",
+			"org.test.bundle;bundle-version=\"[1.2.3.qualifier,1.2.3.qualifier]\"",
+			";;bundle-version=",
+	};
+
+	@Test
+	public void testSameAnswersAsUncachedParsing()
+	{
+		TestManifest manifest = new TestManifest();
+		manifest.set("org.test.bundle", new Version(1, 2, 3, "qualifier"), "org.foo;version=1.5", "org.bar;version=1.0;uses:=org.foo");
+		assertSameAnswers(manifest);
+	}
+
+	@Test
+	public void testSameAnswersAfterModification()
+	{
+		TestManifest manifest = new TestManifest();
+		manifest.set("org.test.bundle", new Version(1, 0, 0, null), "org.foo;version=1.5");
+		assertSameAnswers(manifest);
+
+		manifest.set("org.test.bundle", new Version(2, 1, 0, null), "org.foo;version=2.5", "org.bar");
+		assertSameAnswers(manifest);
+
+		manifest.set("org.test.other", new Version(1, 0, 0, null));
+		assertSameAnswers(manifest);
+
+		manifest.set(null, new Version(0, 0, 0, null), "org.foo.impl;org.baz");
+		assertSameAnswers(manifest);
+	}
+
+	@Test
+	public void testSameAnswersForUnparseableExports()
+	{
+		TestManifest manifest = new TestManifest();
+		manifest.set("org.test.bundle", new Version(1, 0, 0, null), "org.foo;version=1.0", "org.bar;version=\"[\"");
+		assertSameAnswers(manifest);
+	}
+
+	private static void assertSameAnswers(@Nonnull TestManifest manifest)
+	{
+		for(String spec : PACKAGE_SPECS)
+		{
+			boolean expected = exportsPackageUncached(manifest, spec);
+			// twice, so the answer of the cached requirements is checked as well
+			assertEquals(spec, expected, manifest.exportsPackage(spec));
+			assertEquals(spec, expected, manifest.exportsPackage(spec));
+		}
+		for(String spec : BUNDLE_SPECS)
+		{
+			boolean expected = isRequiredBundleUncached(manifest, spec);
+			assertEquals(spec, expected, manifest.isRequiredBundle(spec));
+			assertEquals(spec, expected, manifest.isRequiredBundle(spec));
+		}
+	}
+
+	private static boolean exportsPackageUncached(@Nonnull BundleManifest manifest, @Nonnull String packageSpec)
+	{
+		if(manifest.getExports().isEmpty())
+		{
+			return false;
+		}
+
+		List<ICapability> capabilities = new ArrayList<ICapability>();
+		try
+		{
+			for(String export : manifest.getExports())
+			{
+				capabilities.addAll(Arrays.asList(ManifestParser.parseExportHeader(export)));
+			}
+		}
+		catch(Exception e)
+		{
+			return false;
+		}
+
+		IRequirement[] requirements;
+		try
+		{
+			requirements = ManifestParser.parseImportHeader(packageSpec);
+		}
+		catch(Exception e)
+		{
+			return false;
+		}
+
+		for(IRequirement requirement : requirements)
+		{
+			boolean satisfied = false;
+			for(ICapability capability : capabilities)
+			{
+				if(requirement.isSatisfied(capability))
+				{
+					satisfied = true;
+					break;
+				}
+			}
+			if(!satisfied)
+			{
+				return false;
+			}
+		}
+		return !capabilities.isEmpty();
+	}
+
+	private static boolean isRequiredBundleUncached(@Nonnull BundleManifest manifest, @Nonnull String bundleSpec)
+	{
+		IRequirement[] requirements;
+		try
+		{
+			requirements = ManifestParser.parseRequireBundleHeader(bundleSpec);
+		}
+		catch(Exception e)
+		{
+			return false;
+		}
+
+		String symbolicName = manifest.getBundleSymbolicName();
+		if(symbolicName == null)
+		{
+			return false;
+		}
+		Version version = manifest.getBundleVersion();
+		ICapability moduleCapability = new Capability(ICapability.MODULE_NAMESPACE, new R4Directive[]{new R4Directive(BUNDLE_SYMBOLICNAME, symbolicName)}, new R4Attribute[]{
+				new R4Attribute(BUNDLE_SYMBOLICNAME_ATTRIBUTE, symbolicName, false),
+				new R4Attribute(BUNDLE_VERSION_ATTRIBUTE, new org.osgi.framework.Version(version.getMajor(), version.getMinor(), version.getMicro(), version.getQualifier()), false)
+		});
+		for(IRequirement requirement : requirements)
+		{
+			if(!requirement.isSatisfied(moduleCapability))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Manifest with header values that can be changed, every change increases the modification count like an edit of a manifest file.
+	 */
+	private static class TestManifest extends AbstractBundleManifestImpl
+	{
+		@Nullable
+		private String mySymbolicName;
+		private Version myVersion;
+		private List<String> myExports = Collections.emptyList();
+		private long myModificationCount;
+
+		void set(@Nullable String symbolicName, @Nonnull Version version, String... exports)
+		{
+			mySymbolicName = symbolicName;
+			myVersion = version;
+			myExports = Arrays.asList(exports);
+			myModificationCount++;
+		}
+
+		@Nullable
+		@Override
+		protected Header getHeaderByName(@Nonnull String heaaderName)
+		{
+			return null;
+		}
+
+		@Nullable
+		@Override
+		public String getBundleSymbolicName()
+		{
+			return mySymbolicName;
+		}
+
+		@Nonnull
+		@Override
+		public Version getBundleVersion()
+		{
+			return myVersion;
+		}
+
+		@Nonnull
+		@Override
+		public List<String> getExports()
+		{
+			return myExports;
+		}
+
+		@Nullable
+		@Override
+		public ManifestFile getManifestFile()
+		{
+			return null;
+		}
+
+		@Nullable
+		@Override
+		public NavigatablePsiElement getNavigateTargetByHeaderName(@Nonnull String name)
+		{
+			return null;
+		}
+
+		@Override
+		public void setHeaderValue(@Nonnull String key, @Nonnull String value)
+		{
+		}
+
+		@Override
+		public long getModificationCount()
+		{
+			return myModificationCount;
+		}
+	}
+}
@@ -0,0 +1,252 @@
+package aQute.bnd.build;
+
+import aQute.libg.reporter.Reporter;
+import aQute.libg.tarjan.Tarjan;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Builds projects in dependency order on a bounded number of threads, projects
+ * that do not depend on each other are built concurrently. The dependencies
+ * are the -dependson projects and the projects on the paths of a project.
+ * Projects that depend on each other in a cycle are built one after another by
+ * the same task.
+ * <p/>
+ * The errors and warnings of each project are collected in its {@link Result}
+ * and can be reported per project after the build, so the messages of
+ * projects that are built at the same time are not interleaved.
+ */
+public class BuildScheduler {
+  final int parallelism;
+  final boolean underTest;
+  final Map<Project, Result> results = new LinkedHashMap<Project, Result>();
+  final StaleCheck check = new StaleCheck();
+  ExecutorService executor;
+  int running;
+
+  /**
+   * The outcome of building a project.
+   */
+  public static class Result {
+    final Project project;
+    final List<String> errors = new ArrayList<String>();
+    final List<String> warnings = new ArrayList<String>();
+    File files[];
+    Exception exception;
+    boolean done;
+
+    Result(Project project) {
+      this.project = project;
+    }
+
+    public Project getProject() {
+      return project;
+    }
+
+    /**
+     * Answer the built files, null if the project was not built or has no
+     * bundles.
+     */
+    public File[] getFiles() {
+      return files;
+    }
+
+    public List<String> getErrors() {
+      return errors;
+    }
+
+    public List<String> getWarnings() {
+      return warnings;
+    }
+
+    public Exception getException() {
+      return exception;
+    }
+
+    public boolean isOk() {
+      return done && exception == null && errors.isEmpty();
+    }
+  }
+
+  /**
+   * Builds the projects of a dependency cycle, or a single project, when the
+   * projects they depend on are built.
+   */
+  class Job implements Runnable {
+    final List<Project> projects = new ArrayList<Project>();
+    final Set<Job> dependencies = new HashSet<Job>();
+    final Set<Job> dependents = new HashSet<Job>();
+    int waiting;
+    boolean ok = true;
+
+    public void run() {
+      try {
+        Project failed = getFailedDependency();
+        for (Project project : projects) {
+          Result result = results.get(project);
+          if (failed != null) {
+            result.errors.add(String.format("Not built, dependency %s failed", failed));
+          }
+          else {
+            build(result);
+          }
+          if (!result.isOk()) ok = false;
+        }
+      }
+      finally {
+        done(this);
+      }
+    }
+
+    private Project getFailedDependency() {
+      synchronized (BuildScheduler.this) {
+        for (Job dependency : dependencies) {
+          if (!dependency.ok) {
+            for (Project project : dependency.projects) {
+              if (!results.get(project).isOk()) return project;
+            }
+          }
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * @param parallelism the maximum number of projects built at the same time
+   * @param underTest   build the projects for testing
+   */
+  public BuildScheduler(int parallelism, boolean underTest) {
+    this.parallelism = Math.max(1, parallelism);
+    this.underTest = underTest;
+  }
+
+  /**
+   * Build the projects and the projects they depend on, if they are stale.
+   *
+   * @return the results, in the order of the projects with their
+   *         dependencies added after them
+   */
+  public Collection<Result> build(Collection<Project> projects) throws Exception {
+    Map<Project, Set<Project>> graph = getGraph(projects);
+
+    // a project is built together with the projects in the same cycle
+    Map<Project, Job> jobs = new HashMap<Project, Job>();
+    for (Set<Project> component : Tarjan.tarjan(graph)) {
+      Job job = new Job();
+      for (Project project : graph.keySet()) {
+        if (component.contains(project)) {
+          job.projects.add(project);
+          jobs.put(project, job);
+        }
+      }
+    }
+
+    for (Map.Entry<Project, Set<Project>> entry : graph.entrySet()) {
+      Job job = jobs.get(entry.getKey());
+      for (Project dependency : entry.getValue()) {
+        Job dependencyJob = jobs.get(dependency);
+        if (dependencyJob != job && job.dependencies.add(dependencyJob)) dependencyJob.dependents.add(job);
+      }
+    }
+
+    for (Project project : graph.keySet()) {
+      results.put(project, new Result(project));
+    }
+
+    Set<Job> all = new LinkedHashSet<Job>(jobs.values());
+    synchronized (this) {
+      executor = Executors.newFixedThreadPool(Math.min(parallelism, Math.max(1, all.size())));
+      try {
+        running = all.size();
+        for (Job job : all) {
+          job.waiting = job.dependencies.size();
+          if (job.waiting == 0) executor.execute(job);
+        }
+        while (running > 0) {
+          wait();
+        }
+      }
+      finally {
+        // also stops the builds when the waiting thread is interrupted
+        executor.shutdownNow();
+      }
+    }
+    return results.values();
+  }
+
+  synchronized void done(Job job) {
+    running--;
+    if (executor.isShutdown()) return;
+
+    for (Job dependent : job.dependents) {
+      if (--dependent.waiting == 0) executor.execute(dependent);
+    }
+    notifyAll();
+  }
+
+  void build(Result result) {
+    Project project = result.project;
+    try {
+      result.files = project.build(underTest, check);
+    }
+    catch (Exception e) {
+      result.exception = e;
+    }
+    result.errors.addAll(project.getErrors());
+    result.warnings.addAll(project.getWarnings());
+    result.done = true;
+  }
+
+  /**
+   * Answer the projects by the projects they depend on directly, including
+   * all the projects they depend on indirectly.
+   */
+  Map<Project, Set<Project>> getGraph(Collection<Project> projects) throws Exception {
+    Map<Project, Set<Project>> graph = new LinkedHashMap<Project, Set<Project>>();
+    List<Project> todo = new ArrayList<Project>(projects);
+    for (int i = 0; i < todo.size(); i++) {
+      Project project = todo.get(i);
+      if (graph.containsKey(project)) continue;
+
+      try {
+        project.prepare();
+      }
+      catch (CircularDependencyException e) {
+        // the direct dependencies are known, the cycle is built as one
+      }
+      Set<Project> dependencies = new LinkedHashSet<Project>(project.getDirectDependson());
+      dependencies.remove(project);
+      graph.put(project, dependencies);
+      todo.addAll(dependencies);
+    }
+    return graph;
+  }
+
+  /**
+   * Answer the result of a project, null if it was not part of the build.
+   */
+  public Result getResult(Project project) {
+    return results.get(project);
+  }
+
+  /**
+   * Report the errors and warnings, grouped by project.
+   */
+  public void report(Reporter reporter) {
+    for (Result result : results.values()) {
+      for (String error : result.errors) {
+        reporter.error("%s: %s", result.project, error);
+      }
+      if (result.exception != null) {
+        reporter.error("%s: build failed: %s", result.project, result.exception);
+      }
+      for (String warning : result.warnings) {
+        reporter.warning("%s: %s", result.project, warning);
+      }
+    }
+  }
+}
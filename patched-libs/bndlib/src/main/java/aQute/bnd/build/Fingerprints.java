@@ -0,0 +1,181 @@
+package aQute.bnd.build;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * The content digests of the files a project is built from. A file is only
+ * read again when its length or time stamp differs from the previous
+ * fingerprints, so taking the fingerprints of an unchanged project only
+ * needs the file status. Files that were touched without being changed keep
+ * their digest.
+ */
+class Fingerprints {
+  static final int FORMAT_VERSION = 1;
+  static final String FINGERPRINTS = "buildfingerprints";
+
+  /**
+   * A file changed within this interval before the fingerprints were taken
+   * may change again without a new time stamp, its digest is not trusted.
+   */
+  static final long RACY_INTERVAL = 2000;
+
+  static class Entry {
+    final long length;
+    final long lastModified;
+    final byte digest[];
+
+    Entry(long length, long lastModified, byte digest[]) {
+      this.length = length;
+      this.lastModified = lastModified;
+      this.digest = digest;
+    }
+  }
+
+  final Map<String, Entry> entries = new TreeMap<String, Entry>();
+  long time;
+
+  /**
+   * Take the fingerprints of the files, and of all files in the directories.
+   *
+   * @param inputs   the files and directories
+   * @param previous the previous fingerprints, their digests are used for
+   *                 files that did not change since, or null
+   */
+  static Fingerprints take(Collection<File> inputs, Fingerprints previous) throws Exception {
+    Fingerprints fingerprints = new Fingerprints();
+    fingerprints.time = System.currentTimeMillis();
+    MessageDigest md = MessageDigest.getInstance("SHA-1");
+    byte buffer[] = new byte[30000];
+    for (File input : inputs) {
+      fingerprints.add(input.getAbsoluteFile(), previous, md, buffer);
+    }
+    return fingerprints;
+  }
+
+  private void add(File file, Fingerprints previous, MessageDigest md, byte buffer[]) throws IOException {
+    String path = file.getPath();
+    if (entries.containsKey(path)) return;
+
+    if (file.isDirectory()) {
+      File children[] = file.listFiles();
+      if (children != null) {
+        for (File child : children) {
+          add(child, previous, md, buffer);
+        }
+      }
+      return;
+    }
+    if (!file.isFile()) return;
+
+    long length = file.length();
+    long lastModified = file.lastModified();
+    if (previous != null) {
+      Entry entry = previous.entries.get(path);
+      if (entry != null && entry.length == length && entry.lastModified == lastModified &&
+          lastModified < previous.time - RACY_INTERVAL) {
+        entries.put(path, entry);
+        return;
+      }
+    }
+
+    md.reset();
+    InputStream in = new FileInputStream(file);
+    try {
+      int size;
+      while ((size = in.read(buffer)) > 0) {
+        md.update(buffer, 0, size);
+      }
+    }
+    finally {
+      in.close();
+    }
+    entries.put(path, new Entry(length, lastModified, md.digest()));
+  }
+
+  /**
+   * Answer if the same files have the same content.
+   */
+  boolean sameContent(Fingerprints other) {
+    if (!entries.keySet().equals(other.entries.keySet())) return false;
+
+    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+      if (!Arrays.equals(entry.getValue().digest, other.entries.get(entry.getKey()).digest)) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Answer if the files have the same length and time stamps.
+   */
+  boolean sameStatus(Fingerprints other) {
+    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+      Entry e = entry.getValue();
+      Entry o = other.entries.get(entry.getKey());
+      if (o == null || e.length != o.length || e.lastModified != o.lastModified) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Read the fingerprints.
+   *
+   * @return the fingerprints, or null if the file does not exist or can not
+   *         be read
+   */
+  static Fingerprints read(File file) {
+    if (!file.isFile()) return null;
+
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        if (in.readInt() != FORMAT_VERSION) return null;
+
+        Fingerprints fingerprints = new Fingerprints();
+        fingerprints.time = in.readLong();
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+          String path = in.readUTF();
+          long length = in.readLong();
+          long lastModified = in.readLong();
+          byte digest[] = new byte[in.readUnsignedByte()];
+          in.readFully(digest);
+          fingerprints.entries.put(path, new Entry(length, lastModified, digest));
+        }
+        return fingerprints;
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (IOException e) {
+      return null;
+    }
+  }
+
+  void write(File file) throws IOException {
+    File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+    try {
+      out.writeInt(FORMAT_VERSION);
+      out.writeLong(time);
+      out.writeInt(entries.size());
+      for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+        Entry e = entry.getValue();
+        out.writeUTF(entry.getKey());
+        out.writeLong(e.length);
+        out.writeLong(e.lastModified);
+        out.writeByte(e.digest.length);
+        out.write(e.digest);
+      }
+    }
+    finally {
+      out.close();
+    }
+    if (file.exists() && !file.delete() || !tmp.renameTo(file)) {
+      tmp.delete();
+      throw new IOException("Could not replace " + file);
+    }
+  }
+}
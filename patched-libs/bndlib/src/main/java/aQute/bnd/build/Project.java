@@ -41,6 +41,7 @@ public class Project extends Processor {
   final Workspace workspace;
   boolean preparedPaths;
   final Collection<Project> dependson = new LinkedHashSet<Project>();
+  final Collection<Project> directDependson = new LinkedHashSet<Project>();
   final Collection<Container> buildpath = new LinkedHashSet<Container>();
   final Collection<Container> testpath = new LinkedHashSet<Container>();
   final Collection<Container> runpath = new LinkedHashSet<Container>();
@@ -58,7 +59,13 @@ public class Project extends Processor {
   int revision;
   File files[];
   private long buildtime;
-  static List<Project> trail = new ArrayList<Project>();
+  // projects being prepared by the current thread, projects may be prepared
+  // concurrently
+  static final ThreadLocal<List<Project>> trail = new ThreadLocal<List<Project>>() {
+    protected List<Project> initialValue() {
+      return new ArrayList<Project>();
+    }
+  };
   boolean delayRunDependencies = false;
 
   public Project(Workspace workspace, File projectDir, File buildFile) throws Exception {
@@ -166,6 +173,7 @@ public class Project extends Processor {
       return;
     }
 
+    List<Project> trail = Project.trail.get();
     if (inPrepare) throw new CircularDependencyException(trail.toString() + "," + this);
 
     trail.add(this);
@@ -174,6 +182,7 @@ public class Project extends Processor {
         inPrepare = true;
         try {
           dependson.clear();
+          directDependson.clear();
           buildpath.clear();
           sourcepath.clear();
           allsourcepath.clear();
@@ -265,6 +274,8 @@ public class Project extends Processor {
             doPath(runbundles, dependencies, parseRunbundles(), null);
           }
 
+          directDependson.addAll(dependencies);
+
           // We now know all dependent projects. But we also depend
           // on whatever those projects depend on. This creates an
           // ordered list without any duplicates. This of course
@@ -657,6 +668,16 @@ public class Project extends Processor {
     return dependson;
   }
 
+  /**
+   * Answer the projects this project depends on directly, through
+   * -dependson or its paths. Unlike the dependson projects these are also
+   * known when the project is in a dependency cycle, after prepare failed
+   * with a CircularDependencyException.
+   */
+  public Collection<Project> getDirectDependson() {
+    return directDependson;
+  }
+
   public Collection<Container> getBuildpath() throws Exception {
     prepare();
     return buildpath;
@@ -1229,6 +1250,14 @@ public class Project extends Processor {
    * @throws Exception
    */
   public File[] build(boolean underTest) throws Exception {
+    return build(underTest, new StaleCheck());
+  }
+
+  /**
+   * Build this project if it is stale, the check remembers the verdicts of
+   * the projects of the build session.
+   */
+  public File[] build(boolean underTest, StaleCheck check) throws Exception {
     if (isNoBundles()) return null;
 
     if (getProperty("-nope") != null) {
@@ -1236,9 +1265,10 @@ public class Project extends Processor {
       return null;
     }
 
-    if (isStale()) {
+    if (check.isStale(this)) {
       trace("Building " + this);
       files = buildLocal(underTest);
+      if (files != null) check.built(this);
     }
 
     return files;
@@ -1254,33 +1284,70 @@ public class Project extends Processor {
 
   /**
    * Check if this project needs building. This is defined as:
+   * <ul>
+   * <li>it was never built, or</li>
+   * <li>a project it depends on needs building, or</li>
+   * <li>the content of its bnd files, its output, its build path or the
+   * bundles of the projects it depends on changed since it was built.</li>
+   * </ul>
    */
   public boolean isStale() throws Exception {
+    return new StaleCheck().isStale(this);
+  }
+
+  boolean isStale(StaleCheck check) throws Exception {
     // When we do not generate anything ...
     if (isNoBundles()) return false;
 
-    long buildTime = 0;
-
     files = getBuildFiles(false);
     if (files == null) return true;
 
-    for (File f : files) {
-      if (f.lastModified() < lastModified()) return true;
+    for (Project dependency : getDependson()) {
+      if (check.isStale(dependency)) return true;
+    }
+
+    File f = new File(getTarget(), Fingerprints.FINGERPRINTS);
+    Fingerprints recorded = Fingerprints.read(f);
+    if (recorded == null) return true;
 
-      if (buildTime < f.lastModified()) buildTime = f.lastModified();
+    Fingerprints current = Fingerprints.take(getBuildInputs(), recorded);
+    if (!current.sameContent(recorded)) return true;
+
+    // touched but unchanged files need not be read again next time
+    if (!current.sameStatus(recorded)) current.write(f);
+    return false;
+  }
+
+  /**
+   * Answer the files and directories the bundles of this project are built
+   * from.
+   */
+  Collection<File> getBuildInputs() throws Exception {
+    List<File> inputs = new ArrayList<File>();
+    for (Processor p = this; p != null; p = p.getParent()) {
+      if (p.getPropertiesFile() != null) inputs.add(p.getPropertiesFile());
+      inputs.addAll(p.getIncluded());
+    }
+
+    // sub bundles
+    File bndFiles[] = getBase().listFiles();
+    if (bndFiles != null) {
+      for (File bndFile : bndFiles) {
+        if (bndFile.getName().endsWith(".bnd")) inputs.add(bndFile);
+      }
     }
 
+    inputs.add(getOutput());
+    for (Container container : getBuildpath()) {
+      if (container.getFile() != null) inputs.add(container.getFile());
+    }
     for (Project dependency : getDependson()) {
-      if (dependency.isStale()) return true;
-
       if (dependency.isNoBundles()) continue;
 
-      File[] deps = dependency.getBuildFiles();
-      for (File f : deps) {
-        if (f.lastModified() >= buildTime) return true;
-      }
+      File deps[] = dependency.getBuildFiles(false);
+      if (deps != null) inputs.addAll(Arrays.asList(deps));
     }
-    return false;
+    return inputs;
   }
 
   /**
@@ -1347,6 +1414,11 @@ public class Project extends Processor {
     File bfs = new File(getTarget(), BUILDFILES);
     bfs.delete();
 
+    // the fingerprints of the inputs as they are at the start of the build
+    File fps = new File(getTarget(), Fingerprints.FINGERPRINTS);
+    Fingerprints inputs = Fingerprints.take(getBuildInputs(), Fingerprints.read(fps));
+    fps.delete();
+
     files = null;
     ProjectBuilder builder = getBuilder(null);
     if (underTest) builder.setProperty(Constants.UNDERTEST, "true");
@@ -1375,6 +1447,7 @@ public class Project extends Processor {
         fw.close();
       }
       getWorkspace().changedFile(bfs);
+      inputs.write(fps);
       this.buildtime = buildtime;
       return files;
     }
@@ -0,0 +1,29 @@
+package aQute.bnd.build;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decides which projects need building during one build session. The verdict
+ * of every project is only calculated once, however many projects depend on
+ * it, and is kept until the project is built.
+ */
+public class StaleCheck {
+  final Map<Project, Boolean> verdicts = new ConcurrentHashMap<Project, Boolean>();
+
+  public boolean isStale(Project project) throws Exception {
+    Boolean verdict = verdicts.get(project);
+    if (verdict == null) {
+      verdict = project.isStale(this);
+      verdicts.put(project, verdict);
+    }
+    return verdict;
+  }
+
+  /**
+   * Remember that the project was built and is not stale anymore.
+   */
+  public void built(Project project) {
+    verdicts.put(project, Boolean.FALSE);
+  }
+}
@@ -1,9 +1,9 @@
 package aQute.bnd.concurrent;
 
+import aQute.bnd.build.BuildScheduler;
 import aQute.bnd.build.Project;
 import aQute.bnd.build.Workspace;
 import aQute.lib.osgi.Processor;
-import aQute.libg.forker.Forker;
 
 import java.io.File;
 import java.util.Collections;
@@ -72,29 +72,16 @@ public class MultiBuilder {
       future = new FutureTask<Throwable>(new Callable<Throwable>() {
 
         public Throwable call() {
-          Forker<Project> forker = new Forker<Project>(Processor.getExecutor());
-
           try {
             Thread.sleep(100);
             workspace.bracket(true);
             try {
-              for (final Project p : workspace.getAllProjects()) {
-                forker.doWhen(p.getDependson(), p, new Runnable() {
-
-                  public void run() {
-                    try {
-                      p.build();
-                    }
-                    catch (Exception e) {
-                      e.printStackTrace();
-                    }
-                  }
-                });
-              }
-              forker.start(0);
+              BuildScheduler scheduler = new BuildScheduler(Runtime.getRuntime().availableProcessors(), false);
+              scheduler.build(workspace.getAllProjects());
+              scheduler.report(workspace);
             }
             catch (InterruptedException e) {
-              forker.cancel(10000);
+              // canceled by a new build
             }
             finally {
               workspace.bracket(false);
@@ -1,5 +1,10 @@
 package aQute.bnd.maven.support;
 
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
 import java.io.File;
 import java.net.URI;
 
@@ -15,4 +20,28 @@ public class CachedPom extends Pom {
     return maven.getArtifact();
   }
 
+  @Override
+  protected File getDependenciesCache(Scope scope) {
+    return new File(maven.dir, scope + ".deps");
+  }
+
+  @Override
+  protected void parse(Document doc, XPath xp) throws Exception {
+    super.parse(doc, xp);
+
+    // Remember where the parents are in the local repository, the cached
+    // dependencies are outdated when one of them changes
+    Node parent = (Node)xp.evaluate("project/parent", doc, XPathConstants.NODE);
+    while (parent != null && parent.hasChildNodes()) {
+      String parentGroupId = xp.evaluate("groupId", parent).trim();
+      String parentArtifactId = xp.evaluate("artifactId", parent).trim();
+      String parentVersion = xp.evaluate("version", parent).trim();
+      File parentFile = maven.maven.getPomFile(parentGroupId, parentArtifactId, parentVersion);
+      if (pomFiles.contains(parentFile)) break;
+
+      pomFiles.add(parentFile);
+      if (!parentFile.isFile()) break;
+      parent = (Node)xp.evaluate("project/parent", dbf.newDocumentBuilder().parse(parentFile), XPathConstants.NODE);
+    }
+  }
 }
@@ -61,6 +61,14 @@ public class Maven {
     return entry;
   }
 
+  /**
+   * Answer where the pom is in the local repository, without creating an
+   * entry for it.
+   */
+  File getPomFile(String groupId, String artifactId, String version) {
+    return new File(repository, path(groupId, artifactId, version) + ".pom");
+  }
+
   private String path(String groupId, String artifactId, String version) {
     return groupId.replace('.', '/') + '/' + artifactId + '/' + version + "/" + artifactId + "-" + version;
   }
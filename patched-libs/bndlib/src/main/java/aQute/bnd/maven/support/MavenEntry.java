@@ -56,21 +56,20 @@ public class MavenEntry implements Closeable {
   }
 
   /**
-   * This is the method to get the POM for a cached entry.
+   * This is the method to get the POM for a cached entry. The POM of an
+   * entry is only fetched by one thread at a time, so all threads get the
+   * same POM.
    *
    * @param urls The allowed URLs
    * @return a CachedPom for this maven entry
    * @throws Exception If something goes haywire
    */
-  public CachedPom getPom(URI[] urls) throws Exception {
+  public synchronized CachedPom getPom(URI[] urls) throws Exception {
 
     // First check if we have the pom cached in memory
-    synchronized (this) {
-      // Try to find it in the in-memory cache
-      for (URI url : urls) {
-        CachedPom pom = poms.get(url);
-        if (pom != null) return pom;
-      }
+    for (URI url : urls) {
+      CachedPom pom = poms.get(url);
+      if (pom != null) return pom;
     }
 
     // Ok, we need to see if it exists on disk
@@ -10,12 +10,13 @@ import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.Writer;
+import java.io.*;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 public abstract class Pom {
   static DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
@@ -50,6 +51,8 @@ public abstract class Pom {
   List<Dependency> dependencies = new ArrayList<Dependency>();
   Exception exception;
   File pomFile;
+  // the files this pom was read from, the pom itself and then its parents
+  final List<File> pomFiles = new ArrayList<File>();
   String description = "";
   String name;
 
@@ -118,6 +121,7 @@ public abstract class Pom {
     this.maven = maven;
     this.home = home;
     this.pomFile = pomFile;
+    this.pomFiles.add(pomFile);
   }
 
   void parse() throws Exception {
@@ -161,7 +165,7 @@ public abstract class Pom {
       dep.version = replace(xp.evaluate("version", node).trim());
       dependencies.add(dep);
 
-      NodeList exclusions = (NodeList)xp.evaluate("exclusions", node, XPathConstants.NODESET);
+      NodeList exclusions = (NodeList)xp.evaluate("exclusions/exclusion", node, XPathConstants.NODESET);
       for (int e = 0; e < exclusions.getLength(); e++) {
         Node exc = exclusions.item(e);
         String exclGroupId = xp.evaluate("groupId", exc).trim();
@@ -195,43 +199,84 @@ public abstract class Pom {
     return dependencies;
   }
 
+  /**
+   * The maximum number of poms fetched ahead of the dependency that is
+   * processed.
+   */
+  static final int MAX_FETCHES = 8;
+
   class Rover {
 
     public Rover(Rover rover, Dependency d) {
       this.previous = rover;
       this.dependency = d;
+      if (rover == null || rover.exclusions.containsAll(d.exclusions)) {
+        this.exclusions = rover == null ? d.exclusions : rover.exclusions;
+      }
+      else {
+        this.exclusions = new HashSet<String>(rover.exclusions);
+        this.exclusions.addAll(d.exclusions);
+      }
     }
 
     final Rover previous;
     final Dependency dependency;
-
+    /**
+     * The exclusions of this dependency and the dependencies it was reached
+     * through, shared with the previous rover when nothing is added.
+     */
+    final Set<String> exclusions;
+    FutureTask<CachedPom> pom;
+
+    /**
+     * Exclusions apply to the transitive dependencies, not to the dependency
+     * that declares them.
+     */
     public boolean excludes(String name) {
-      return dependency.exclusions.contains(name) && previous != null && previous.excludes(name);
+      return previous != null && previous.exclusions.contains(name);
     }
   }
 
   public Set<Pom> getDependencies(Scope scope, URI... urls) throws Exception {
+    File cache = getDependenciesCache(scope);
+    if (cache != null) {
+      Set<Pom> result = readDependencies(cache, urls);
+      if (result != null) return result;
+    }
+
     Set<Pom> result = new LinkedHashSet<Pom>();
+    Map<String, FutureTask<CachedPom>> fetches = new HashMap<String, FutureTask<CachedPom>>();
+    boolean complete = true;
 
-    List<Rover> queue = new ArrayList<Rover>();
+    Deque<Rover> queue = new ArrayDeque<Rover>();
     for (Dependency d : dependencies) {
       queue.add(new Rover(null, d));
     }
 
-    while (!queue.isEmpty()) {
-      Rover rover = queue.remove(0);
-      Dependency dep = rover.dependency;
-      String groupId = replace(dep.groupId);
-      String artifactId = replace(dep.artifactId);
-      String version = replace(dep.version);
+    // The poms of the next dependencies in the queue are fetched in the
+    // background while the dependencies are processed in queue order
+    Deque<Rover> fetching = new ArrayDeque<Rover>();
+    try {
+      while (!queue.isEmpty() || !fetching.isEmpty()) {
+        while (fetching.size() < MAX_FETCHES && !queue.isEmpty()) {
+          Rover rover = queue.poll();
+          Dependency dep = rover.dependency;
+          String groupId = replace(dep.groupId);
+          String artifactId = replace(dep.artifactId);
+          String version = replace(dep.version);
 
-      String name = groupId + "+" + artifactId;
+          String name = groupId + "+" + artifactId;
 
-      if (rover.excludes(name) || dep.optional) continue;
+          if (rover.excludes(name) || dep.optional || dep.scope != scope) continue;
 
-      if (dep.scope == scope && !dep.optional) {
+          rover.pom = fetch(fetches, groupId, artifactId, version, urls);
+          fetching.add(rover);
+        }
+
+        Rover rover = fetching.poll();
+        Dependency dep = rover.dependency;
         try {
-          Pom sub = maven.getPom(groupId, artifactId, version, urls);
+          Pom sub = rover.pom.get();
           if (sub != null) {
             if (!result.contains(sub)) {
               result.add(sub);
@@ -239,46 +284,167 @@ public abstract class Pom {
                 queue.add(new Rover(rover, subd));
               }
             }
-          }
-          else if (rover.previous != null) {
-            System.out.println("Cannot find " + dep + " from " + rover.previous.dependency);
-          }
-          else {
-            System.out.println("Cannot find " + dep + " from top");
+            continue;
           }
         }
-        catch (Exception e) {
-          if (rover.previous != null) {
-            System.out.println("Cannot find " + dep + " from " + rover.previous.dependency);
-          }
-          else {
-            System.out.println("Cannot find " + dep + " from top");
-          }
+        catch (ExecutionException e) {
+          // reported as not found
+        }
+        complete = false;
+        if (rover.previous != null) {
+          System.out.println("Cannot find " + dep + " from " + rover.previous.dependency);
+        }
+        else {
+          System.out.println("Cannot find " + dep + " from top");
+        }
+      }
+    }
+    finally {
+      for (FutureTask<CachedPom> fetch : fetches.values()) {
+        fetch.cancel(false);
+      }
+    }
 
-//			boolean include = false;
-//			if (dep.scope == Scope.compile) {
-//				include = true;
-//			} else if (dep.scope == Scope.test) {
-//				include = rover.previous == null && (action == Action.compile || action == Action.test);
-//			} else if (dep.scope == Scope.runtime) {
-//				include = action == Action.run;
-//			}
-//			if (include) {
-//				Pom sub = maven.getPom(groupId, artifactId, version, urls);
-//				if (!result.contains(sub)) {
-//					result.add(sub);
-//					for (Dependency subd : sub.dependencies) {
-//						queue.add(new Rover(rover, subd));
-//					}
+    if (cache != null && complete) {
+      writeDependencies(cache, result, urls);
+    }
+    return result;
+  }
 
+  /**
+   * Answer the task that fetches a pom, scheduling it on the maven executor
+   * when the pom was not fetched before.
+   */
+  private FutureTask<CachedPom> fetch(Map<String, FutureTask<CachedPom>> fetches, final String groupId,
+                                      final String artifactId, final String version, final URI... urls) {
+    String gav = groupId + "+" + artifactId + "+" + version;
+    FutureTask<CachedPom> fetch = fetches.get(gav);
+    if (fetch == null) {
+      fetch = new FutureTask<CachedPom>(new Callable<CachedPom>() {
+        public CachedPom call() throws Exception {
+          return maven.getPom(groupId, artifactId, version, urls);
         }
+      });
+      fetches.put(gav, fetch);
+      maven.schedule(fetch);
+    }
+    return fetch;
+  }
+
+  /**
+   * Answer the file in which the resolved dependencies of the given scope
+   * are cached, or null if they are not cached.
+   */
+  protected File getDependenciesCache(Scope scope) throws Exception {
+    return null;
+  }
+
+  /**
+   * Read the cached dependencies. They are only used when they were resolved
+   * from the same repositories, and none of the files this pom and the
+   * dependency poms were read from, including their parents, changed since.
+   *
+   * @return the dependencies, or null if the cache is missing or outdated
+   */
+  private Set<Pom> readDependencies(File cache, URI... urls) throws Exception {
+    if (!cache.isFile()) return null;
+
+    List<String[]> gavs = new ArrayList<String[]>();
+    List<URI> cachedUrls = new ArrayList<URI>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(cache), "UTF-8"));
+    try {
+      String line = reader.readLine();
+      if (line == null || !line.equals("root\t" + pomFile.getAbsolutePath())) return null;
+
+      while ((line = reader.readLine()) != null) {
+        String parts[] = line.split("\t");
+        if (parts.length == 2 && parts[0].equals("url")) {
+          cachedUrls.add(new URI(parts[1]));
+        }
+        else if (parts.length == 3 && parts[0].equals("file")) {
+          if (!Long.toString(new File(parts[2]).lastModified()).equals(parts[1])) return null;
+        }
+        else if (parts.length == 4 && parts[0].equals("pom")) {
+          gavs.add(parts);
+        }
+        else {
+          return null;
+        }
+      }
+    }
+    catch (URISyntaxException e) {
+      return null;
+    }
+    finally {
+      reader.close();
+    }
+    if (!cachedUrls.equals(Arrays.asList(urls))) return null;
+
+    Map<String, FutureTask<CachedPom>> fetches = new HashMap<String, FutureTask<CachedPom>>();
+    Deque<FutureTask<CachedPom>> fetching = new ArrayDeque<FutureTask<CachedPom>>();
+    Set<Pom> result = new LinkedHashSet<Pom>();
+    Iterator<String[]> i = gavs.iterator();
+    try {
+      while (i.hasNext() || !fetching.isEmpty()) {
+        while (fetching.size() < MAX_FETCHES && i.hasNext()) {
+          String gav[] = i.next();
+          fetching.add(fetch(fetches, gav[1], gav[2], gav[3], urls));
+        }
+        Pom sub;
+        try {
+          sub = fetching.poll().get();
+        }
+        catch (ExecutionException e) {
+          sub = null;
+        }
+        if (sub == null) return null;
+        result.add(sub);
+      }
+    }
+    finally {
+      for (FutureTask<CachedPom> fetch : fetches.values()) {
+        fetch.cancel(false);
       }
     }
     return result;
   }
 
+  private void writeDependencies(File cache, Set<Pom> result, URI... urls) throws Exception {
+    for (Pom dep : result) {
+      if (dep.groupId == null || dep.artifactId == null || dep.version == null) return;
+    }
+
+    File tmp = File.createTempFile(cache.getName(), ".tmp", cache.getParentFile());
+    Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+    try {
+      writer.append("root\t").append(pomFile.getAbsolutePath()).append("\n");
+      for (URI url : urls) {
+        writer.append("url\t").append(url.toString()).append("\n");
+      }
+      writeFiles(writer, this);
+      for (Pom dep : result) {
+        writeFiles(writer, dep);
+        writer.append("pom\t").append(dep.getGroupId());
+        writer.append("\t").append(dep.getArtifactId());
+        writer.append("\t").append(dep.getVersion()).append("\n");
+      }
+    }
+    finally {
+      writer.close();
+    }
+    if (cache.exists() && !cache.delete() || !tmp.renameTo(cache)) {
+      tmp.delete();
+    }
+  }
+
+  private static void writeFiles(Writer writer, Pom pom) throws IOException {
+    for (File file : pom.pomFiles) {
+      writer.append("file\t").append(Long.toString(file.lastModified()));
+      writer.append("\t").append(file.getAbsolutePath()).append("\n");
+    }
+  }
+
   protected String replace(String in) {
-    System.out.println("replace: " + in);
     if (in == null) return "null";
 
     in = in.trim();
@@ -50,6 +50,7 @@ public class ProjectPom extends Pom {
           if (!properties.contains(key)) properties.put(key, parentPom.properties.get(key));
         }
         repositories.addAll(parentPom.repositories);
+        pomFiles.addAll(parentPom.pomFiles);
 
         setNames(parentPom);
       }
@@ -57,6 +58,7 @@ public class ProjectPom extends Pom {
         // This seems to be a bit bizarre, extending an external pom?
         CachedPom parentPom = maven.getPom(parentGroupId, parentArtifactId, parentVersion);
         dependencies.addAll(parentPom.dependencies);
+        pomFiles.addAll(parentPom.pomFiles);
         setNames(parentPom);
       }
     }
@@ -112,21 +114,6 @@ public class ProjectPom extends Pom {
 
   }
 
-  class Rover {
-
-    public Rover(Rover rover, Dependency d) {
-      this.previous = rover;
-      this.dependency = d;
-    }
-
-    final Rover previous;
-    final Dependency dependency;
-
-    public boolean excludes(String name) {
-      return dependency.exclusions.contains(name) && previous != null && previous.excludes(name);
-    }
-  }
-
   public Set<Pom> getDependencies(Scope action) throws Exception {
     return getDependencies(action, repositories.toArray(new URI[0]));
   }
@@ -135,10 +122,6 @@ public class ProjectPom extends Pom {
   final static Pattern MACRO = Pattern.compile("(\\$\\{\\s*([^}\\s]+)\\s*\\})");
 
   protected String replace(String in) {
-    System.out.println("Replce: " + in);
-    if (in == null) {
-      System.out.println("null??");
-    }
     Matcher matcher = MACRO.matcher(in);
     int last = 0;
     StringBuilder sb = new StringBuilder();
@@ -0,0 +1,23 @@
+package aQute.bnd.service.url;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * A connector that can revalidate a resource that was downloaded before, so
+ * the resource is only transferred again if it was modified.
+ */
+public interface ConditionalURLConnector extends URLConnector {
+  /**
+   * Connect to the URL unless the resource was not modified since it was
+   * downloaded with the given validators.
+   *
+   * @param url          the URL of the resource
+   * @param tag          the entity tag of the downloaded resource, or null
+   * @param lastModified the last modification time of the downloaded resource,
+   *                     or 0
+   * @return the content of the resource, or null if the resource was not
+   *         modified
+   */
+  TaggedData connectTagged(URL url, String tag, long lastModified) throws IOException;
+}
@@ -0,0 +1,39 @@
+package aQute.bnd.service.url;
+
+import java.io.InputStream;
+
+/**
+ * The content of a remote resource together with the validators the server
+ * sent for it, see {@link ConditionalURLConnector}.
+ */
+public class TaggedData {
+  private final String tag;
+  private final long lastModified;
+  private final InputStream inputStream;
+
+  public TaggedData(String tag, long lastModified, InputStream inputStream) {
+    this.tag = tag;
+    this.lastModified = lastModified;
+    this.inputStream = inputStream;
+  }
+
+  /**
+   * @return the entity tag (ETag) of the resource, or null if the server did
+   *         not send one
+   */
+  public String getTag() {
+    return tag;
+  }
+
+  /**
+   * @return the last modification time of the resource, or 0 if the server
+   *         did not send one
+   */
+  public long getLastModified() {
+    return lastModified;
+  }
+
+  public InputStream getInputStream() {
+    return inputStream;
+  }
+}
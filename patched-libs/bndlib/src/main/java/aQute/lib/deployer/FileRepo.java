@@ -9,6 +9,7 @@ import aQute.libg.version.VersionRange;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.jar.Manifest;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -27,6 +28,38 @@ public class FileRepo implements Plugin, RepositoryPlugin, Refreshable, Registry
   boolean dirty;
   String name;
 
+  /**
+   * The files of a bsn directory by version, as found when the directory had
+   * the given time stamp.
+   */
+  static class DirectoryIndex {
+    final long lastModified;
+    final long scanned;
+    final NavigableMap<Version, File> files;
+    final List<String> names;
+
+    DirectoryIndex(long lastModified, long scanned, NavigableMap<Version, File> files, List<String> names) {
+      this.lastModified = lastModified;
+      this.scanned = scanned;
+      this.files = files;
+      this.names = names;
+    }
+
+    /**
+     * A directory changed in the same time stamp interval as it was scanned
+     * may have changed after the scan without a new time stamp, so it is
+     * only trusted after a scan that was done well after the change.
+     */
+    boolean isValid(File dir) {
+      return dir.lastModified() == lastModified && scanned - lastModified > RACY_INTERVAL;
+    }
+  }
+
+  static final long RACY_INTERVAL = 2000;
+
+  final Map<String, DirectoryIndex> index = new ConcurrentHashMap<String, DirectoryIndex>();
+  volatile DirectoryIndex rootIndex;
+
   public FileRepo() {
   }
 
@@ -46,6 +79,7 @@ public class FileRepo implements Plugin, RepositoryPlugin, Refreshable, Registry
 
     root = new File(location);
     if (!root.isDirectory()) throw new IllegalArgumentException("Repository is not a valid directory " + root);
+    clearIndex();
 
     String readonly = (String)map.get(READONLY);
     if (readonly != null && Boolean.valueOf(readonly).booleanValue()) canWrite = false;
@@ -67,8 +101,8 @@ public class FileRepo implements Plugin, RepositoryPlugin, Refreshable, Registry
     //
     // Check if the entry exists
     //
-    File f = new File(root, bsn);
-    if (!f.isDirectory()) return null;
+    NavigableMap<Version, File> all = getVersions(bsn);
+    if (all == null) return null;
 
     //
     // The version range we are looking for can
@@ -83,28 +117,17 @@ public class FileRepo implements Plugin, RepositoryPlugin, Refreshable, Registry
     }
 
     //
-    // Iterator over all the versions for this BSN.
-    // Create a sorted map over the version as key
-    // and the file as URL as value. Only versions
-    // that match the desired range are included in
-    // this list.
+    // The versions of the BSN that are in the range,
+    // sorted by version.
     //
-    File instances[] = f.listFiles();
-    SortedMap<Version, File> versions = new TreeMap<Version, File>();
-    for (int i = 0; i < instances.length; i++) {
-      Matcher m = REPO_FILE.matcher(instances[i].getName());
-      if (m.matches() && m.group(1).equals(bsn)) {
-        String versionString = m.group(2);
-        Version version;
-        if (versionString.equals("latest")) {
-          version = new Version(Integer.MAX_VALUE);
-        }
-        else {
-          version = new Version(versionString);
-        }
-
-        if (range.includes(version) || versionString.equals(versionRange)) versions.put(version, instances[i]);
-      }
+    SortedMap<Version, File> versions;
+    if (range.isRange()) {
+      // an inverted range matches nothing, subMap would reject it
+      if (range.getLow().compareTo(range.getHigh()) > 0) return EMPTY_FILES;
+      versions = all.subMap(range.getLow(), range.includeLow(), range.getHigh(), range.includeHigh());
+    }
+    else {
+      versions = all.tailMap(range.getLow(), true);
     }
 
     File[] files = (File[])versions.values().toArray(EMPTY_FILES);
@@ -161,6 +184,9 @@ public class FileRepo implements Plugin, RepositoryPlugin, Refreshable, Registry
       reporter.trace("NOT Updating " + fName + " (repo is newer)");
     }
 
+    index.remove(bsn);
+    rootIndex = null;
+
     File latest = new File(dir, bsn + "-latest.jar");
     if (latest.exists() && latest.lastModified() < jar.lastModified()) {
       jar.write(latest);
@@ -186,6 +212,7 @@ public class FileRepo implements Plugin, RepositoryPlugin, Refreshable, Registry
   public void setLocation(String string) {
     root = new File(string);
     if (!root.isDirectory()) throw new IllegalArgumentException("Invalid repository directory");
+    clearIndex();
   }
 
   public void setReporter(Reporter reporter) {
@@ -202,12 +229,9 @@ public class FileRepo implements Plugin, RepositoryPlugin, Refreshable, Registry
       if (reporter != null) reporter.error("FileRepo root directory is not set.");
     }
     else {
-      File[] list = root.listFiles();
-      if (list != null) {
-        for (File f : list) {
-          if (!f.isDirectory()) continue; // ignore non-directories
-          String fileName = f.getName();
-          if (fileName.charAt(0) == '.') continue; // ignore hidden files
+      List<String> names = getBsns();
+      if (names != null) {
+        for (String fileName : names) {
           if (pattern == null || pattern.matches(fileName)) result.add(fileName);
         }
       }
@@ -217,23 +241,90 @@ public class FileRepo implements Plugin, RepositoryPlugin, Refreshable, Registry
     return result;
   }
 
+  /**
+   * Answer the names of the bsn directories. The root directory is only read
+   * again if its time stamp changed since it was read last.
+   *
+   * @return the names, or null if the root directory does not exist
+   */
+  List<String> getBsns() {
+    DirectoryIndex entry = rootIndex;
+    if (entry != null && entry.isValid(root)) return entry.names;
+
+    long lastModified = root.lastModified();
+    long scanned = System.currentTimeMillis();
+    File[] list = root.listFiles();
+    if (list == null) {
+      rootIndex = null;
+      return null;
+    }
+
+    List<String> names = new ArrayList<String>();
+    for (File f : list) {
+      if (!f.isDirectory()) continue; // ignore non-directories
+      String fileName = f.getName();
+      if (fileName.charAt(0) == '.') continue; // ignore hidden files
+      names.add(fileName);
+    }
+    names = Collections.unmodifiableList(names);
+    rootIndex = new DirectoryIndex(lastModified, scanned, null, names);
+    return names;
+  }
+
   public List<Version> versions(String bsn) throws Exception {
     init();
+    NavigableMap<Version, File> versions = getVersions(bsn);
+    if (versions == null) return null;
+    return new ArrayList<Version>(versions.keySet());
+  }
+
+  /**
+   * Answer the files of a bsn by version. The directory of the bsn is only
+   * read again if its time stamp changed since it was read last.
+   *
+   * @return the files, shared and not to be modified, or null if there is
+   *         no directory for the bsn
+   */
+  NavigableMap<Version, File> getVersions(String bsn) {
     File dir = new File(root, bsn);
-    if (dir.isDirectory()) {
-      String versions[] = dir.list();
-      List<Version> list = new ArrayList<Version>();
-      for (String v : versions) {
-        Matcher m = REPO_FILE.matcher(v);
-        if (m.matches()) {
-          String version = m.group(2);
-          if (version.equals("latest")) version = Integer.MAX_VALUE + "";
-          list.add(new Version(version));
+    DirectoryIndex entry = index.get(bsn);
+    if (entry != null && entry.isValid(dir)) return entry.files;
+
+    long lastModified = dir.lastModified();
+    long scanned = System.currentTimeMillis();
+    File instances[] = dir.listFiles();
+    if (instances == null) {
+      index.remove(bsn);
+      return null;
+    }
+
+    NavigableMap<Version, File> versions = new TreeMap<Version, File>();
+    for (int i = 0; i < instances.length; i++) {
+      Matcher m = REPO_FILE.matcher(instances[i].getName());
+      if (m.matches() && m.group(1).equals(bsn)) {
+        String versionString = m.group(2);
+        Version version;
+        if (versionString.equals("latest")) {
+          version = new Version(Integer.MAX_VALUE);
+        }
+        else {
+          try {
+            version = new Version(versionString);
+          }
+          catch (IllegalArgumentException e) {
+            continue;
+          }
         }
+        versions.put(version, instances[i]);
       }
-      return list;
     }
-    return null;
+    index.put(bsn, new DirectoryIndex(lastModified, scanned, versions, null));
+    return versions;
+  }
+
+  void clearIndex() {
+    index.clear();
+    rootIndex = null;
   }
 
   public String toString() {
@@ -245,6 +336,7 @@ public class FileRepo implements Plugin, RepositoryPlugin, Refreshable, Registry
   }
 
   public boolean refresh() {
+    clearIndex();
     if (dirty) {
       dirty = false;
       return true;
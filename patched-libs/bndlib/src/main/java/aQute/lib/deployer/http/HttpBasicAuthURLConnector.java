@@ -1,8 +1,10 @@
 package aQute.lib.deployer.http;
 
 import aQute.bnd.service.Plugin;
-import aQute.bnd.service.url.URLConnector;
+import aQute.bnd.service.url.ConditionalURLConnector;
+import aQute.bnd.service.url.TaggedData;
 import aQute.lib.base64.Base64;
+import aQute.lib.deployer.obr.DefaultURLConnector;
 import aQute.lib.io.IO;
 import aQute.libg.glob.Glob;
 import aQute.libg.reporter.Reporter;
@@ -17,7 +19,7 @@ import java.util.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 
-public class HttpBasicAuthURLConnector implements URLConnector, Plugin {
+public class HttpBasicAuthURLConnector implements ConditionalURLConnector, Plugin {
 
   private static final String PREFIX_PATTERN = "pattern.";
   private static final String PREFIX_USER = "uid.";
@@ -93,24 +95,26 @@ public class HttpBasicAuthURLConnector implements URLConnector, Plugin {
   }
 
   public InputStream connect(URL url) throws IOException {
-    init();
-
-    for (Mapping mapping : mappings) {
-      Matcher matcher = mapping.urlPattern.matcher(url.toString());
-      if (matcher.find()) return connect(url, mapping.user, mapping.pass);
-    }
+    return openConnection(url).getInputStream();
+  }
 
-    return url.openStream();
+  public TaggedData connectTagged(URL url, String tag, long lastModified) throws IOException {
+    return DefaultURLConnector.connectTagged(openConnection(url), tag, lastModified);
   }
 
-  private InputStream connect(URL url, String user, String pass) throws IOException {
-    String authString = user + ":" + pass;
-    String encoding = Base64.encodeBase64(authString.getBytes());
+  private URLConnection openConnection(URL url) throws IOException {
+    init();
 
     URLConnection connection = url.openConnection();
-    connection.setRequestProperty("Authorization", "Basic " + encoding);
-    return connection.getInputStream();
+    for (Mapping mapping : mappings) {
+      Matcher matcher = mapping.urlPattern.matcher(url.toString());
+      if (matcher.find()) {
+        String authString = mapping.user + ":" + mapping.pass;
+        String encoding = Base64.encodeBase64(authString.getBytes());
+        connection.setRequestProperty("Authorization", "Basic " + encoding);
+        break;
+      }
+    }
+    return connection;
   }
-
-
 }
@@ -37,6 +37,11 @@ public abstract class AbstractBaseOBR implements RegistryPlugin, Plugin, RemoteR
   public static final String PROP_NAME = "name";
   public static final String PROP_RESOLUTION_MODE = "mode";
   public static final String PROP_RESOLUTION_MODE_ANY = "any";
+  public static final String PROP_PARALLELISM = "parallelism";
+  public static final String PROP_MAX_REFERRAL_DEPTH = "maxReferralDepth";
+
+  public static final int DEFAULT_PARALLELISM = 4;
+  public static final int DEFAULT_MAX_REFERRAL_DEPTH = 8;
 
   public static final String REPOSITORY_FILE_NAME = "repository.xml";
 
@@ -45,13 +50,64 @@ public abstract class AbstractBaseOBR implements RegistryPlugin, Plugin, RemoteR
   protected String name = this.getClass().getName();
   protected Set<OBRResolutionMode> supportedModes = EnumSet.allOf(OBRResolutionMode.class);
 
-  private boolean initialised = false;
-  private final Map<String, SortedMap<Version, Resource>> pkgResourceMap = new HashMap<String, SortedMap<Version, Resource>>();
-  private final Map<String, SortedMap<Version, Resource>> bsnMap = new HashMap<String, SortedMap<Version, Resource>>();
+  protected int parallelism = DEFAULT_PARALLELISM;
+  protected int maxReferralDepth = DEFAULT_MAX_REFERRAL_DEPTH;
 
-  protected void addResourceToIndex(Resource resource) {
-    addBundleSymbolicNameToIndex(resource);
-    addPackagesToIndex(resource);
+  /**
+   * The resources by bundle symbolic name and by exported package. An index
+   * is completely built before it is published, lookups read the published
+   * index without locking. A published index is never modified, it is copied
+   * to add resources.
+   */
+  static class Indexes {
+    final Map<String, SortedMap<Version, Resource>> bsnMap;
+    final Map<String, SortedMap<Version, Resource>> pkgResourceMap;
+    // the version maps that were created for this index, other version maps
+    // are shared with the index it was copied from
+    private final Set<SortedMap<Version, Resource>> owned = Collections
+        .newSetFromMap(new IdentityHashMap<SortedMap<Version, Resource>, Boolean>());
+
+    Indexes() {
+      bsnMap = new HashMap<String, SortedMap<Version, Resource>>();
+      pkgResourceMap = new HashMap<String, SortedMap<Version, Resource>>();
+    }
+
+    /**
+     * Copy an index. The version maps are shared until they are modified.
+     */
+    Indexes(Indexes indexes) {
+      bsnMap = new HashMap<String, SortedMap<Version, Resource>>(indexes.bsnMap);
+      pkgResourceMap = new HashMap<String, SortedMap<Version, Resource>>(indexes.pkgResourceMap);
+    }
+
+    void add(Map<String, SortedMap<Version, Resource>> map, String key, Version version, Resource resource) {
+      SortedMap<Version, Resource> versionMap = map.get(key);
+      if (versionMap == null) {
+        versionMap = new TreeMap<Version, Resource>();
+        owned.add(versionMap);
+        map.put(key, versionMap);
+      }
+      else if (!owned.contains(versionMap)) {
+        versionMap = new TreeMap<Version, Resource>(versionMap);
+        owned.add(versionMap);
+        map.put(key, versionMap);
+      }
+      versionMap.put(version, resource);
+    }
+  }
+
+  // Held while the indexes are read. The repository itself may be locked when
+  // this lock is taken, but must not be locked while it is held.
+  private final Object initLock = new Object();
+  private volatile boolean initialised = false;
+  // replaced on every init, so lookups that are in progress are not disturbed
+  private volatile Indexes indexes = new Indexes();
+  // parsed versions by their version string, only used while initLock is held
+  private final Map<String, Version> versionCache = new HashMap<String, Version>();
+
+  void addResourceToIndex(Indexes indexes, Resource resource) {
+    addBundleSymbolicNameToIndex(indexes, resource);
+    addPackagesToIndex(indexes, resource);
   }
 
   protected synchronized void reset() {
@@ -68,60 +124,92 @@ public abstract class AbstractBaseOBR implements RegistryPlugin, Plugin, RemoteR
   protected void initialiseIndexes() throws Exception {
   }
 
-  protected final synchronized void init() throws Exception {
-    if (!initialised) {
-      bsnMap.clear();
-      pkgResourceMap.clear();
+  /**
+   * Read the indexes. The indexes and their referrals are downloaded and
+   * parsed concurrently into new indexes, which replace the current ones when
+   * they are complete. The configuration is read before the indexes are
+   * read, so the repository is not locked meanwhile.
+   */
+  protected final void init() throws Exception {
+    if (initialised) return;
+
+    int parallelism;
+    int maxReferralDepth;
+    Reporter reporter;
+    synchronized (this) {
+      parallelism = this.parallelism;
+      maxReferralDepth = this.maxReferralDepth;
+      reporter = this.reporter;
+    }
+    URLConnector connector = getConnector();
+    File cacheDirectory = getCacheDirectory();
+
+    synchronized (initLock) {
+      if (initialised) return;
 
       initialiseIndexes();
 
-      final URLConnector connector = getConnector();
+      final Indexes indexes = new Indexes();
       IRepositoryListener listener = new IRepositoryListener() {
         public boolean processResource(Resource resource) {
-          addResourceToIndex(resource);
+          addResourceToIndex(indexes, resource);
           return true;
         }
 
         public boolean processReferral(String fromUrl, Referral referral, int maxDepth, int currentDepth) {
-          try {
-            URL indexLocation = new URL(referral.getUrl());
-            try {
-              CachingURLResourceHandle indexHandle =
-                new CachingURLResourceHandle(indexLocation.toExternalForm(), null, getCacheDirectory(), connector,
-                                             CachingMode.PreferRemote);
-              indexHandle.setReporter(reporter);
-              return readIndex(indexLocation.toString(), new FileInputStream(indexHandle.request()), this);
-            }
-            catch (Exception e) {
-              reporter.error("Unable to read referral index at URL '%s' from parent index '%s': %s", indexLocation, fromUrl, e);
-            }
-
-          }
-          catch (MalformedURLException e) {
-            reporter.error("Invalid referral URL '%s' from parent index '%s': %s", referral.getUrl(), fromUrl, e);
-          }
-          return false;
+          // the loader follows the referrals
+          return true;
         }
       };
 
-      Collection<URL> indexes = getOBRIndexes();
-      for (URL indexLocation : indexes) {
-        try {
-          CachingURLResourceHandle indexHandle =
-            new CachingURLResourceHandle(indexLocation.toExternalForm(), null, getCacheDirectory(), connector, CachingMode.PreferRemote);
-          indexHandle.setReporter(reporter);
-          File indexFile = indexHandle.request();
-          readIndex(indexLocation.toExternalForm(), new FileInputStream(indexFile), listener);
-        }
-        catch (Exception e) {
-          reporter.error("Unable to read index at URL '%s': %s", indexLocation, e);
-        }
+      IndexLoader loader = new IndexLoader(this, connector, cacheDirectory, parallelism, maxReferralDepth);
+      try {
+        loader.load(getOBRIndexes(), listener, versionCache, reporter);
+      }
+      finally {
+        versionCache.clear();
       }
 
+      this.indexes = indexes;
       initialised = true;
     }
   }
 
+  /**
+   * Add the resources of an index to the repository without reading all
+   * indexes again. Nothing is done if the repository is not initialised, the
+   * index is expected to be read by the next init then. The resources are
+   * added to a copy of the current indexes, which replaces them when the
+   * index is read.
+   *
+   * @param baseUrl the URL the resources of the index are relative to
+   * @param index   the index file
+   */
+  protected final void addIndex(String baseUrl, File index) throws Exception {
+    synchronized (initLock) {
+      if (!initialised) return;
+
+      final Indexes indexes = new Indexes(this.indexes);
+      try {
+        readIndex(baseUrl, new FileInputStream(index), new IRepositoryListener() {
+          public boolean processResource(Resource resource) {
+            addResourceToIndex(indexes, resource);
+            return true;
+          }
+
+          public boolean processReferral(String parentUrl, Referral referral, int maxDepth, int currentDepth) {
+            return true;
+          }
+        });
+      }
+      finally {
+        versionCache.clear();
+      }
+
+      this.indexes = indexes;
+    }
+  }
+
   private URLConnector getConnector() {
     URLConnector connector;
     synchronized (this) {
@@ -137,6 +225,8 @@ public abstract class AbstractBaseOBR implements RegistryPlugin, Plugin, RemoteR
 
   public synchronized void setProperties(Map<String, String> map) {
     if (map.containsKey(PROP_NAME)) name = map.get(PROP_NAME);
+    if (map.containsKey(PROP_PARALLELISM)) parallelism = parseInt(map, PROP_PARALLELISM, 1);
+    if (map.containsKey(PROP_MAX_REFERRAL_DEPTH)) maxReferralDepth = parseInt(map, PROP_MAX_REFERRAL_DEPTH, 0);
 
     if (map.containsKey(PROP_RESOLUTION_MODE)) {
       supportedModes = EnumSet.noneOf(OBRResolutionMode.class);
@@ -158,6 +248,15 @@ public abstract class AbstractBaseOBR implements RegistryPlugin, Plugin, RemoteR
     }
   }
 
+  private int parseInt(Map<String, String> map, String key, int min) {
+    try {
+      return Math.max(min, Integer.parseInt(map.get(key).trim()));
+    }
+    catch (NumberFormatException e) {
+      throw new IllegalArgumentException(String.format("Invalid value for '%s', not a number: %s", key, map.get(key)));
+    }
+  }
+
   public File[] get(String bsn, String range) throws Exception {
     ResourceHandle[] handles = getHandles(bsn, range);
 
@@ -179,7 +278,7 @@ public abstract class AbstractBaseOBR implements RegistryPlugin, Plugin, RemoteR
     if ("project".equals(rangeStr)) return null;
 
 
-    SortedMap<Version, Resource> versionMap = bsnMap.get(bsn);
+    SortedMap<Version, Resource> versionMap = indexes.bsnMap.get(bsn);
     if (versionMap == null || versionMap.isEmpty()) return null;
     List<Resource> resources = narrowVersionsByVersionRange(versionMap, rangeStr);
     List<ResourceHandle> handles = mapResourcesToHandles(resources);
@@ -230,7 +329,7 @@ public abstract class AbstractBaseOBR implements RegistryPlugin, Plugin, RemoteR
     Pattern pattern = regex != null ? Pattern.compile(regex) : null;
     List<String> result = new LinkedList<String>();
 
-    for (String bsn : bsnMap.keySet()) {
+    for (String bsn : indexes.bsnMap.keySet()) {
       if (pattern == null || pattern.matcher(bsn).matches()) result.add(bsn);
     }
 
@@ -239,7 +338,7 @@ public abstract class AbstractBaseOBR implements RegistryPlugin, Plugin, RemoteR
 
   public List<Version> versions(String bsn) throws Exception {
     init();
-    SortedMap<Version, Resource> versionMap = bsnMap.get(bsn);
+    SortedMap<Version, Resource> versionMap = indexes.bsnMap.get(bsn);
     List<Version> list;
     if (versionMap != null) {
       list = new ArrayList<Version>(versionMap.size());
@@ -255,25 +354,13 @@ public abstract class AbstractBaseOBR implements RegistryPlugin, Plugin, RemoteR
     return name;
   }
 
-  void addBundleSymbolicNameToIndex(Resource resource) {
+  void addBundleSymbolicNameToIndex(Indexes indexes, Resource resource) {
     String bsn = resource.getSymbolicName();
-    Version version;
-    String versionStr = resource.getVersion();
-    try {
-      version = new Version(versionStr);
-    }
-    catch (Exception e) {
-      version = new Version("0.0.0");
-    }
-    SortedMap<Version, Resource> versionMap = bsnMap.get(bsn);
-    if (versionMap == null) {
-      versionMap = new TreeMap<Version, Resource>();
-      bsnMap.put(bsn, versionMap);
-    }
-    versionMap.put(version, resource);
+    Version version = parseVersion(resource.getVersion());
+    indexes.add(indexes.bsnMap, bsn, version, resource);
   }
 
-  void addPackagesToIndex(Resource resource) {
+  void addPackagesToIndex(Indexes indexes, Resource resource) {
     for (Capability capability : resource.getCapabilities()) {
       if (CapabilityType.PACKAGE.getTypeName().equals(capability.getName())) {
         String pkgName = null;
@@ -286,26 +373,77 @@ public abstract class AbstractBaseOBR implements RegistryPlugin, Plugin, RemoteR
           else if (Property.VERSION.equals(prop.getName())) versionStr = prop.getValue();
         }
 
-        Version version;
-        try {
-          version = new Version(versionStr);
-        }
-        catch (Exception e) {
-          version = new Version("0.0.0");
-        }
+        Version version = parseVersion(versionStr);
 
         if (pkgName != null) {
-          SortedMap<Version, Resource> versionMap = pkgResourceMap.get(pkgName);
-          if (versionMap == null) {
-            versionMap = new TreeMap<Version, Resource>();
-            pkgResourceMap.put(pkgName, versionMap);
-          }
-          versionMap.put(version, resource);
+          indexes.add(indexes.pkgResourceMap, pkgName, version, resource);
         }
       }
     }
   }
 
+  /**
+   * Parse a version of the index, the versions that are parsed while the
+   * indexes are read are remembered.
+   *
+   * @return the version, or 0.0.0 if the version is invalid
+   */
+  Version parseVersion(String versionStr) {
+    Version version = versionStr != null ? versionCache.get(versionStr) : null;
+    if (version == null) {
+      try {
+        version = new Version(versionStr);
+      }
+      catch (Exception e) {
+        version = new Version("0.0.0");
+      }
+      if (versionStr != null) versionCache.put(versionStr, version);
+    }
+    return version;
+  }
+
+  /**
+   * Read the index of the handle. If the index is a downloaded file, a binary
+   * snapshot of it is kept next to it and is used instead of the XML as long
+   * as the content of the XML does not change.
+   *
+   * @param versions receives the versions parsed by the snapshot
+   * @param reporter receives the messages about the snapshot, it is called
+   *                 on the thread that reads the index
+   * @return Whether to continue parsing other indexes
+   */
+  boolean readIndex(String baseUrl, CachingURLResourceHandle handle, IRepositoryListener listener, Map<String, Version> versions,
+                    Reporter reporter) throws Exception {
+    File indexFile = handle.request();
+    String hash = handle.getContentHash();
+    if (hash == null) return readIndex(baseUrl, new FileInputStream(indexFile), listener);
+
+    File snapshotFile = IndexSnapshot.getFile(indexFile);
+    try {
+      IndexSnapshot snapshot = IndexSnapshot.load(snapshotFile, hash, baseUrl);
+      if (snapshot != null) {
+        versions.putAll(snapshot.getVersions());
+        return snapshot.replay(listener);
+      }
+    }
+    catch (IOException e) {
+      if (reporter != null) reporter.warning("Cannot read index snapshot %s, parsing the index: %s", snapshotFile, e);
+    }
+
+    IndexSnapshot snapshot = new IndexSnapshot(listener);
+    if (!readIndex(baseUrl, new FileInputStream(indexFile), snapshot)) {
+      // incomplete
+      return false;
+    }
+    try {
+      snapshot.save(snapshotFile, hash, baseUrl);
+    }
+    catch (IOException e) {
+      if (reporter != null) reporter.warning("Cannot write index snapshot %s: %s", snapshotFile, e);
+    }
+    return true;
+  }
+
   /**
    * @return Whether to continue parsing other indexes
    * @throws IOException
@@ -326,15 +464,30 @@ public abstract class AbstractBaseOBR implements RegistryPlugin, Plugin, RemoteR
     }
   }
 
-  List<Resource> narrowVersionsByFilter(String pkgName, SortedMap<Version, Resource> versionMap, Filter filter) {
-    List<Resource> result = new ArrayList<Resource>(versionMap.size());
+  /**
+   * The attributes of a resource that a package filter is matched against.
+   */
+  static class PackageCandidate extends Hashtable<String, String> {
+    private static final long serialVersionUID = 1L;
+
+    final Resource resource;
+
+    PackageCandidate(String pkgName, Version version, Resource resource) {
+      this.resource = resource;
+      put("package", pkgName);
+      put("version", version.toString());
+    }
+  }
 
-    Dictionary<String, String> dict = new Hashtable<String, String>();
-    dict.put("package", pkgName);
+  List<Resource> narrowVersionsByFilter(String pkgName, SortedMap<Version, Resource> versionMap, Filter filter) {
+    List<PackageCandidate> candidates = new ArrayList<PackageCandidate>(versionMap.size());
+    for (Map.Entry<Version, Resource> entry : versionMap.entrySet()) {
+      candidates.add(new PackageCandidate(pkgName, entry.getKey(), entry.getValue()));
+    }
 
-    for (Version version : versionMap.keySet()) {
-      dict.put("version", version.toString());
-      if (filter.match(dict)) result.add(versionMap.get(version));
+    List<Resource> result = new ArrayList<Resource>(versionMap.size());
+    for (PackageCandidate candidate : filter.select(candidates)) {
+      result.add(candidate.resource);
     }
 
     return result;
@@ -427,7 +580,7 @@ public abstract class AbstractBaseOBR implements RegistryPlugin, Plugin, RemoteR
     if (rangeStr == null) rangeStr = "0.0.0";
 
     if (strategy == Strategy.EXACT) {
-      return findExactMatch(bsn, rangeStr, bsnMap);
+      return findExactMatch(bsn, rangeStr, indexes.bsnMap);
     }
 
     ResourceHandle[] handles = getHandles(bsn, rangeStr);
@@ -452,7 +605,7 @@ public abstract class AbstractBaseOBR implements RegistryPlugin, Plugin, RemoteR
     init();
     if (rangeStr == null) rangeStr = "0.0.0";
 
-    SortedMap<Version, Resource> versionMap = pkgResourceMap.get(pkgName);
+    SortedMap<Version, Resource> versionMap = indexes.pkgResourceMap.get(pkgName);
     if (versionMap == null) return null;
 
     // Was a filter expression supplied?
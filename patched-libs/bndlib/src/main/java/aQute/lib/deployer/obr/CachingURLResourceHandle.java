@@ -1,13 +1,18 @@
 package aQute.lib.deployer.obr;
 
 import aQute.bnd.service.ResourceHandle;
+import aQute.bnd.service.url.ConditionalURLConnector;
+import aQute.bnd.service.url.TaggedData;
 import aQute.bnd.service.url.URLConnector;
-import aQute.lib.io.IO;
+import aQute.lib.hex.Hex;
 import aQute.libg.reporter.Reporter;
 
 import java.io.*;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
 
 /**
  * <p>
@@ -25,6 +30,15 @@ import java.net.URLEncoder;
  * resource, and only uses the pre-downloaded cache if the remote could not be
  * downloaded (e.g. because the network is offline).
  * </p>
+ * <p/>
+ * <p>
+ * The entity tag, the modification time and the SHA-1 of a downloaded resource
+ * are kept next to the cached file. If the connector is a
+ * {@link ConditionalURLConnector}, a remote resource that is cached already is
+ * only downloaded again if the server reports it as modified. Downloads are
+ * written to a temporary file in the cache and renamed, and a cached file is
+ * left untouched if the downloaded content is identical.
+ * </p>
  *
  * @author njbartlett
  */
@@ -46,6 +60,11 @@ public class CachingURLResourceHandle implements ResourceHandle {
   static final String FILE_SCHEME = "file:";
   static final String HTTP_SCHEME = "http:";
   static final String UTF_8 = "UTF-8";
+  static final String INFO_SUFFIX = ".info";
+  static final String INFO_TAG = "etag";
+  static final String INFO_LAST_MODIFIED = "lastModified";
+  static final String INFO_SHA = "sha";
+  static final int BUFFER_SIZE = 65536;
 
   final File cacheDir;
   final URLConnector connector;
@@ -59,6 +78,9 @@ public class CachingURLResourceHandle implements ResourceHandle {
   // The cached file copy of the resource, if it is remote and has been downloaded.
   final File cachedFile;
 
+  // The validators of the cached file, if it is remote, otherwise null.
+  final File infoFile;
+
   final CachingMode mode;
   boolean downloaded = false; // only used with mode=PreferRemote
 
@@ -118,6 +140,7 @@ public class CachingURLResourceHandle implements ResourceHandle {
         this.cachedFile = mapRemoteURL(this.url);
       }
     }
+    this.infoFile = cachedFile != null ? new File(cachedFile.getParentFile(), cachedFile.getName() + INFO_SUFFIX) : null;
   }
 
   public void setReporter(Reporter reporter) {
@@ -200,17 +223,15 @@ public class CachingURLResourceHandle implements ResourceHandle {
       case PreferCache:
         if (!cachedFile.exists()) {
           cacheDir.mkdirs();
-          downloadToFile(url, cachedFile);
+          download(false);
         }
         return cachedFile;
       case PreferRemote:
-        File tempFile = File.createTempFile("download", ".tmp");
+        if (downloaded) return cachedFile;
         try {
-          downloadToFile(url, tempFile);
-
-          // remote download succeeded... copy tmp to cache
           cacheDir.mkdirs();
-          IO.copy(tempFile, cachedFile);
+          download(true);
+          downloaded = true;
           return cachedFile;
         }
         catch (IOException e) {
@@ -229,34 +250,146 @@ public class CachingURLResourceHandle implements ResourceHandle {
     }
   }
 
-  void downloadToFile(URL url, File file) throws IOException {
-    InputStream in = null;
+  /**
+   * Answer the SHA-1 of the content of the cached file, as it was recorded
+   * when the file was downloaded.
+   *
+   * @return the hex encoded SHA-1, or null if the resource is local or was
+   *         not downloaded by this version
+   */
+  public String getContentHash() {
+    if (infoFile == null || !cachedFile.isFile()) return null;
+    return readInfo().getProperty(INFO_SHA);
+  }
+
+  /**
+   * Download the resource to the cached file.
+   *
+   * @param conditional if true and the resource is cached already, it is only
+   *                    downloaded if it was modified
+   */
+  void download(boolean conditional) throws IOException {
+    Properties info = cachedFile.isFile() ? readInfo() : new Properties();
+
+    TaggedData data;
+    if (connector instanceof ConditionalURLConnector) {
+      String tag = conditional ? info.getProperty(INFO_TAG) : null;
+      long lastModified = conditional ? Long.parseLong(info.getProperty(INFO_LAST_MODIFIED, "0")) : 0;
+      data = ((ConditionalURLConnector)connector).connectTagged(url, tag, lastModified);
+      if (data == null) {
+        // not modified
+        return;
+      }
+    }
+    else {
+      data = new TaggedData(null, 0, connector.connect(url));
+    }
+
+    File tempFile = File.createTempFile("download", ".tmp", cachedFile.getParentFile());
+    try {
+      String sha = downloadToFile(data.getInputStream(), tempFile);
+      if (cachedFile.isFile() && sha.equals(info.getProperty(INFO_SHA))) {
+        // same content, keep the cached file
+        tempFile.delete();
+      }
+      else {
+        rename(tempFile, cachedFile);
+      }
+
+      Properties newInfo = new Properties();
+      if (data.getTag() != null) newInfo.setProperty(INFO_TAG, data.getTag());
+      if (data.getLastModified() > 0) newInfo.setProperty(INFO_LAST_MODIFIED, Long.toString(data.getLastModified()));
+      newInfo.setProperty(INFO_SHA, sha);
+      writeInfo(newInfo);
+    }
+    finally {
+      if (tempFile.exists()) tempFile.delete();
+    }
+  }
+
+  /**
+   * Copy the stream to the file.
+   *
+   * @return the hex encoded SHA-1 of the content
+   */
+  static String downloadToFile(InputStream in, File file) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IOException("SHA-1 not available: " + e);
+    }
+
     OutputStream out = null;
     try {
-      in = connector.connect(url);
       out = new FileOutputStream(file);
 
-      byte[] buf = new byte[1024];
+      byte[] buf = new byte[BUFFER_SIZE];
       for (; ; ) {
-        int bytes = in.read(buf, 0, 1024);
+        int bytes = in.read(buf, 0, buf.length);
         if (bytes < 0) break;
+        digest.update(buf, 0, bytes);
         out.write(buf, 0, bytes);
       }
     }
     finally {
       try {
-        if (in != null) in.close();
+        in.close();
       }
       catch (IOException e) {
       }
-      ;
+      if (out != null) out.close();
+    }
+    return Hex.toHexString(digest.digest());
+  }
+
+  Properties readInfo() {
+    Properties info = new Properties();
+    if (infoFile.isFile()) {
       try {
-        if (out != null) in.close();
+        InputStream in = new FileInputStream(infoFile);
+        try {
+          info.load(in);
+        }
+        finally {
+          in.close();
+        }
       }
       catch (IOException e) {
+        // the resource is just downloaded again
+        info.clear();
       }
-      ;
     }
+    return info;
+  }
+
+  void writeInfo(Properties info) throws IOException {
+    File tempFile = File.createTempFile("info", ".tmp", infoFile.getParentFile());
+    try {
+      OutputStream out = new FileOutputStream(tempFile);
+      try {
+        info.store(out, url.toExternalForm());
+      }
+      finally {
+        out.close();
+      }
+      rename(tempFile, infoFile);
+    }
+    finally {
+      if (tempFile.exists()) tempFile.delete();
+    }
+  }
+
+  /**
+   * Rename the file, replacing the target. The rename is atomic if the
+   * platform can replace files atomically, otherwise the target is deleted
+   * first.
+   */
+  static void rename(File from, File to) throws IOException {
+    if (from.renameTo(to)) return;
+    to.delete();
+    if (!from.renameTo(to)) throw new IOException("Cannot rename " + from + " to " + to);
   }
 
   public URL getResolvedUrl() {
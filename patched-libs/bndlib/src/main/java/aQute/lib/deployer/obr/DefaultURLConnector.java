@@ -1,16 +1,44 @@
 package aQute.lib.deployer.obr;
 
-import aQute.bnd.service.url.URLConnector;
+import aQute.bnd.service.url.ConditionalURLConnector;
+import aQute.bnd.service.url.TaggedData;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.net.URLConnection;
 
-public class DefaultURLConnector implements URLConnector {
+public class DefaultURLConnector implements ConditionalURLConnector {
 
   public InputStream connect(URL url) throws IOException {
     if (url == null) throw new IOException("Can't connect to null URL");
     return url.openStream();
   }
 
+  public TaggedData connectTagged(URL url, String tag, long lastModified) throws IOException {
+    if (url == null) throw new IOException("Can't connect to null URL");
+    return connectTagged(url.openConnection(), tag, lastModified);
+  }
+
+  /**
+   * Connect with a conditional request if the connection is a HTTP
+   * connection.
+   *
+   * @return the content, or null if the server answered that the resource
+   *         was not modified
+   */
+  public static TaggedData connectTagged(URLConnection connection, String tag, long lastModified) throws IOException {
+    if (!(connection instanceof HttpURLConnection)) return new TaggedData(null, 0, connection.getInputStream());
+
+    HttpURLConnection http = (HttpURLConnection)connection;
+    if (tag != null) http.setRequestProperty("If-None-Match", tag);
+    if (lastModified > 0) http.setIfModifiedSince(lastModified);
+
+    if (http.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+      http.disconnect();
+      return null;
+    }
+    return new TaggedData(http.getHeaderField("ETag"), http.getLastModified(), http.getInputStream());
+  }
 }
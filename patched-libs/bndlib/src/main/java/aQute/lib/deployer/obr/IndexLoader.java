@@ -0,0 +1,297 @@
+package aQute.lib.deployer.obr;
+
+import aQute.bnd.service.url.URLConnector;
+import aQute.lib.deployer.obr.CachingURLResourceHandle.CachingMode;
+import aQute.lib.osgi.Processor;
+import aQute.libg.reporter.Reporter;
+import aQute.libg.version.Version;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Loads the indexes of an OBR repository and the indexes they refer to
+ * concurrently. Every index is downloaded and parsed by a task that records
+ * its resources and referrals, a referral starts the loading of the referred
+ * index as soon as it is parsed. The loaded indexes are merged afterwards on
+ * the calling thread, in the order the indexes would have been read one after
+ * another, so the outcome does not depend on which download finishes first.
+ * The tasks run on the shared executor of the {@link Processor}, at most
+ * parallelism of them at the same time.
+ */
+class IndexLoader {
+
+  /**
+   * The resources and referrals of an index, in document order.
+   */
+  static class Loaded {
+    final String url;
+    final List<Object> events = new ArrayList<Object>();
+    final Map<String, Version> versions = new HashMap<String, Version>();
+    final DeferredReporter messages = new DeferredReporter();
+    Exception failure;
+
+    Loaded(String url) {
+      this.url = url;
+    }
+  }
+
+  /**
+   * A referral of an index, with the loading of the referred index.
+   */
+  static class LoadedReferral {
+    final String parentUrl;
+    final String url;
+    Future<Loaded> loaded;
+    Exception invalid;
+
+    LoadedReferral(String parentUrl, String url) {
+      this.parentUrl = parentUrl;
+      this.url = url;
+    }
+  }
+
+  /**
+   * Collects the messages of a task, they are reported when the index is
+   * merged. A Reporter can only be used by one thread at a time.
+   */
+  static class DeferredReporter implements Reporter {
+    final List<Object[]> messages = new ArrayList<Object[]>();
+
+    public synchronized void error(String s, Object... args) {
+      messages.add(new Object[]{Boolean.TRUE, s, args});
+    }
+
+    public synchronized void warning(String s, Object... args) {
+      messages.add(new Object[]{Boolean.FALSE, s, args});
+    }
+
+    public void progress(String s, Object... args) {
+    }
+
+    public void trace(String s, Object... args) {
+    }
+
+    public List<String> getWarnings() {
+      return Collections.emptyList();
+    }
+
+    public List<String> getErrors() {
+      return Collections.emptyList();
+    }
+
+    public boolean isPedantic() {
+      return false;
+    }
+
+    synchronized void report(Reporter reporter) {
+      if (reporter == null) return;
+      for (Object[] message : messages) {
+        if ((Boolean)message[0]) {
+          reporter.error((String)message[1], (Object[])message[2]);
+        }
+        else {
+          reporter.warning((String)message[1], (Object[])message[2]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Runs tasks on the shared executor, but no more than a maximum number at
+   * the same time. The other tasks wait in a queue.
+   */
+  static class BoundedExecutor implements Executor {
+    final Executor executor;
+    final int max;
+    final Queue<Runnable> queue = new LinkedList<Runnable>();
+    int running;
+
+    BoundedExecutor(Executor executor, int max) {
+      this.executor = executor;
+      this.max = Math.max(1, max);
+    }
+
+    public synchronized void execute(Runnable command) {
+      queue.add(command);
+      startNext();
+    }
+
+    synchronized void done() {
+      running--;
+      startNext();
+    }
+
+    private void startNext() {
+      if (running >= max || queue.isEmpty()) return;
+
+      final Runnable command = queue.remove();
+      running++;
+      executor.execute(new Runnable() {
+        public void run() {
+          try {
+            command.run();
+          }
+          finally {
+            done();
+          }
+        }
+      });
+    }
+  }
+
+  final AbstractBaseOBR obr;
+  final URLConnector connector;
+  final File cacheDir;
+  final int maxDepth;
+  final Executor executor;
+  final Map<String, Future<Loaded>> loading = new HashMap<String, Future<Loaded>>();
+
+  IndexLoader(AbstractBaseOBR obr, URLConnector connector, File cacheDir, int parallelism, int maxDepth) {
+    this.obr = obr;
+    this.connector = connector;
+    this.cacheDir = cacheDir;
+    this.maxDepth = maxDepth;
+    this.executor = new BoundedExecutor(Processor.getExecutor(), parallelism);
+  }
+
+  /**
+   * Start loading an index.
+   *
+   * @param url       the URL of the index
+   * @param levels    the number of referral levels to follow from this index
+   * @param ancestors the URLs of the indexes that referred to this index
+   */
+  Future<Loaded> load(final URL url, final int levels, final Set<String> ancestors) {
+    // the same index at the same depth is only loaded once
+    String key = levels + ":" + url.toExternalForm();
+    synchronized (loading) {
+      Future<Loaded> future = loading.get(key);
+      if (future == null) {
+        FutureTask<Loaded> task = new FutureTask<Loaded>(new Callable<Loaded>() {
+          public Loaded call() throws Exception {
+            return read(url, levels, ancestors);
+          }
+        });
+        loading.put(key, task);
+        executor.execute(task);
+        future = task;
+      }
+      return future;
+    }
+  }
+
+  Loaded read(URL url, final int levels, final Set<String> ancestors) {
+    final Loaded loaded = new Loaded(url.toExternalForm());
+    final Set<String> path = new HashSet<String>(ancestors);
+    path.add(loaded.url);
+
+    IRepositoryListener recorder = new IRepositoryListener() {
+      public boolean processResource(Resource resource) {
+        loaded.events.add(resource);
+        return true;
+      }
+
+      public boolean processReferral(String parentUrl, Referral referral, int maxDepth, int currentDepth) {
+        LoadedReferral r = new LoadedReferral(parentUrl, referral.getUrl());
+        try {
+          URL location = new URL(referral.getUrl());
+          int childLevels = levels - 1;
+          if (referral.getDepth() > 0) childLevels = Math.min(childLevels, referral.getDepth() - 1);
+          if (levels <= 0 || path.contains(location.toExternalForm())) {
+            // too deep or a cycle
+            return true;
+          }
+          r.loaded = load(location, childLevels, path);
+        }
+        catch (MalformedURLException e) {
+          r.invalid = e;
+        }
+        loaded.events.add(r);
+        return true;
+      }
+    };
+
+    try {
+      CachingURLResourceHandle handle =
+        new CachingURLResourceHandle(loaded.url, null, cacheDir, connector, CachingMode.PreferRemote);
+      handle.setReporter(loaded.messages);
+      obr.readIndex(loaded.url, handle, recorder, loaded.versions, loaded.messages);
+    }
+    catch (Exception e) {
+      loaded.failure = e;
+    }
+    return loaded;
+  }
+
+  /**
+   * Load the indexes and pass their resources to the listener, in document
+   * order with the resources of a referred index at the place of the
+   * referral.
+   */
+  void load(Collection<URL> indexes, IRepositoryListener listener, Map<String, Version> versions, Reporter reporter)
+    throws InterruptedException {
+    try {
+      List<Future<Loaded>> roots = new ArrayList<Future<Loaded>>();
+      for (URL index : indexes) {
+        roots.add(load(index, maxDepth, Collections.<String>emptySet()));
+      }
+      for (Future<Loaded> root : roots) {
+        Loaded loaded = get(root);
+        if (merge(loaded, listener, versions, reporter) && loaded.failure != null && reporter != null) {
+          reporter.error("Unable to read index at URL '%s': %s", loaded.url, loaded.failure);
+        }
+      }
+    }
+    finally {
+      // only has an effect if the loading was interrupted, queued tasks are
+      // not started then
+      synchronized (loading) {
+        for (Future<Loaded> future : loading.values()) {
+          future.cancel(true);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return false if the listener stopped the processing of the index
+   */
+  private boolean merge(Loaded loaded, IRepositoryListener listener, Map<String, Version> versions, Reporter reporter)
+    throws InterruptedException {
+    loaded.messages.report(reporter);
+    versions.putAll(loaded.versions);
+    for (Object event : loaded.events) {
+      if (event instanceof Resource) {
+        if (!listener.processResource((Resource)event)) return false;
+      }
+      else {
+        LoadedReferral r = (LoadedReferral)event;
+        if (r.invalid != null) {
+          if (reporter != null) reporter.error("Invalid referral URL '%s' from parent index '%s': %s", r.url, r.parentUrl, r.invalid);
+          continue;
+        }
+        // stopping a referred index does not stop the referring index
+        Loaded referred = get(r.loaded);
+        if (merge(referred, listener, versions, reporter) && referred.failure != null && reporter != null) {
+          reporter
+            .error("Unable to read referral index at URL '%s' from parent index '%s': %s", referred.url, r.parentUrl, referred.failure);
+        }
+      }
+    }
+    return true;
+  }
+
+  private static Loaded get(Future<Loaded> future) throws InterruptedException {
+    try {
+      return future.get();
+    }
+    catch (ExecutionException e) {
+      // read does not throw
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+}
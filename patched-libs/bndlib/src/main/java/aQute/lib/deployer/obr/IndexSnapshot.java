@@ -0,0 +1,309 @@
+package aQute.lib.deployer.obr;
+
+import aQute.libg.version.Version;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * A pre-parsed, binary copy of an OBR index. A snapshot records the resources
+ * and referrals of the index in document order, so replaying it to an
+ * {@link IRepositoryListener} has the same effect as parsing the XML. All
+ * strings are kept once in a string table, so equal strings of the resources
+ * share one instance after loading, and the versions of the resources and
+ * exported packages are stored already parsed.
+ * <p/>
+ * A snapshot is valid for the content hash of the XML it was recorded from
+ * and for the base URL the resources were resolved against.
+ */
+class IndexSnapshot implements IRepositoryListener {
+  static final int MAGIC = 0x4F425253; // OBRS
+  static final int FORMAT_VERSION = 1;
+  static final String SUFFIX = ".snapshot";
+
+  static final int END = 0;
+  static final int RESOURCE = 1;
+  static final int REFERRAL = 2;
+
+  /**
+   * A referral as it was passed to the listener.
+   */
+  static class ReferralEvent {
+    final String parentUrl;
+    final Referral referral;
+    final int maxDepth;
+    final int currentDepth;
+
+    ReferralEvent(String parentUrl, Referral referral, int maxDepth, int currentDepth) {
+      this.parentUrl = parentUrl;
+      this.referral = referral;
+      this.maxDepth = maxDepth;
+      this.currentDepth = currentDepth;
+    }
+  }
+
+  final IRepositoryListener listener;
+  final List<Object> events = new ArrayList<Object>();
+  final Map<String, Version> versions = new HashMap<String, Version>();
+
+  /**
+   * Create a snapshot that records the events passed on to the given
+   * listener.
+   */
+  IndexSnapshot(IRepositoryListener listener) {
+    this.listener = listener;
+  }
+
+  public boolean processResource(Resource resource) {
+    events.add(resource);
+    return listener.processResource(resource);
+  }
+
+  public boolean processReferral(String parentUrl, Referral referral, int maxDepth, int currentDepth) {
+    events.add(new ReferralEvent(parentUrl, referral, maxDepth, currentDepth));
+    return listener.processReferral(parentUrl, referral, maxDepth, currentDepth);
+  }
+
+  /**
+   * Answer the parsed versions of the resources and exported packages, by
+   * their version string.
+   */
+  Map<String, Version> getVersions() {
+    return versions;
+  }
+
+  /**
+   * Pass the recorded events to the listener.
+   *
+   * @return false if the listener stopped the processing
+   */
+  boolean replay(IRepositoryListener listener) {
+    for (Object event : events) {
+      if (event instanceof Resource) {
+        if (!listener.processResource((Resource)event)) return false;
+      }
+      else {
+        ReferralEvent r = (ReferralEvent)event;
+        listener.processReferral(r.parentUrl, r.referral, r.maxDepth, r.currentDepth);
+      }
+    }
+    return true;
+  }
+
+  static File getFile(File index) {
+    return new File(index.getParentFile(), index.getName() + SUFFIX);
+  }
+
+  /**
+   * Load the snapshot of an index.
+   *
+   * @param file    the snapshot file
+   * @param hash    the content hash of the index
+   * @param baseUrl the base URL of the index
+   * @return the snapshot, or null if there is no valid snapshot for the hash
+   *         and base URL
+   */
+  static IndexSnapshot load(File file, String hash, String baseUrl) throws IOException {
+    if (!file.isFile()) return null;
+
+    ByteBuffer bb;
+    FileInputStream in = new FileInputStream(file);
+    try {
+      FileChannel channel = in.getChannel();
+      bb = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    finally {
+      in.close();
+    }
+
+    try {
+      if (bb.getInt() != MAGIC || bb.getInt() != FORMAT_VERSION) return null;
+
+      String strings[] = new String[bb.getInt()];
+      for (int i = 0; i < strings.length; i++) {
+        byte data[] = new byte[bb.getInt()];
+        bb.get(data);
+        strings[i] = new String(data, "UTF-8");
+      }
+      if (!hash.equals(string(strings, bb)) || !baseUrl.equals(string(strings, bb))) return null;
+
+      IndexSnapshot snapshot = new IndexSnapshot(null);
+      int versionCount = bb.getInt();
+      for (int i = 0; i < versionCount; i++) {
+        String s = string(strings, bb);
+        snapshot.versions.put(s, new Version(bb.getInt(), bb.getInt(), bb.getInt(), string(strings, bb)));
+      }
+
+      int tag;
+      while ((tag = bb.get()) != END) {
+        if (tag == RESOURCE) {
+          Resource.Builder builder = new Resource.Builder().setId(string(strings, bb)).setPresentationName(string(strings, bb))
+            .setSymbolicName(string(strings, bb)).setBaseUrl(string(strings, bb)).setUrl(string(strings, bb))
+            .setVersion(string(strings, bb));
+          int capabilities = bb.getInt();
+          for (int c = 0; c < capabilities; c++) {
+            Capability.Builder capability = new Capability.Builder().setName(string(strings, bb));
+            int properties = bb.getInt();
+            for (int p = 0; p < properties; p++) {
+              capability.addProperty(new Property(string(strings, bb), string(strings, bb), string(strings, bb)));
+            }
+            builder.addCapability(capability);
+          }
+          int requires = bb.getInt();
+          for (int r = 0; r < requires; r++) {
+            builder.addRequire(new Require(string(strings, bb), string(strings, bb), bb.get() != 0));
+          }
+          snapshot.events.add(builder.build());
+        }
+        else if (tag == REFERRAL) {
+          String parentUrl = string(strings, bb);
+          Referral referral = new Referral(string(strings, bb), bb.getInt());
+          snapshot.events.add(new ReferralEvent(parentUrl, referral, bb.getInt(), bb.getInt()));
+        }
+        else {
+          throw new IOException("Invalid snapshot " + file);
+        }
+      }
+      return snapshot;
+    }
+    catch (BufferUnderflowException e) {
+      throw new IOException("Truncated snapshot " + file);
+    }
+    catch (IndexOutOfBoundsException e) {
+      throw new IOException("Invalid snapshot " + file);
+    }
+    catch (IllegalStateException e) {
+      // a resource without id, symbolic name or url
+      throw new IOException("Invalid snapshot " + file);
+    }
+  }
+
+  private static String string(String strings[], ByteBuffer bb) {
+    int index = bb.getInt();
+    return index < 0 ? null : strings[index];
+  }
+
+  /**
+   * Save the recorded events.
+   */
+  void save(File file, String hash, String baseUrl) throws IOException {
+    Map<String, Integer> table = new LinkedHashMap<String, Integer>();
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(body);
+
+    writeString(out, table, hash);
+    writeString(out, table, baseUrl);
+
+    Map<String, Version> parsed = new TreeMap<String, Version>();
+    for (Object event : events) {
+      if (event instanceof Resource) {
+        Resource resource = (Resource)event;
+        parse(parsed, resource.getVersion());
+        for (Capability capability : resource.getCapabilities()) {
+          if (CapabilityType.PACKAGE.getTypeName().equals(capability.getName())) {
+            Property version = capability.findProperty(Property.VERSION);
+            if (version != null) parse(parsed, version.getValue());
+          }
+        }
+      }
+    }
+    out.writeInt(parsed.size());
+    for (Map.Entry<String, Version> entry : parsed.entrySet()) {
+      Version version = entry.getValue();
+      writeString(out, table, entry.getKey());
+      out.writeInt(version.getMajor());
+      out.writeInt(version.getMinor());
+      out.writeInt(version.getMicro());
+      writeString(out, table, version.getQualifier());
+    }
+
+    for (Object event : events) {
+      if (event instanceof Resource) {
+        Resource resource = (Resource)event;
+        out.writeByte(RESOURCE);
+        writeString(out, table, resource.getId());
+        writeString(out, table, resource.getPresentationName());
+        writeString(out, table, resource.getSymbolicName());
+        writeString(out, table, resource.getBaseUrl());
+        writeString(out, table, resource.getUrl());
+        writeString(out, table, resource.getVersion());
+        out.writeInt(resource.getCapabilities().size());
+        for (Capability capability : resource.getCapabilities()) {
+          writeString(out, table, capability.getName());
+          out.writeInt(capability.getProperties().size());
+          for (Property property : capability.getProperties()) {
+            writeString(out, table, property.getName());
+            writeString(out, table, property.getType());
+            writeString(out, table, property.getValue());
+          }
+        }
+        out.writeInt(resource.getRequires().size());
+        for (Require require : resource.getRequires()) {
+          writeString(out, table, require.getName());
+          writeString(out, table, require.getFilter());
+          out.writeByte(require.isOptional() ? 1 : 0);
+        }
+      }
+      else {
+        ReferralEvent r = (ReferralEvent)event;
+        out.writeByte(REFERRAL);
+        writeString(out, table, r.parentUrl);
+        writeString(out, table, r.referral.getUrl());
+        out.writeInt(r.referral.getDepth());
+        out.writeInt(r.maxDepth);
+        out.writeInt(r.currentDepth);
+      }
+    }
+    out.writeByte(END);
+    out.flush();
+
+    File tempFile = File.createTempFile("snapshot", ".tmp", file.getParentFile());
+    try {
+      DataOutputStream fout = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+      try {
+        fout.writeInt(MAGIC);
+        fout.writeInt(FORMAT_VERSION);
+        fout.writeInt(table.size());
+        for (String s : table.keySet()) {
+          byte data[] = s.getBytes("UTF-8");
+          fout.writeInt(data.length);
+          fout.write(data);
+        }
+        body.writeTo(fout);
+      }
+      finally {
+        fout.close();
+      }
+      CachingURLResourceHandle.rename(tempFile, file);
+    }
+    finally {
+      if (tempFile.exists()) tempFile.delete();
+    }
+  }
+
+  private static void parse(Map<String, Version> parsed, String version) {
+    if (version == null || parsed.containsKey(version)) return;
+    try {
+      parsed.put(version, new Version(version));
+    }
+    catch (IllegalArgumentException e) {
+      // invalid versions are parsed, and rejected, by the repository
+    }
+  }
+
+  private static void writeString(DataOutputStream out, Map<String, Integer> table, String s) throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+      return;
+    }
+    Integer index = table.get(s);
+    if (index == null) {
+      index = table.size();
+      table.put(s, index);
+    }
+    out.writeInt(index);
+  }
+}
@@ -2,6 +2,7 @@ package aQute.lib.deployer.obr;
 
 import aQute.bnd.service.Refreshable;
 import aQute.lib.deployer.FileRepo;
+import aQute.lib.hex.Hex;
 import aQute.lib.io.IO;
 import aQute.lib.osgi.Jar;
 import aQute.libg.reporter.Reporter;
@@ -15,6 +16,7 @@ import org.xml.sax.XMLReader;
 import javax.xml.transform.stream.StreamResult;
 import java.io.*;
 import java.net.URL;
+import java.security.MessageDigest;
 import java.util.*;
 
 public class LocalOBR extends OBR implements Refreshable {
@@ -22,6 +24,8 @@ public class LocalOBR extends OBR implements Refreshable {
   public static final String PROP_LOCAL_DIR = "local";
   public static final String PROP_READONLY = "readonly";
 
+  static final String FRAGMENTS_DIR = "fragments";
+
   private final FileRepo storageRepo = new FileRepo();
 
   private File storageDir;
@@ -85,29 +89,122 @@ public class LocalOBR extends OBR implements Refreshable {
   }
 
   private void regenerateIndex() throws Exception {
-    BundleIndexer indexer = registry.getPlugin(BundleIndexer.class);
-    if (indexer == null) throw new IllegalStateException("Cannot index repository: no Bundle Indexer service or plugin found.");
+    BundleIndexer indexer = getIndexer();
 
     Set<File> allFiles = new HashSet<File>();
     gatherFiles(allFiles);
 
-    FileOutputStream out = null;
-    try {
-      out = new FileOutputStream(localIndex);
-      if (!allFiles.isEmpty()) {
-        Map<String, String> config = new HashMap<String, String>();
-        config.put(BundleIndexer.REPOSITORY_NAME, this.getName());
-        config.put(BundleIndexer.ROOT_URL, localIndex.getCanonicalFile().toURI().toURL().toString());
-        indexer.index(allFiles, out, config);
+    if (!allFiles.isEmpty()) {
+      // only the bundles that changed since they were indexed are analyzed
+      List<File> fragments = new ArrayList<File>(allFiles.size());
+      for (File file : allFiles) {
+        fragments.add(getFragment(indexer, file, false));
       }
-      else {
+      mergeIndexes(fragments, null);
+      removeUnusedFragments(fragments);
+    }
+    else {
+      FileOutputStream out = new FileOutputStream(localIndex);
+      try {
         ByteArrayInputStream emptyRepo =
           new ByteArrayInputStream("<?xml version='1.0' encoding='UTF-8'?>\n<repository lastmodified='0'/>".getBytes());
         IO.copy(emptyRepo, out);
       }
+      finally {
+        out.close();
+      }
+    }
+  }
+
+  private BundleIndexer getIndexer() {
+    BundleIndexer indexer = registry.getPlugin(BundleIndexer.class);
+    if (indexer == null) throw new IllegalStateException("Cannot index repository: no Bundle Indexer service or plugin found.");
+    return indexer;
+  }
+
+  /**
+   * Answer the index of a single bundle. The index is kept in the cache
+   * directory under a name derived from the path, time stamp and size of the
+   * bundle, so a bundle is only analyzed again if it changed.
+   *
+   * @param force if true the bundle is analyzed even if the index exists
+   */
+  private File getFragment(BundleIndexer indexer, File file, boolean force) throws Exception {
+    File dir = new File(cacheDir, FRAGMENTS_DIR);
+    String key = file.getCanonicalPath() + "|" + file.lastModified() + "|" + file.length();
+    File fragment = new File(dir, Hex.toHexString(MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"))) + ".xml");
+    if (!force && fragment.isFile()) return fragment;
+
+    if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create index fragment directory " + dir);
+    Map<String, String> config = new HashMap<String, String>();
+    config.put(BundleIndexer.REPOSITORY_NAME, this.getName());
+    config.put(BundleIndexer.ROOT_URL, localIndex.getCanonicalFile().toURI().toURL().toString());
+
+    File tempFragment = File.createTempFile("fragment", ".tmp", dir);
+    try {
+      FileOutputStream out = new FileOutputStream(tempFragment);
+      try {
+        indexer.index(Collections.singleton(file), out, config);
+      }
+      finally {
+        out.close();
+      }
+      CachingURLResourceHandle.rename(tempFragment, fragment);
+    }
+    finally {
+      if (tempFragment.exists()) tempFragment.delete();
+    }
+    return fragment;
+  }
+
+  private void removeUnusedFragments(Collection<File> fragments) {
+    File[] files = new File(cacheDir, FRAGMENTS_DIR).listFiles();
+    if (files == null) return;
+    for (File file : files) {
+      if (!fragments.contains(file)) file.delete();
+    }
+  }
+
+  /**
+   * Merge the indexes into the local index. Resources with the same URI are
+   * taken from the first index that has them.
+   *
+   * @param indexes  the indexes to merge
+   * @param existing the existing local index to merge after the indexes, or
+   *                 null
+   */
+  private void mergeIndexes(List<File> indexes, File existing) throws Exception {
+    File tempIndex = File.createTempFile("repository", ".xml", storageDir);
+    try {
+      FileOutputStream tempIndexOutput = new FileOutputStream(tempIndex);
+      MergeContentFilter merger = new MergeContentFilter();
+      XMLReader reader = SAXUtil.buildPipeline(new StreamResult(tempIndexOutput), new UniqueResourceFilter(), merger);
+
+      try {
+        for (File index : indexes) {
+          reader.parse(new InputSource(new FileInputStream(index)));
+        }
+
+        // Parse the existing index (which may be empty/missing)
+        if (existing != null) {
+          try {
+            reader.parse(new InputSource(new FileInputStream(existing)));
+          }
+          catch (Exception e) {
+            reporter.warning("Existing local index is invalid or missing, overwriting (%s).", existing.getAbsolutePath());
+          }
+        }
+
+        merger.closeRootAndDocument();
+      }
+      finally {
+        tempIndexOutput.flush();
+        tempIndexOutput.close();
+      }
+      CachingURLResourceHandle.rename(tempIndex, localIndex);
     }
     finally {
-      out.close();
+      if (tempIndex.exists()) tempIndex.delete();
     }
   }
 
@@ -140,44 +237,14 @@ public class LocalOBR extends OBR implements Refreshable {
   public synchronized File put(Jar jar) throws Exception {
     File newFile = storageRepo.put(jar);
 
-    // Index the new file
-    BundleIndexer indexer = registry.getPlugin(BundleIndexer.class);
-    if (indexer == null) throw new IllegalStateException("Cannot index repository: no Bundle Indexer service or plugin found.");
-    ByteArrayOutputStream newIndexBuffer = new ByteArrayOutputStream();
-
-    Map<String, String> config = new HashMap<String, String>();
-    config.put(BundleIndexer.REPOSITORY_NAME, this.getName());
-    config.put(BundleIndexer.ROOT_URL, localIndex.getCanonicalFile().toURI().toURL().toString());
-    indexer.index(Collections.singleton(newFile.getCanonicalFile()), newIndexBuffer, null);
-
-    // Merge into main index
-    File tempIndex = File.createTempFile("repository", ".xml");
-    FileOutputStream tempIndexOutput = new FileOutputStream(tempIndex);
-    MergeContentFilter merger = new MergeContentFilter();
-    XMLReader reader = SAXUtil.buildPipeline(new StreamResult(tempIndexOutput), new UniqueResourceFilter(), merger);
+    // Index the new file and merge it into main index. The file may replace a
+    // file with the same time stamp and size, so it is always analyzed.
+    File fragment = getFragment(getIndexer(), newFile.getCanonicalFile(), true);
+    mergeIndexes(Collections.singletonList(fragment), localIndex);
 
-    try {
-      // Parse the newly generated index
-      reader.parse(new InputSource(new ByteArrayInputStream(newIndexBuffer.toByteArray())));
-
-      // Parse the existing index (which may be empty/missing)
-      try {
-        reader.parse(new InputSource(new FileInputStream(localIndex)));
-      }
-      catch (Exception e) {
-        reporter.warning("Existing local index is invalid or missing, overwriting (%s).", localIndex.getAbsolutePath());
-      }
-
-      merger.closeRootAndDocument();
-    }
-    finally {
-      tempIndexOutput.flush();
-      tempIndexOutput.close();
-    }
-    IO.copy(tempIndex, localIndex);
-
-    // Re-read the index
-    reset();
+    // Add the new resources, the repository is read completely if it is not
+    // initialised yet
+    addIndex(localIndex.toURI().toURL().toExternalForm(), fragment);
     init();
 
     return newFile;
@@ -22,6 +22,8 @@ import java.util.Map;
  * <li><b>cache:</b> local cache directory. May be omitted, in which case the repository will only be
  * able to serve resources with {@code file:} URLs.</li>
  * <li><b>location:</b> (deprecated) alias for "locations".
+ * <li><b>parallelism:</b> maximum number of indexes that are downloaded and parsed at the same time; defaults to 4.</li>
+ * <li><b>maxReferralDepth:</b> maximum number of referral levels that are followed from an index; defaults to 8.</li>
  * </ul>
  * <p/>
  * <p/>
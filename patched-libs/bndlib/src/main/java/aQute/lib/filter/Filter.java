@@ -15,21 +15,202 @@ package aQute.lib.filter;
 import java.lang.reflect.Array;
 import java.math.BigDecimal;
 import java.math.BigInteger;
-import java.util.Collection;
-import java.util.Dictionary;
-import java.util.Hashtable;
+import java.util.*;
 
 public class Filter {
-  final char WILDCARD = 65535;
+  static final char WILDCARD = 65535;
 
-  final int EQ = 0;
-  final int LE = 1;
-  final int GE = 2;
-  final int APPROX = 3;
+  static final int EQ = 0;
+  static final int LE = 1;
+  static final int GE = 2;
+  static final int APPROX = 3;
+
+  static final int MAX_CACHED = 4096;
+
+  /**
+   * The compiled filters by their text, least recently used first.
+   */
+  static final Map<String, Compiled> cache = new LinkedHashMap<String, Compiled>(256, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    protected boolean removeEldestEntry(Map.Entry<String, Compiled> eldest) {
+      return size() > MAX_CACHED;
+    }
+  };
 
   private String filter;
+  private Compiled compiled;
+
+  /**
+   * A parsed filter. A malformed filter has no expression but the message of
+   * the parse error.
+   */
+  static class Compiled {
+    final Node root;
+    final String error;
+
+    /**
+     * The simple expressions that every matching dictionary must satisfy.
+     */
+    final Simple guards[];
+
+    Compiled(Node root, String error) {
+      this.root = root;
+      this.error = error;
+
+      List<Simple> guards = new ArrayList<Simple>();
+      if (root instanceof Simple) {
+        guards.add((Simple)root);
+      }
+      else if (root instanceof And) {
+        for (Node node : ((And)root).nodes) {
+          if (node instanceof Simple) guards.add((Simple)node);
+        }
+      }
+      this.guards = guards.toArray(new Simple[guards.size()]);
+    }
+  }
+
+  abstract static class Node {
+    abstract boolean match(Dictionary<?, ?> dict);
+  }
+
+  static class And extends Node {
+    final Node nodes[];
+
+    And(Node nodes[]) {
+      this.nodes = nodes;
+    }
+
+    boolean match(Dictionary<?, ?> dict) {
+      for (Node node : nodes) {
+        if (!node.match(dict)) return false;
+      }
+      return true;
+    }
+  }
+
+  static class Or extends Node {
+    final Node nodes[];
+
+    Or(Node nodes[]) {
+      this.nodes = nodes;
+    }
+
+    boolean match(Dictionary<?, ?> dict) {
+      for (Node node : nodes) {
+        if (node.match(dict)) return true;
+      }
+      return false;
+    }
+  }
+
+  static class Not extends Node {
+    final Node node;
+
+    Not(Node node) {
+      this.node = node;
+    }
+
+    boolean match(Dictionary<?, ?> dict) {
+      return !node.match(dict);
+    }
+  }
+
+  static class Simple extends Node {
+    final String attr;
+    final int op;
+    final String value;
+
+    /**
+     * An equality without wildcards, matched by equals instead of as a
+     * pattern.
+     */
+    final boolean literal;
+
+    Simple(String attr, int op, String value) {
+      this.attr = attr;
+      this.op = op;
+      this.value = value;
+      this.literal = op == EQ && value.indexOf(WILDCARD) < 0;
+    }
+
+    boolean match(Dictionary<?, ?> dict) {
+      return compare(dict.get(attr), op, value);
+    }
+
+    /**
+     * Answer false if the dictionary can not match this expression, without
+     * evaluating it. Only the presence of the attribute and a literal string
+     * equality are checked.
+     */
+    boolean accept(Dictionary<?, ?> dict) {
+      Object obj = dict.get(attr);
+      if (obj == null) return false;
+      if (literal && obj.getClass() == String.class) return value.equals(obj);
+      return true;
+    }
+
+    private boolean compare(Object obj, int op, String s) {
+      if (obj == null) return false;
+      try {
+        Class<?> numClass = obj.getClass();
+        if (numClass == String.class) {
+          if (literal) return s.equals(obj);
+          return compareString((String)obj, op, s);
+        }
+        else if (numClass == Character.class) {
+          return compareString(obj.toString(), op, s);
+        }
+        else if (numClass == Long.class) {
+          return compareSign(op, Long.valueOf(s).compareTo((Long)obj));
+        }
+        else if (numClass == Integer.class) {
+          return compareSign(op, Integer.valueOf(s).compareTo((Integer)obj));
+        }
+        else if (numClass == Short.class) {
+          return compareSign(op, Short.valueOf(s).compareTo((Short)obj));
+        }
+        else if (numClass == Byte.class) {
+          return compareSign(op, Byte.valueOf(s).compareTo((Byte)obj));
+        }
+        else if (numClass == Double.class) {
+          return compareSign(op, Double.valueOf(s).compareTo((Double)obj));
+        }
+        else if (numClass == Float.class) {
+          return compareSign(op, Float.valueOf(s).compareTo((Float)obj));
+        }
+        else if (numClass == Boolean.class) {
+          if (op != EQ) return false;
+          int a = Boolean.valueOf(s).booleanValue() ? 1 : 0;
+          int b = ((Boolean)obj).booleanValue() ? 1 : 0;
+          return compareSign(op, a - b);
+        }
+        else if (numClass == BigInteger.class) {
+          return compareSign(op, new BigInteger(s).compareTo((BigInteger)obj));
+        }
+        else if (numClass == BigDecimal.class) {
+          return compareSign(op, new BigDecimal(s).compareTo((BigDecimal)obj));
+        }
+        else if (obj instanceof Collection<?>) {
+          for (Object x : (Collection<?>)obj) {
+            if (compare(x, op, s)) return true;
+          }
+        }
+        else if (numClass.isArray()) {
+          int len = Array.getLength(obj);
+          for (int i = 0; i < len; i++) {
+            if (compare(Array.get(obj, i), op, s)) return true;
+          }
+        }
+      }
+      catch (Exception e) {
+      }
+      return false;
+    }
+  }
 
-  abstract class Query {
+  static class Parser {
     static final String GARBAGE = "Trailing garbage";
     static final String MALFORMED = "Malformed query";
     static final String EMPTY = "Empty list";
@@ -40,67 +221,56 @@ public class Filter {
 
     private String tail;
 
-    boolean match() throws IllegalArgumentException {
+    Node parse(String filter) throws IllegalArgumentException {
       tail = filter;
-      boolean val = doQuery();
+      Node node = doQuery();
       if (tail.length() > 0) error(GARBAGE);
-      return val;
+      return node;
     }
 
-    private boolean doQuery() throws IllegalArgumentException {
+    private Node doQuery() throws IllegalArgumentException {
       if (tail.length() < 3 || !prefix("(")) error(MALFORMED);
-      boolean val;
+      Node node;
 
       switch (tail.charAt(0)) {
         case '&':
-          val = doAnd();
+          node = new And(doList());
           break;
         case '|':
-          val = doOr();
+          node = new Or(doList());
           break;
         case '!':
-          val = doNot();
+          node = doNot();
           break;
         default:
-          val = doSimple();
+          node = doSimple();
           break;
       }
 
       if (!prefix(")")) error(MALFORMED);
-      return val;
-    }
-
-    private boolean doAnd() throws IllegalArgumentException {
-      tail = tail.substring(1);
-      boolean val = true;
-      if (!tail.startsWith("(")) error(EMPTY);
-      do {
-        if (!doQuery()) val = false;
-      }
-      while (tail.startsWith("("));
-      return val;
+      return node;
     }
 
-    private boolean doOr() throws IllegalArgumentException {
+    private Node[] doList() throws IllegalArgumentException {
       tail = tail.substring(1);
-      boolean val = false;
+      List<Node> nodes = new ArrayList<Node>();
       if (!tail.startsWith("(")) error(EMPTY);
       do {
-        if (doQuery()) val = true;
+        nodes.add(doQuery());
       }
       while (tail.startsWith("("));
-      return val;
+      return nodes.toArray(new Node[nodes.size()]);
     }
 
-    private boolean doNot() throws IllegalArgumentException {
+    private Node doNot() throws IllegalArgumentException {
       tail = tail.substring(1);
       if (!tail.startsWith("(")) error(SUBEXPR);
-      return !doQuery();
+      return new Not(doQuery());
     }
 
-    private boolean doSimple() throws IllegalArgumentException {
+    private Node doSimple() throws IllegalArgumentException {
       int op = 0;
-      Object attr = getAttr();
+      String attr = getAttr();
 
       if (prefix("=")) {
         op = EQ;
@@ -118,7 +288,7 @@ public class Filter {
         error(OPERATOR);
       }
 
-      return compare(attr, op, getValue());
+      return new Simple(attr, op, getValue());
     }
 
     private boolean prefix(String pre) {
@@ -127,7 +297,7 @@ public class Filter {
       return true;
     }
 
-    private Object getAttr() {
+    private String getAttr() {
       int len = tail.length();
       int ix = 0;
       label:
@@ -146,11 +316,9 @@ public class Filter {
       }
       String attr = tail.substring(0, ix).toLowerCase();
       tail = tail.substring(ix);
-      return getProp(attr);
+      return attr;
     }
 
-    abstract Object getProp(String key);
-
     private String getValue() {
       StringBuffer sb = new StringBuffer();
       int len = tail.length();
@@ -181,100 +349,64 @@ public class Filter {
     private void error(String m) throws IllegalArgumentException {
       throw new IllegalArgumentException(m + " " + tail);
     }
-
-    private boolean compare(Object obj, int op, String s) {
-      if (obj == null) return false;
-      try {
-        Class<?> numClass = obj.getClass();
-        if (numClass == String.class) {
-          return compareString((String)obj, op, s);
-        }
-        else if (numClass == Character.class) {
-          return compareString(obj.toString(), op, s);
-        }
-        else if (numClass == Long.class) {
-          return compareSign(op, Long.valueOf(s).compareTo((Long)obj));
-        }
-        else if (numClass == Integer.class) {
-          return compareSign(op, Integer.valueOf(s).compareTo((Integer)obj));
-        }
-        else if (numClass == Short.class) {
-          return compareSign(op, Short.valueOf(s).compareTo((Short)obj));
-        }
-        else if (numClass == Byte.class) {
-          return compareSign(op, Byte.valueOf(s).compareTo((Byte)obj));
-        }
-        else if (numClass == Double.class) {
-          return compareSign(op, Double.valueOf(s).compareTo((Double)obj));
-        }
-        else if (numClass == Float.class) {
-          return compareSign(op, Float.valueOf(s).compareTo((Float)obj));
-        }
-        else if (numClass == Boolean.class) {
-          if (op != EQ) return false;
-          int a = Boolean.valueOf(s).booleanValue() ? 1 : 0;
-          int b = ((Boolean)obj).booleanValue() ? 1 : 0;
-          return compareSign(op, a - b);
-        }
-        else if (numClass == BigInteger.class) {
-          return compareSign(op, new BigInteger(s).compareTo((BigInteger)obj));
-        }
-        else if (numClass == BigDecimal.class) {
-          return compareSign(op, new BigDecimal(s).compareTo((BigDecimal)obj));
-        }
-        else if (obj instanceof Collection<?>) {
-          for (Object x : (Collection<?>)obj) {
-            if (compare(x, op, s)) return true;
-          }
-        }
-        else if (numClass.isArray()) {
-          int len = Array.getLength(obj);
-          for (int i = 0; i < len; i++) {
-            if (compare(Array.get(obj, i), op, s)) return true;
-          }
-        }
-      }
-      catch (Exception e) {
-      }
-      return false;
-    }
-  }
-
-  class DictQuery extends Query {
-    private Dictionary<?, ?> dict;
-
-    DictQuery(Dictionary<?, ?> dict) {
-      this.dict = dict;
-    }
-
-    Object getProp(String key) {
-      return dict.get(key);
-    }
   }
 
   public Filter(String filter) throws IllegalArgumentException {
     // NYI: Normalize the filter string?
     this.filter = filter;
     if (filter == null || filter.length() == 0) throw new IllegalArgumentException("Null query");
+    this.compiled = compile(filter);
   }
 
-  public boolean match(Dictionary<?, ?> dict) {
+  /**
+   * Parse the filter once, filters with the same text share the parsed
+   * expression.
+   */
+  static Compiled compile(String filter) {
+    Compiled compiled;
+    synchronized (cache) {
+      compiled = cache.get(filter);
+    }
+    if (compiled != null) return compiled;
+
     try {
-      return new DictQuery(dict).match();
+      compiled = new Compiled(new Parser().parse(filter), null);
     }
     catch (IllegalArgumentException e) {
-      return false;
+      compiled = new Compiled(null, e.getMessage());
+    }
+    synchronized (cache) {
+      cache.put(filter, compiled);
     }
+    return compiled;
   }
 
-  public String verify() {
-    try {
-      new DictQuery(new Hashtable<Object, Object>()).match();
-    }
-    catch (IllegalArgumentException e) {
-      return e.getMessage();
+  public boolean match(Dictionary<?, ?> dict) {
+    if (compiled.root == null) return false;
+    return compiled.root.match(dict);
+  }
+
+  /**
+   * Answer the dictionaries that match, in the order of the collection. The
+   * presence of the attributes and the literal equalities that every match
+   * must satisfy are checked before the filter is evaluated.
+   */
+  public <T extends Dictionary<?, ?>> List<T> select(Collection<T> dicts) {
+    List<T> result = new ArrayList<T>();
+    if (compiled.root == null) return result;
+
+    next:
+    for (T dict : dicts) {
+      for (Simple guard : compiled.guards) {
+        if (!guard.accept(dict)) continue next;
+      }
+      if (compiled.root.match(dict)) result.add(dict);
     }
-    return null;
+    return result;
+  }
+
+  public String verify() {
+    return compiled.error;
   }
 
   public String toString() {
@@ -289,7 +421,7 @@ public class Filter {
     return filter.hashCode();
   }
 
-  boolean compareString(String s1, int op, String s2) {
+  static boolean compareString(String s1, int op, String s2) {
     switch (op) {
       case EQ:
         return patSubstr(s1, s2);
@@ -300,7 +432,7 @@ public class Filter {
     }
   }
 
-  boolean compareSign(int op, int cmp) {
+  static boolean compareSign(int op, int cmp) {
     switch (op) {
       case LE:
         return cmp >= 0;
@@ -313,7 +445,7 @@ public class Filter {
     }
   }
 
-  String fixupString(String s) {
+  static String fixupString(String s) {
     StringBuffer sb = new StringBuffer();
     int len = s.length();
     boolean isStart = true;
@@ -334,7 +466,7 @@ public class Filter {
     return sb.toString();
   }
 
-  boolean patSubstr(String s, String pat) {
+  static boolean patSubstr(String s, String pat) {
     if (s == null) return false;
     if (pat.length() == 0) return s.length() == 0;
     if (pat.charAt(0) == WILDCARD) {
@@ -41,6 +41,8 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.Attributes;
 import java.util.jar.Attributes.Name;
 import java.util.jar.Manifest;
@@ -51,6 +53,11 @@ public class Analyzer extends Processor {
 
   static String version;
   static Pattern versionPattern = Pattern.compile("(\\d+\\.\\d+)\\.\\d+.*");
+  /**
+   * Minimum number of class files a thread parses when the class files of a
+   * JAR are analyzed concurrently.
+   */
+  static final int MIN_CLASSES_PER_THREAD = 32;
   final Map<String, Map<String, String>> contained = newHashMap();                                                        // package
   final Map<String, Map<String, String>> referred = newHashMap();                                                        // refers
   // package
@@ -1630,6 +1637,10 @@ public class Analyzer extends Processor {
    * We traverse through all the classes that we can find and calculate the
    * contained and referred set and uses. This method ignores the Bundle
    * classpath.
+   * <p/>
+   * The class files are parsed first, concurrently if there are enough of
+   * them (see {@link Constants#PARALLEL_ANALYSIS}), and then merged in the
+   * order of the JAR so the outcome does not depend on the parse order.
    *
    * @param jar
    * @param contained
@@ -1646,7 +1657,7 @@ public class Analyzer extends Processor {
                           Set<String> hide,
                           boolean reportWrongPath) throws Exception {
 
-    next:
+    List<ClassFile> classFiles = new ArrayList<ClassFile>();
     for (String path : jar.getResources().keySet()) {
       if (path.startsWith(prefix) /* && !hide.contains(path) */) {
         hide.add(path);
@@ -1691,67 +1702,148 @@ public class Analyzer extends Processor {
 
         // Check class resources, we need to analyze them
         if (path.endsWith(".class")) {
-          Resource resource = jar.getResource(path);
-          Clazz clazz;
+          classFiles.add(new ClassFile(relativePath, pack, jar.getResource(path)));
+        }
+      }
+    }
 
-          try {
-            InputStream in = resource.openInputStream();
-            clazz = new Clazz(relativePath, resource);
-            try {
-              // Check if we have a package-info
-              if (relativePath.endsWith("/package-info.class")) {
-                // package-info can contain an Export annotation
-                Map<String, String> info = contained.get(pack);
-                parsePackageInfoClass(clazz, info);
-              }
-              else {
-                // Otherwise we just parse it simply
-                clazz.parseClassFile();
-              }
-            }
-            finally {
-              in.close();
-            }
-          }
-          catch (Throwable e) {
-            error("Invalid class file: " + relativePath, e);
-            e.printStackTrace();
-            continue next;
-          }
+    if (isParallelAnalysis(classFiles.size())) {
+      parseClassFiles(classFiles);
+    }
 
-          String calculatedPath = clazz.getClassName() + ".class";
-          if (!calculatedPath.equals(relativePath)) {
-            if (!isNoBundle() && reportWrongPath) {
-              error("Class in different directory than declared. Path from class name is " +
-                    calculatedPath +
-                    " but the path in the jar is " +
-                    relativePath +
-                    " from '" +
-                    jar +
-                    "'");
-            }
-          }
+    for (ClassFile classFile : classFiles) {
+      String relativePath = classFile.relativePath;
+      String pack = classFile.pack;
 
-          classSpace.put(relativePath, clazz);
+      // Check if we have a package-info, it can contain an Export
+      // annotation. Otherwise we just parse it simply, unless it has
+      // been parsed already.
+      if (relativePath.endsWith("/package-info.class")) {
+        try {
+          Clazz clazz = new Clazz(relativePath, classFile.resource);
+          parsePackageInfoClass(clazz, contained.get(pack));
+          classFile.clazz = clazz;
+        }
+        catch (Throwable e) {
+          classFile.exception = e;
+        }
+      }
+      else if (classFile.clazz == null && classFile.exception == null) {
+        classFile.parse();
+      }
 
-          // Look at the referred packages
-          // and copy them to our baseline
-          for (String p : clazz.getReferred()) {
-            Map<String, String> attrs = referred.get(p);
-            if (attrs == null) {
-              attrs = newMap();
-              referred.put(p, attrs);
-            }
-          }
+      if (classFile.exception != null) {
+        error("Invalid class file: " + relativePath, classFile.exception);
+        classFile.exception.printStackTrace();
+        continue;
+      }
+      Clazz clazz = classFile.clazz;
+
+      String calculatedPath = clazz.getClassName() + ".class";
+      if (!calculatedPath.equals(relativePath)) {
+        if (!isNoBundle() && reportWrongPath) {
+          error("Class in different directory than declared. Path from class name is " +
+                calculatedPath +
+                " but the path in the jar is " +
+                relativePath +
+                " from '" +
+                jar +
+                "'");
+        }
+      }
+
+      classSpace.put(relativePath, clazz);
+
+      // Look at the referred packages
+      // and copy them to our baseline
+      for (String p : clazz.getReferred()) {
+        Map<String, String> attrs = referred.get(p);
+        if (attrs == null) {
+          attrs = newMap();
+          referred.put(p, attrs);
+        }
+      }
+
+      // Add all the used packages
+      // to this package
+      Set<String> t = uses.get(pack);
+      if (t == null) uses.put(pack, t = new LinkedHashSet<String>());
+      t.addAll(clazz.getReferred());
+      t.remove(pack);
+    }
+  }
+
+  /**
+   * Answer if the given number of class files should be parsed
+   * concurrently. This is the case unless it is switched off with
+   * {@link Constants#PARALLEL_ANALYSIS}, there are enough class files to make
+   * it worthwhile and there is more than one processor.
+   */
+  private boolean isParallelAnalysis(int classCount) {
+    String parallel = getProperty(PARALLEL_ANALYSIS);
+    if (parallel != null && !isTrue(parallel)) return false;
 
-          // Add all the used packages
-          // to this package
-          Set<String> t = uses.get(pack);
-          if (t == null) uses.put(pack, t = new LinkedHashSet<String>());
-          t.addAll(clazz.getReferred());
-          t.remove(pack);
+    return classCount >= MIN_CLASSES_PER_THREAD * 2 && Runtime.getRuntime().availableProcessors() > 1;
+  }
+
+  /**
+   * Parse the given class files concurrently. The calling thread takes part
+   * in the parsing so this also makes progress when the executor is busy.
+   * Package-info classes are skipped, they are parsed while merging because
+   * they need the package information.
+   */
+  private void parseClassFiles(final List<ClassFile> classFiles) throws Exception {
+    int threads = Math.min(Runtime.getRuntime().availableProcessors(), classFiles.size() / MIN_CLASSES_PER_THREAD);
+    final AtomicInteger next = new AtomicInteger();
+    Runnable worker = new Runnable() {
+      public void run() {
+        int n;
+        while ((n = next.getAndIncrement()) < classFiles.size()) {
+          ClassFile classFile = classFiles.get(n);
+          if (!classFile.relativePath.endsWith("/package-info.class")) classFile.parse();
         }
       }
+    };
+
+    List<FutureTask<Object>> tasks = new ArrayList<FutureTask<Object>>();
+    for (int i = 1; i < threads; i++) {
+      FutureTask<Object> task = new FutureTask<Object>(worker, null);
+      tasks.add(task);
+      getExecutor().execute(task);
+    }
+    worker.run();
+    for (FutureTask<Object> task : tasks) {
+      task.get();
+    }
+  }
+
+  /**
+   * A class file of the JAR that is analyzed, with the outcome of parsing it.
+   * The outcome is published to the analyzing thread by the completion of
+   * the task that parsed it.
+   */
+  static class ClassFile {
+    final String relativePath;
+    final String pack;
+    final Resource resource;
+    Clazz clazz;
+    Throwable exception;
+
+    ClassFile(String relativePath, String pack, Resource resource) {
+      this.relativePath = relativePath;
+      this.pack = pack;
+      this.resource = resource;
+    }
+
+    void parse() {
+      try {
+        Clazz c = new Clazz(relativePath, resource);
+        c.scanClassFile();
+        clazz = c;
+      }
+      catch (Throwable e) {
+        exception = e;
+      }
     }
   }
 
@@ -2153,7 +2245,7 @@ public class Analyzer extends Processor {
     Resource r = findResource(path);
     if (r != null) {
       c = new Clazz(path, r);
-      c.parseClassFile();
+      c.scanClassFile();
       importedClassesCache.put(path, c);
     }
     return c;
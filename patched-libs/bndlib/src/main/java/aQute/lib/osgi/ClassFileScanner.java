@@ -0,0 +1,369 @@
+package aQute.lib.osgi;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.annotation.RetentionPolicy;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashSet;
+
+/**
+ * Scans a class file for the information the analyzer needs: the class name,
+ * the super class, the interfaces, the access flags, the annotations and the
+ * referred packages. It works directly on a buffer, only remembers the offsets
+ * of the constant pool entries and only decodes the UTF8 entries that are
+ * actually needed.
+ * <p/>
+ * The outcome is the same as with {@link Clazz#parseClassFile()} without a
+ * collector. Class files of compilers before Java 5 may encode class
+ * references in strings passed to Class.forName, finding those requires the
+ * byte code to be crawled. Those class files are handed to the full parser.
+ */
+class ClassFileScanner {
+  static final int CONSTANT_UTF8 = 1;
+  static final int CONSTANT_CLASS = 7;
+  static final int CONSTANT_NAME_AND_TYPE = 12;
+
+  final Clazz clazz;
+  final ByteBuffer bb;
+  final int start;
+
+  int[] offsets;
+  String[] strings;
+  char[] chars = new char[128];
+
+  ClassFileScanner(Clazz clazz, ByteBuffer bb) {
+    this.clazz = clazz;
+    this.bb = bb.duplicate();
+    this.bb.order(ByteOrder.BIG_ENDIAN);
+    this.start = bb.position();
+  }
+
+  void scan() throws IOException {
+    try {
+      if (!scanClass()) {
+        // needs the byte code crawler, use the full parser
+        parse();
+      }
+    }
+    catch (IndexOutOfBoundsException e) {
+      throw new IOException("Invalid class file " + clazz.getPath() + ", unexpected end of data");
+    }
+  }
+
+  /**
+   * Scan the class file.
+   *
+   * @return false if the class file must be parsed with the full parser
+   */
+  private boolean scanClass() throws IOException {
+    if (bb.getInt() != 0xCAFEBABE) throw new IOException("Not a valid class file (no CAFEBABE header)");
+
+    clazz.minor = u2();
+    clazz.major = u2();
+    if (clazz.major == 48) {
+      // might use Class.forName for class literals
+      return false;
+    }
+
+    int count = u2();
+    offsets = new int[count];
+    strings = new String[count];
+
+    process:
+    for (int poolIndex = 1; poolIndex < count; poolIndex++) {
+      offsets[poolIndex] = bb.position();
+      int tag = bb.get();
+      switch (tag) {
+        case 0:
+          break process;
+
+        case CONSTANT_UTF8:
+          skip(u2());
+          break;
+
+        // long and double take two entries in the constant pool
+        case 5:
+        case 6:
+          skip(8);
+          poolIndex++;
+          break;
+
+        default:
+          if (tag < 0 || tag >= Clazz.SkipTable.length || tag == 2) throw new IOException("Invalid tag " + tag);
+          skip(tag == CONSTANT_CLASS ? 2 : Clazz.SkipTable[tag]);
+          break;
+      }
+    }
+
+    int access_flags = u2();
+    clazz.isAbstract = (access_flags & Clazz.ACC_ABSTRACT) != 0;
+    clazz.isPublic = (access_flags & Clazz.ACC_PUBLIC) != 0;
+    clazz.isEnum = (access_flags & Clazz.ACC_ENUM) != 0;
+
+    clazz.className = className(u2());
+
+    clazz.zuper = className(u2());
+    if (clazz.zuper != null) clazz.packageReference(Clazz.getPackage(clazz.zuper));
+
+    int interfacesCount = u2();
+    if (interfacesCount > 0) {
+      clazz.interfaces = new String[interfacesCount];
+      for (int i = 0; i < interfacesCount; i++) {
+        clazz.interfaces[i] = className(u2());
+      }
+    }
+
+    int fieldsCount = u2();
+    for (int i = 0; i < fieldsCount; i++) {
+      skip(2); // access flags
+      if (utf8StartsWith(u2(), "class$")) return false;
+      descriptor(u2());
+      attributes(false);
+    }
+
+    int methodCount = u2();
+    for (int i = 0; i < methodCount; i++) {
+      skip(4); // access flags, name
+      descriptor(u2());
+      attributes(false);
+    }
+
+    attributes(true);
+
+    //
+    // The classes and the name and types of the
+    // constant pool
+    //
+    for (int poolIndex = 1; poolIndex < count; poolIndex++) {
+      int offset = offsets[poolIndex];
+      if (offset == 0) continue;
+
+      int tag = bb.get(offset);
+      if (tag == CONSTANT_CLASS) {
+        String name = utf8(bb.getShort(offset + 1) & 0xFFFF);
+        if (name.endsWith(";") || name.startsWith("[")) {
+          clazz.parseReference(name, 0);
+        }
+        else {
+          clazz.packageReference(Clazz.getPackage(name));
+        }
+      }
+      else if (tag == CONSTANT_NAME_AND_TYPE) {
+        descriptor(bb.getShort(offset + 3) & 0xFFFF);
+      }
+    }
+    return true;
+  }
+
+  private void attributes(boolean type) throws IOException {
+    int attributesCount = u2();
+    for (int j = 0; j < attributesCount; j++) {
+      int attribute_name_index = u2();
+      long attribute_length = bb.getInt() & 0xFFFFFFFFL;
+      if (attribute_length > 0x7FFFFFFF) {
+        throw new IllegalArgumentException("Attribute > 2Gb");
+      }
+      int end = bb.position() + (int)attribute_length;
+
+      String attributeName = utf8(attribute_name_index);
+      if ("RuntimeVisibleAnnotations".equals(attributeName)) {
+        annotations(RetentionPolicy.RUNTIME);
+      }
+      else if ("RuntimeVisibleParameterAnnotations".equals(attributeName)) {
+        parameterAnnotations(RetentionPolicy.RUNTIME);
+      }
+      else if ("RuntimeInvisibleAnnotations".equals(attributeName)) {
+        annotations(RetentionPolicy.CLASS);
+      }
+      else if ("RuntimeInvisibleParameterAnnotations".equals(attributeName)) {
+        parameterAnnotations(RetentionPolicy.CLASS);
+      }
+      else if ("SourceFile".equals(attributeName)) {
+        clazz.sourceFile = utf8(u2());
+      }
+      else if ("Signature".equals(attributeName)) {
+        // the type signature is skipped, see Clazz.doSignature
+        if (!type) clazz.parseDescriptor(utf8(u2()));
+      }
+      bb.position(end);
+    }
+  }
+
+  private void parameterAnnotations(RetentionPolicy policy) {
+    int num_parameters = bb.get() & 0xFF;
+    for (int p = 0; p < num_parameters; p++) {
+      annotations(policy);
+    }
+  }
+
+  private void annotations(RetentionPolicy policy) {
+    int num_annotations = u2();
+    for (int a = 0; a < num_annotations; a++) {
+      annotation(policy);
+    }
+  }
+
+  private void annotation(RetentionPolicy policy) {
+    int type_index = u2();
+    if (clazz.annotations == null) clazz.annotations = new HashSet<String>();
+    clazz.annotations.add(utf8(type_index));
+
+    if (policy == RetentionPolicy.RUNTIME) {
+      descriptor(type_index);
+      clazz.hasRuntimeAnnotations = true;
+    }
+    else {
+      clazz.hasClassAnnotations = true;
+    }
+
+    int num_element_value_pairs = u2();
+    for (int v = 0; v < num_element_value_pairs; v++) {
+      skip(2); // element name
+      elementValue(policy);
+    }
+  }
+
+  private void elementValue(RetentionPolicy policy) {
+    char tag = (char)(bb.get() & 0xFF);
+    switch (tag) {
+      case 'B': // Byte
+      case 'C': // Character
+      case 'I': // Integer
+      case 'S': // Short
+      case 'D': // Double
+      case 'F': // Float
+      case 's': // String
+      case 'J': // Long
+      case 'Z': // Boolean
+        skip(2);
+        break;
+
+      case 'e': // enum constant
+        int type_name_index = u2();
+        if (policy == RetentionPolicy.RUNTIME) descriptor(type_name_index);
+        skip(2);
+        break;
+
+      case 'c': // Class
+        int class_info_index = u2();
+        if (policy == RetentionPolicy.RUNTIME) descriptor(class_info_index);
+        break;
+
+      case '@': // Annotation type
+        annotation(policy);
+        break;
+
+      case '[': // Array
+        int num_values = u2();
+        for (int i = 0; i < num_values; i++) {
+          elementValue(policy);
+        }
+        break;
+
+      default:
+        throw new IllegalArgumentException("Invalid value for Annotation ElementValue tag " + tag);
+    }
+  }
+
+  private void descriptor(int index) {
+    String prototype = utf8(index);
+    if (prototype != null) {
+      clazz.parseDescriptor(prototype);
+    }
+    else {
+      System.err.println("Unrecognized descriptor: " + index);
+    }
+  }
+
+  /**
+   * Answer the name of the class constant at the given index, or null for
+   * index 0.
+   */
+  private String className(int index) {
+    if (index == 0 || bb.get(offsets[index]) != CONSTANT_CLASS) return null;
+    return utf8(bb.getShort(offsets[index] + 1) & 0xFFFF);
+  }
+
+  /**
+   * Answer the UTF8 constant at the given index, or null if the entry is not
+   * a UTF8 constant. Decoded strings are remembered.
+   */
+  String utf8(int index) {
+    if (index <= 0 || index >= offsets.length) return null;
+    String s = strings[index];
+    if (s != null) return s;
+
+    int offset = offsets[index];
+    if (offset == 0 || bb.get(offset) != CONSTANT_UTF8) return null;
+
+    int length = bb.getShort(offset + 1) & 0xFFFF;
+    if (chars.length < length) chars = new char[length];
+    int n = 0;
+    int p = offset + 3;
+    int end = p + length;
+    while (p < end) {
+      int c = bb.get(p++) & 0xFF;
+      if (c < 0x80) {
+        chars[n++] = (char)c;
+      }
+      else if ((c & 0xE0) == 0xC0) {
+        chars[n++] = (char)(((c & 0x1F) << 6) | (bb.get(p++) & 0x3F));
+      }
+      else {
+        chars[n++] = (char)(((c & 0x0F) << 12) | ((bb.get(p++) & 0x3F) << 6) | (bb.get(p++) & 0x3F));
+      }
+    }
+    return strings[index] = new String(chars, 0, n);
+  }
+
+  /**
+   * Answer if the UTF8 constant at the given index starts with the given
+   * ASCII prefix, without decoding it.
+   */
+  private boolean utf8StartsWith(int index, String prefix) {
+    int offset = offsets[index];
+    if (offset == 0 || bb.get(offset) != CONSTANT_UTF8) return false;
+    int length = bb.getShort(offset + 1) & 0xFFFF;
+    if (length < prefix.length()) return false;
+    for (int i = 0; i < prefix.length(); i++) {
+      if (bb.get(offset + 3 + i) != prefix.charAt(i)) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Parse the class file with the full parser.
+   */
+  private void parse() throws IOException {
+    clazz.imports = new HashSet<String>();
+    clazz.annotations = null;
+    clazz.hasRuntimeAnnotations = false;
+    clazz.hasClassAnnotations = false;
+    clazz.interfaces = null;
+    clazz.sourceFile = null;
+
+    bb.position(start);
+    byte[] data;
+    int offset;
+    if (bb.hasArray()) {
+      data = bb.array();
+      offset = bb.arrayOffset() + start;
+    }
+    else {
+      data = new byte[bb.remaining()];
+      bb.get(data);
+      offset = 0;
+    }
+    clazz.parseClassFile(new DataInputStream(new ByteArrayInputStream(data, offset, bb.limit() - start)));
+  }
+
+  private int u2() {
+    return bb.getShort() & 0xFFFF;
+  }
+
+  private void skip(int n) {
+    bb.position(bb.position() + n);
+  }
+}
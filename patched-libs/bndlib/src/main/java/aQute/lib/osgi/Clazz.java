@@ -2,8 +2,10 @@ package aQute.lib.osgi;
 
 import aQute.bnd.annotation.ProviderType;
 import aQute.bnd.annotation.UsePolicy;
+import aQute.lib.io.IO;
 import aQute.libg.generics.Create;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -369,6 +371,34 @@ public class Clazz {
     }
   }
 
+  /**
+   * Scan the class file for its name, super class, interfaces, annotations
+   * and referred packages. This has the same outcome as
+   * {@link #parseClassFile()} but is much cheaper, it is used when no
+   * collector is needed.
+   *
+   * @return the referred packages
+   */
+  public Set<String> scanClassFile() throws Exception {
+    if (resource instanceof MappedZipResource) return scanClassFile(((MappedZipResource)resource).buffer());
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    IO.copy(resource.openInputStream(), out);
+    return scanClassFile(ByteBuffer.wrap(out.toByteArray()));
+  }
+
+  /**
+   * Scan the class file in the remaining bytes of the buffer, see
+   * {@link #scanClassFile()}. The position of the buffer is not changed.
+   *
+   * @param bb the class file
+   * @return the referred packages
+   */
+  public Set<String> scanClassFile(ByteBuffer bb) throws IOException {
+    new ClassFileScanner(this, bb).scan();
+    return imports;
+  }
+
   public Set<String> parseClassFile(InputStream in, ClassDataCollector cd) throws IOException {
     DataInputStream din = new DataInputStream(in);
     try {
@@ -83,6 +83,7 @@ public interface Constants {
   String NOEXTRAHEADERS = "-noextraheaders";
   String NOMANIFEST = "-nomanifest";
   String NOUSES = "-nouses";
+  String PARALLEL_ANALYSIS = "-parallelanalysis";
   @Deprecated String NOPE = "-nope";
   String NOBUNDLES = "-nobundles";
   String PEDANTIC = "-pedantic";
@@ -131,7 +132,7 @@ public interface Constants {
 
   String options[] =
     {BUILDPATH, BUMPPOLICY, CONDUIT, CLASSPATH, CONSUMER_POLICY, DEPENDSON, DONOTCOPY, EXPORT_CONTENTS, FAIL_OK, INCLUDE, INCLUDERESOURCE,
-      MAKE, MANIFEST, NOEXTRAHEADERS, NOUSES, NOBUNDLES, PEDANTIC, PLUGIN, POM, PROVIDER_POLICY, REMOVEHEADERS, RESOURCEONLY, SOURCES,
+      MAKE, MANIFEST, NOEXTRAHEADERS, NOUSES, NOBUNDLES, PARALLEL_ANALYSIS, PEDANTIC, PLUGIN, POM, PROVIDER_POLICY, REMOVEHEADERS, RESOURCEONLY, SOURCES,
       SOURCEPATH, SOURCES, SOURCEPATH, SUB, RUNBUNDLES, RUNPATH, RUNSYSTEMPACKAGES, RUNPROPERTIES, REPORTNEWER, UNDERTEST, TESTPATH,
       TESTPACKAGES, TESTREPORT, VERBOSE, NOMANIFEST, DEPLOYREPO, RELEASEREPO, SAVEMANIFEST, RUNVM, WAB, WABLIB, RUNFRAMEWORK, RUNTRACE,
       TESTCONTINUOUS, SNAPSHOT};
@@ -2,6 +2,7 @@ package aQute.lib.osgi;
 
 import java.io.*;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipInputStream;
 
 public class EmbeddedResource implements Resource {
@@ -65,7 +66,20 @@ public class EmbeddedResource implements Resource {
     return lastModified;
   }
 
+  /**
+   * Add the entries of the embedded JAR to the given JAR. The embedded JAR is
+   * read at once and its entries refer to that buffer, see
+   * {@link MappedZipResource}. Only archives that cannot be read that way are
+   * streamed and copied entry by entry.
+   */
   public static void build(Jar sub, Resource resource) throws Exception {
+    try {
+      MappedZipResource.build(sub, resource);
+      return;
+    }
+    catch (ZipException e) {
+      // e.g. ZIP64, fall back to streaming
+    }
     InputStream in = resource.openInputStream();
     build(sub, in, resource.lastModified());
     in.close();
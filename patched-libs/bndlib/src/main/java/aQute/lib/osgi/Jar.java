@@ -1,10 +1,8 @@
 package aQute.lib.osgi;
 
-import aQute.lib.base64.Base64;
 import aQute.libg.reporter.Reporter;
 
 import java.io.*;
-import java.security.MessageDigest;
 import java.util.*;
 import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
@@ -22,6 +20,19 @@ import static aQute.lib.io.IO.getFile;
 
 public class Jar implements Closeable {
   public static final Object[] EMPTY_ARRAY = new Jar[0];
+  /**
+   * If true, JAR files are mapped into memory instead of being opened as a
+   * ZipFile, see {@link MappedZipResource}. Note that a mapped file stays
+   * mapped until the buffer is garbage collected, on some platforms the file
+   * cannot be deleted or overwritten in the meantime.
+   */
+  static volatile boolean mapped = Boolean.getBoolean("aQute.bnd.jar.mapped");
+  /**
+   * If true, JARs are written by a {@link JarWriter}, which copies entries of
+   * ZIP files without deflating them again and deflates the other entries
+   * concurrently.
+   */
+  static volatile boolean streaming = Boolean.getBoolean("aQute.bnd.jar.streaming");
   Map<String, Resource> resources = new TreeMap<String, Resource>();
   Map<String, Map<String, Resource>> directories = new TreeMap<String, Map<String, Resource>>();
   Manifest manifest;
@@ -46,6 +57,15 @@ public class Jar implements Closeable {
       FileResource.build(this, dirOrFile, doNotCopy);
     }
     else if (dirOrFile.isFile()) {
+      if (mapped) {
+        try {
+          MappedZipResource.build(this, dirOrFile, null);
+          return;
+        }
+        catch (ZipException e) {
+          // not supported, e.g. ZIP64, use a ZipFile
+        }
+      }
       zipFile = ZipResource.build(this, dirOrFile);
     }
     else {
@@ -96,6 +116,26 @@ public class Jar implements Closeable {
     this(string, file, Pattern.compile(Constants.DEFAULT_DO_NOT_COPY));
   }
 
+  /**
+   * Set if JAR files are mapped into memory, see {@link #mapped}. The default
+   * is taken from the system property aQute.bnd.jar.mapped.
+   *
+   * @param mapped true to map JAR files
+   */
+  public static void setMapped(boolean mapped) {
+    Jar.mapped = mapped;
+  }
+
+  /**
+   * Set if JARs are written in streaming mode, see {@link #streaming}. The
+   * default is taken from the system property aQute.bnd.jar.streaming.
+   *
+   * @param streaming true to write JARs in streaming mode
+   */
+  public static void setStreaming(boolean streaming) {
+    Jar.streaming = streaming;
+  }
+
   public void setName(String name) {
     this.name = name;
   }
@@ -209,6 +249,14 @@ public class Jar implements Closeable {
   }
 
   public void write(OutputStream out) throws Exception {
+    if (streaming) {
+      JarWriter writer = new JarWriter(this);
+      if (writer.fits()) {
+        writer.write(out);
+        return;
+      }
+    }
+
     ZipOutputStream jout = nomanifest || doNotTouchManifest ? new ZipOutputStream(out) : new JarOutputStream(out);
     Set<String> done = new HashSet<String>();
 
@@ -566,43 +614,29 @@ public class Jar implements Closeable {
       setManifest(m);
     }
 
-    MessageDigest digests[] = new MessageDigest[algorithms.length];
-    int n = 0;
-    for (String algorithm : algorithms) {
-      digests[n++] = MessageDigest.getInstance(algorithm);
-    }
-
-    byte buffer[] = new byte[30000];
-
+    // digest the entries concurrently, then set the digests in the
+    // order of the entries
+    List<String> names = new ArrayList<String>(resources.size());
+    List<Resource> digested = new ArrayList<Resource>(resources.size());
     for (Map.Entry<String, Resource> entry : resources.entrySet()) {
 
       // Skip the manifest
       if (entry.getKey().equals("META-INF/MANIFEST.MF")) continue;
 
-      Resource r = entry.getValue();
-      Attributes attributes = m.getAttributes(entry.getKey());
+      names.add(entry.getKey());
+      digested.add(entry.getValue());
+    }
+
+    String digests[][] = new JarDigester(algorithms).digest(digested);
+
+    for (int i = 0; i < names.size(); i++) {
+      Attributes attributes = m.getAttributes(names.get(i));
       if (attributes == null) {
-        attributes = new Attributes();
-        getManifest().getEntries().put(entry.getKey(), attributes);
-      }
-      InputStream in = r.openInputStream();
-      try {
-        for (MessageDigest d : digests) {
-          d.reset();
-        }
-        int size = in.read(buffer);
-        while (size > 0) {
-          for (MessageDigest d : digests) {
-            d.update(buffer, 0, size);
-          }
-          size = in.read(buffer);
-        }
-      }
-      finally {
-        in.close();
+        attributes = new Attributes(algorithms.length);
+        m.getEntries().put(names.get(i), attributes);
       }
-      for (MessageDigest d : digests) {
-        attributes.putValue(d.getAlgorithm() + "-Digest", Base64.encodeBase64(d.digest()));
+      for (int a = 0; a < algorithms.length; a++) {
+        attributes.putValue(algorithms[a] + "-Digest", digests[i][a]);
       }
     }
   }
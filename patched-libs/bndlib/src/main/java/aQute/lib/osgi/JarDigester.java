@@ -0,0 +1,211 @@
+package aQute.lib.osgi;
+
+import aQute.lib.base64.Base64;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Calculates the digests of the entries of a JAR for
+ * {@link Jar#calcChecksums(String[])}. Each entry is read once for all
+ * algorithms, the entries are hashed concurrently and every worker thread uses
+ * its own set of digests.
+ * <p/>
+ * The digests of entries that are backed by a file or by an entry of a ZIP
+ * file are remembered, keyed by the file or entry and validated by its time
+ * stamp and size (and CRC for ZIP entries). Calculating the checksums of a JAR
+ * again after a few entries have changed only reads the changed entries.
+ */
+class JarDigester {
+  static final int MAX_THREADS = 8;
+  static final int MIN_ENTRIES_PER_THREAD = 16;
+  static final int MAX_CACHED = 50000;
+
+  /**
+   * The remembered digests, least recently used first.
+   */
+  static final Map<String, Digests> cache = new LinkedHashMap<String, Digests>(1024, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    protected boolean removeEldestEntry(Map.Entry<String, Digests> eldest) {
+      return size() > MAX_CACHED;
+    }
+  };
+
+  /**
+   * The digests of a resource, valid as long as the stamp of the resource
+   * does not change.
+   */
+  static class Digests {
+    final String stamp;
+    final String values[];
+
+    Digests(String stamp, String values[]) {
+      this.stamp = stamp;
+      this.values = values;
+    }
+  }
+
+  final String algorithms[];
+  final String algorithmKey;
+
+  JarDigester(String algorithms[]) {
+    this.algorithms = algorithms;
+    StringBuilder sb = new StringBuilder();
+    for (String algorithm : algorithms) {
+      sb.append(algorithm).append(',');
+    }
+    this.algorithmKey = sb.toString();
+  }
+
+  /**
+   * Calculate the digests of the given resources.
+   *
+   * @return the Base64 encoded digests per resource, in the order of the
+   *         algorithms
+   */
+  String[][] digest(final List<Resource> resources) throws Exception {
+    final String result[][] = new String[resources.size()][];
+    final AtomicInteger next = new AtomicInteger();
+
+    // fail early on an unknown algorithm
+    final MessageDigest first[] = createDigests();
+
+    class Worker implements Callable<Object> {
+      MessageDigest digests[];
+
+      Worker(MessageDigest digests[]) {
+        this.digests = digests;
+      }
+
+      public Object call() throws Exception {
+        if (digests == null) digests = createDigests();
+        byte buffer[] = new byte[30000];
+        int n;
+        while ((n = next.getAndIncrement()) < resources.size()) {
+          result[n] = digest(resources.get(n), digests, buffer);
+        }
+        return null;
+      }
+    }
+
+    int threads = Math.min(Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()), resources.size() / MIN_ENTRIES_PER_THREAD);
+    List<FutureTask<Object>> tasks = new ArrayList<FutureTask<Object>>();
+    try {
+      for (int i = 1; i < threads; i++) {
+        FutureTask<Object> task = new FutureTask<Object>(new Worker(null));
+        tasks.add(task);
+        Processor.getExecutor().execute(task);
+      }
+      new Worker(first).call();
+      for (FutureTask<Object> task : tasks) {
+        task.get();
+      }
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) throw (Exception)cause;
+      throw e;
+    }
+    finally {
+      // stop the other workers if one failed
+      next.set(resources.size());
+    }
+    return result;
+  }
+
+  private String[] digest(Resource r, MessageDigest digests[], byte buffer[]) throws Exception {
+    String key = getKey(r);
+    String stamp = null;
+    if (key != null) {
+      stamp = getStamp(r);
+      Digests cached;
+      synchronized (cache) {
+        cached = cache.get(key);
+      }
+      if (cached != null && cached.stamp.equals(stamp)) return cached.values;
+    }
+
+    for (MessageDigest d : digests) {
+      d.reset();
+    }
+    if (r instanceof MappedZipResource) {
+      ByteBuffer bb = ((MappedZipResource)r).buffer();
+      for (MessageDigest d : digests) {
+        d.update(bb.duplicate());
+      }
+    }
+    else {
+      InputStream in = r.openInputStream();
+      try {
+        int size = in.read(buffer);
+        while (size > 0) {
+          for (MessageDigest d : digests) {
+            d.update(buffer, 0, size);
+          }
+          size = in.read(buffer);
+        }
+      }
+      finally {
+        in.close();
+      }
+    }
+
+    String values[] = new String[digests.length];
+    for (int i = 0; i < digests.length; i++) {
+      values[i] = Base64.encodeBase64(digests[i].digest());
+    }
+
+    if (key != null) {
+      synchronized (cache) {
+        cache.put(key, new Digests(stamp, values));
+      }
+    }
+    return values;
+  }
+
+  private MessageDigest[] createDigests() throws Exception {
+    MessageDigest digests[] = new MessageDigest[algorithms.length];
+    for (int i = 0; i < algorithms.length; i++) {
+      digests[i] = MessageDigest.getInstance(algorithms[i]);
+    }
+    return digests;
+  }
+
+  /**
+   * Answer the key under which the digests of the resource are remembered,
+   * or null if the resource has no stable identity.
+   */
+  private String getKey(Resource r) {
+    if (r instanceof FileResource) return algorithmKey + ((FileResource)r).file.getAbsolutePath();
+    if (r instanceof ZipResource) {
+      ZipResource zr = (ZipResource)r;
+      return algorithmKey + zr.zip.getName() + "!/" + zr.entry.getName();
+    }
+    if (r instanceof MappedZipResource) {
+      MappedZipResource mr = (MappedZipResource)r;
+      return algorithmKey + mr.archiveName + "!/" + mr.name;
+    }
+    return null;
+  }
+
+  private static String getStamp(Resource r) {
+    if (r instanceof FileResource) {
+      File file = ((FileResource)r).file;
+      return file.lastModified() + ":" + file.length();
+    }
+    if (r instanceof ZipResource) {
+      ZipResource zr = (ZipResource)r;
+      return zr.lastModified() + ":" + zr.entry.getSize() + ":" + zr.entry.getCrc();
+    }
+    MappedZipResource mr = (MappedZipResource)r;
+    return mr.lastModified() + ":" + mr.size + ":" + mr.crc;
+  }
+}
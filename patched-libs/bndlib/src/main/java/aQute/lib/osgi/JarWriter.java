@@ -0,0 +1,499 @@
+package aQute.lib.osgi;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a JAR without a ZipOutputStream. Entries that are read from a ZIP
+ * file are copied as they are stored in the source archive, without inflating
+ * and deflating them again; only the central directory of a source archive is
+ * read and only the copied entries are mapped. All other entries are deflated
+ * on the shared executor of the {@link Processor}. The entries are written in
+ * the same order as {@link Jar#write(OutputStream)} does, the manifest first,
+ * and the first entry is marked like a JarOutputStream marks it.
+ */
+class JarWriter {
+  static final int VERSION = 20;
+  static final int UTF8_FLAG = 0x0800;
+  static final int MAX_ENTRIES = 0xFFFF;
+  static final int MAX_THREADS = 8;
+  static final int JAR_MAGIC = 0xCAFE;
+
+  /**
+   * An entry to be written. Directories have neither data nor a resource.
+   */
+  static class Item {
+    final String path;
+    final Resource resource;
+    final byte[] data;
+    Source source;
+    Future<Deflated> deflated;
+
+    Item(String path, Resource resource, byte[] data) {
+      this.path = path;
+      this.resource = resource;
+      this.data = data;
+    }
+  }
+
+  /**
+   * An entry of a source archive that is copied as it is stored there. It is
+   * either a resource of an archive that is already mapped, or an entry of a
+   * ZIP file of which only the data is mapped when it is copied.
+   */
+  static class Source {
+    final int method;
+    final long crc;
+    final long compressedSize;
+    final long size;
+    final MappedZipResource resource;
+    final FileChannel channel;
+    final long localHeaderOffset;
+
+    Source(MappedZipResource resource) {
+      this.method = resource.method;
+      this.crc = resource.crc;
+      this.compressedSize = resource.compressedSize;
+      this.size = resource.size;
+      this.resource = resource;
+      this.channel = null;
+      this.localHeaderOffset = -1;
+    }
+
+    Source(int method, long crc, long compressedSize, long size, FileChannel channel, long localHeaderOffset) {
+      this.method = method;
+      this.crc = crc;
+      this.compressedSize = compressedSize;
+      this.size = size;
+      this.resource = null;
+      this.channel = channel;
+      this.localHeaderOffset = localHeaderOffset;
+    }
+
+    /**
+     * Answer the data of the entry as it is stored in the archive.
+     */
+    ByteBuffer data() throws IOException {
+      if (resource != null) return resource.getRawBuffer();
+
+      ByteBuffer header = read(channel, localHeaderOffset, MappedZipResource.LOCHDR);
+      if (header.getInt(0) != MappedZipResource.LOCSIG) throw new ZipException("Invalid local header at " + localHeaderOffset);
+      long dataOffset = localHeaderOffset + MappedZipResource.LOCHDR + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+      return channel.map(MapMode.READ_ONLY, dataOffset, compressedSize);
+    }
+  }
+
+  /**
+   * The deflated content of an entry.
+   */
+  static class Deflated {
+    long crc;
+    long size;
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+  }
+
+  final Jar jar;
+  final List<Item> items = new ArrayList<Item>();
+  final Map<String, Map<String, Source>> sources = new HashMap<String, Map<String, Source>>();
+  final List<RandomAccessFile> archives = new ArrayList<RandomAccessFile>();
+  final Calendar calendar = Calendar.getInstance();
+  long defaultTime;
+  /**
+   * Jar writes with a JarOutputStream only if it generates the manifest.
+   */
+  final boolean jarMagic;
+
+  OutputStream out;
+  long offset;
+  ByteArrayOutputStream directory = new ByteArrayOutputStream();
+  int count;
+
+  JarWriter(Jar jar) throws Exception {
+    this.jar = jar;
+    jarMagic = !jar.nomanifest && !jar.doNotTouchManifest;
+    defaultTime = jar.lastModified();
+    if (defaultTime <= 0) defaultTime = System.currentTimeMillis();
+
+    Set<String> done = new HashSet<String>();
+    Set<String> directories = new HashSet<String>();
+    if (jar.doNotTouchManifest) {
+      Resource r = jar.getResource("META-INF/MANIFEST.MF");
+      if (r != null) {
+        add(directories, "META-INF/MANIFEST.MF", r);
+        done.add("META-INF/MANIFEST.MF");
+      }
+    }
+    else if (!jar.nomanifest) {
+      ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+      jar.writeManifest(manifest);
+      items.add(new Item("META-INF/MANIFEST.MF", null, manifest.toByteArray()));
+      done.add("META-INF/MANIFEST.MF");
+    }
+
+    for (Map.Entry<String, Resource> entry : jar.getResources().entrySet()) {
+      // Skip metainf contents
+      if (!done.contains(entry.getKey())) add(directories, entry.getKey(), entry.getValue());
+    }
+  }
+
+  private void add(Set<String> directories, String path, Resource resource) {
+    if (resource == null) return;
+
+    addDirectories(directories, path);
+    items.add(new Item(path, resource, null));
+  }
+
+  private void addDirectories(Set<String> directories, String name) {
+    int index = name.lastIndexOf('/');
+    if (index > 0) {
+      String path = name.substring(0, index);
+      if (directories.contains(path)) return;
+      addDirectories(directories, path);
+      items.add(new Item(path + '/', null, null));
+      directories.add(path);
+    }
+  }
+
+  /**
+   * Answer if the JAR can be written without ZIP64 extensions, as far as this
+   * can be known in advance.
+   */
+  boolean fits() {
+    return items.size() <= MAX_ENTRIES;
+  }
+
+  void write(OutputStream out) throws Exception {
+    this.out = new BufferedOutputStream(out, 65536);
+    try {
+      for (Item item : items) {
+        item.source = getSource(item.resource);
+      }
+
+      // the executor is shared, the window limits the entries deflated at the
+      // same time and the deflated entries kept in memory
+      int window = Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors())) * 2;
+      int submitted = 0;
+      try {
+        for (int written = 0; written < items.size(); written++) {
+          while (submitted < items.size() && submitted < written + window) {
+            final Item item = items.get(submitted++);
+            if (item.source == null && (item.resource != null || item.data != null)) {
+              FutureTask<Deflated> task = new FutureTask<Deflated>(new Callable<Deflated>() {
+                public Deflated call() throws Exception {
+                  return deflate(item);
+                }
+              });
+              item.deflated = task;
+              Processor.getExecutor().execute(task);
+            }
+          }
+          writeItem(items.get(written));
+        }
+      }
+      catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Exception) throw (Exception)cause;
+        throw e;
+      }
+      finally {
+        for (int i = 0; i < submitted; i++) {
+          Future<Deflated> deflated = items.get(i).deflated;
+          if (deflated != null) deflated.cancel(true);
+        }
+      }
+      finish();
+    }
+    finally {
+      for (RandomAccessFile archive : archives) {
+        try {
+          archive.close();
+        }
+        catch (IOException e) {
+          // ignore
+        }
+      }
+    }
+  }
+
+  private void writeItem(Item item) throws Exception {
+    long time = item.resource != null ? item.resource.lastModified() : defaultTime;
+    if (time == 0L) {
+      time = System.currentTimeMillis();
+    }
+    byte[] extra = item.resource != null && item.resource.getExtra() != null ? item.resource.getExtra().getBytes() : new byte[0];
+    if (count == 0 && jarMagic) extra = addJarMagic(extra);
+
+    if (item.source != null) {
+      Source source = item.source;
+      writeEntry(item.path, source.method, time, source.crc, source.compressedSize, source.size, extra);
+      MappedZipResource.write(source.data(), out);
+      offset += source.compressedSize;
+      item.source = null;
+    }
+    else if (item.deflated != null) {
+      Deflated deflated = item.deflated.get();
+      item.deflated = null;
+      writeEntry(item.path, ZipEntry.DEFLATED, time, deflated.crc, deflated.data.size(), deflated.size, extra);
+      deflated.data.writeTo(out);
+      offset += deflated.data.size();
+    }
+    else {
+      // directory
+      writeEntry(item.path, ZipEntry.STORED, time, 0, 0, 0, extra);
+    }
+  }
+
+  static Deflated deflate(Item item) throws Exception {
+    Deflated deflated = new Deflated();
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    try {
+      final CRC32 crc = new CRC32();
+      DeflaterOutputStream dout = new DeflaterOutputStream(deflated.data, deflater);
+      final long[] size = new long[1];
+      OutputStream checked = new FilterOutputStream(dout) {
+        public void write(int b) throws IOException {
+          crc.update(b);
+          size[0]++;
+          out.write(b);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+          crc.update(b, off, len);
+          size[0] += len;
+          out.write(b, off, len);
+        }
+      };
+      if (item.data != null) {
+        checked.write(item.data);
+      }
+      else if (item.resource instanceof FileResource || item.resource instanceof ZipResource) {
+        // their write method copies under a global lock
+        InputStream in = item.resource.openInputStream();
+        try {
+          byte buffer[] = new byte[20000];
+          int n;
+          while ((n = in.read(buffer)) > 0) {
+            checked.write(buffer, 0, n);
+          }
+        }
+        finally {
+          in.close();
+        }
+      }
+      else {
+        item.resource.write(checked);
+      }
+      dout.finish();
+      deflated.crc = crc.getValue();
+      deflated.size = size[0];
+      return deflated;
+    }
+    finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Mark the first entry like JarOutputStream does, with an empty extra field
+   * of id 0xCAFE in front of the other extra fields.
+   */
+  static byte[] addJarMagic(byte[] extra) {
+    for (int i = 0; i + 4 <= extra.length; i += 4 + ((extra[i + 2] & 0xFF) | (extra[i + 3] & 0xFF) << 8)) {
+      if (((extra[i] & 0xFF) | (extra[i + 1] & 0xFF) << 8) == JAR_MAGIC) return extra;
+    }
+    byte[] marked = new byte[extra.length + 4];
+    marked[0] = (byte)JAR_MAGIC;
+    marked[1] = (byte)(JAR_MAGIC >> 8);
+    System.arraycopy(extra, 0, marked, 4, extra.length);
+    return marked;
+  }
+
+  /**
+   * Answer the entry of the source archive if the resource can be copied as
+   * it is stored there.
+   */
+  private Source getSource(Resource resource) {
+    if (resource instanceof MappedZipResource) return new Source((MappedZipResource)resource);
+    if (!(resource instanceof ZipResource)) return null;
+
+    ZipResource zr = (ZipResource)resource;
+    String file = zr.zip.getName();
+    Map<String, Source> entries = sources.get(file);
+    if (entries == null) {
+      try {
+        RandomAccessFile archive = new RandomAccessFile(file, "r");
+        archives.add(archive);
+        entries = readDirectory(archive.getChannel());
+      }
+      catch (IOException e) {
+        // cannot be read directly, the entries are deflated again
+        entries = Collections.emptyMap();
+      }
+      sources.put(file, entries);
+    }
+
+    Source source = entries.get(zr.entry.getName());
+    if (source == null) return null;
+
+    // make sure the archive was not changed since the zip file was opened
+    ZipEntry entry = zr.entry;
+    if (source.method != entry.getMethod() || source.crc != entry.getCrc() || source.compressedSize != entry.getCompressedSize() || source.size != entry.getSize()) {
+      return null;
+    }
+    return source;
+  }
+
+  /**
+   * Read the central directory of a ZIP file, without mapping the file.
+   *
+   * @return the entries that can be copied by name
+   */
+  static Map<String, Source> readDirectory(FileChannel channel) throws IOException {
+    long length = channel.size();
+    if (length > 0xFFFFFFFFL) throw new ZipException("ZIP64 archives are not supported");
+
+    int tailLength = (int)Math.min(length, MappedZipResource.ENDHDR + 0xFFFF);
+    ByteBuffer tail = read(channel, length - tailLength, tailLength);
+    int end = MappedZipResource.findEndOfCentralDirectory(tail);
+    int count = tail.getShort(end + 10) & 0xFFFF;
+    long directorySize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+    long directoryOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+    if (count == 0xFFFF || directoryOffset + directorySize > length - tailLength + end) throw new ZipException("Invalid central directory");
+
+    ByteBuffer directory = read(channel, directoryOffset, (int)directorySize);
+    Map<String, Source> entries = new HashMap<String, Source>();
+    int offset = 0;
+    try {
+      for (int i = 0; i < count; i++) {
+        if (directory.getInt(offset) != MappedZipResource.CENSIG) throw new ZipException("Invalid central directory header");
+
+        int flags = directory.getShort(offset + 8) & 0xFFFF;
+        int method = directory.getShort(offset + 10) & 0xFFFF;
+        long crc = directory.getInt(offset + 16) & 0xFFFFFFFFL;
+        long compressedSize = directory.getInt(offset + 20) & 0xFFFFFFFFL;
+        long size = directory.getInt(offset + 24) & 0xFFFFFFFFL;
+        int nameLength = directory.getShort(offset + 28) & 0xFFFF;
+        int extraLength = directory.getShort(offset + 30) & 0xFFFF;
+        int commentLength = directory.getShort(offset + 32) & 0xFFFF;
+        long localHeaderOffset = directory.getInt(offset + 42) & 0xFFFFFFFFL;
+
+        byte[] name = new byte[nameLength];
+        directory.position(offset + MappedZipResource.CENHDR);
+        directory.get(name);
+        offset += MappedZipResource.CENHDR + nameLength + extraLength + commentLength;
+
+        // encrypted entries and other methods are deflated again
+        if ((flags & 1) == 0 && (method == MappedZipResource.STORED || method == MappedZipResource.DEFLATED)) {
+          entries.put(new String(name, "UTF-8"), new Source(method, crc, compressedSize, size, channel, localHeaderOffset));
+        }
+      }
+    }
+    catch (IndexOutOfBoundsException e) {
+      throw new ZipException("Truncated central directory");
+    }
+    return entries;
+  }
+
+  /**
+   * Read a part of the file into a little endian buffer.
+   */
+  static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+    ByteBuffer bb = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    while (bb.hasRemaining()) {
+      if (channel.read(bb, position + bb.position()) < 0) throw new EOFException("Unexpected end of archive");
+    }
+    bb.flip();
+    return bb;
+  }
+
+  private void writeEntry(String path, int method, long time, long crc, long compressedSize, long size, byte[] extra) throws IOException {
+    byte[] name = path.getBytes("UTF-8");
+    int dosTime = javaToDosTime(time);
+    if (count == MAX_ENTRIES || offset > 0xFFFFFFFFL - compressedSize - 30 - name.length - extra.length) {
+      throw new ZipException("JAR too large, ZIP64 is not supported: " + jar.getName());
+    }
+
+    DataOutputStream local = new DataOutputStream(out);
+    local.writeInt(Integer.reverseBytes(MappedZipResource.LOCSIG));
+    writeShort(local, VERSION);
+    writeShort(local, UTF8_FLAG);
+    writeShort(local, method);
+    local.writeInt(Integer.reverseBytes(dosTime));
+    local.writeInt(Integer.reverseBytes((int)crc));
+    local.writeInt(Integer.reverseBytes((int)compressedSize));
+    local.writeInt(Integer.reverseBytes((int)size));
+    writeShort(local, name.length);
+    writeShort(local, extra.length);
+    local.write(name);
+    local.write(extra);
+
+    DataOutputStream cen = new DataOutputStream(directory);
+    cen.writeInt(Integer.reverseBytes(MappedZipResource.CENSIG));
+    writeShort(cen, VERSION);
+    writeShort(cen, VERSION);
+    writeShort(cen, UTF8_FLAG);
+    writeShort(cen, method);
+    cen.writeInt(Integer.reverseBytes(dosTime));
+    cen.writeInt(Integer.reverseBytes((int)crc));
+    cen.writeInt(Integer.reverseBytes((int)compressedSize));
+    cen.writeInt(Integer.reverseBytes((int)size));
+    writeShort(cen, name.length);
+    writeShort(cen, extra.length);
+    writeShort(cen, 0); // comment
+    writeShort(cen, 0); // disk
+    writeShort(cen, 0); // internal attributes
+    cen.writeInt(0); // external attributes
+    cen.writeInt(Integer.reverseBytes((int)offset));
+    cen.write(name);
+    cen.write(extra);
+
+    offset += MappedZipResource.LOCHDR + name.length + extra.length;
+    count++;
+  }
+
+  private void finish() throws IOException {
+    if (offset + directory.size() > 0xFFFFFFFFL) throw new ZipException("JAR too large, ZIP64 is not supported: " + jar.getName());
+
+    directory.writeTo(out);
+    DataOutputStream end = new DataOutputStream(out);
+    end.writeInt(Integer.reverseBytes(MappedZipResource.ENDSIG));
+    writeShort(end, 0); // disk
+    writeShort(end, 0); // disk with the central directory
+    writeShort(end, count);
+    writeShort(end, count);
+    end.writeInt(Integer.reverseBytes(directory.size()));
+    end.writeInt(Integer.reverseBytes((int)offset));
+    writeShort(end, 0); // comment
+    end.flush();
+  }
+
+  private static void writeShort(DataOutputStream out, int value) throws IOException {
+    out.writeShort(Short.reverseBytes((short)value));
+  }
+
+  /**
+   * Convert the time to the MS-DOS format in the local time zone, like
+   * {@link ZipEntry#setTime(long)}.
+   */
+  private int javaToDosTime(long time) {
+    calendar.setTimeInMillis(time);
+    int year = calendar.get(Calendar.YEAR);
+    if (year < 1980) return (1 << 21) | (1 << 16);
+
+    return (year - 1980) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21 | calendar.get(Calendar.DAY_OF_MONTH) << 16 |
+           calendar.get(Calendar.HOUR_OF_DAY) << 11 | calendar.get(Calendar.MINUTE) << 5 | calendar.get(Calendar.SECOND) >> 1;
+  }
+}
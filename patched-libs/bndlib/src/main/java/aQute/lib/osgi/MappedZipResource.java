@@ -0,0 +1,443 @@
+package aQute.lib.osgi;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Calendar;
+import java.util.regex.Pattern;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * A resource in a ZIP archive that is held in a single buffer, usually a
+ * mapping of the archive file. Building a JAR from such an archive only reads
+ * the central directory, the entries are slices of the buffer and are only
+ * inflated when they are read. Embedded JARs are read in place, without
+ * copying their entries.
+ */
+public class MappedZipResource implements Resource {
+  static final int STORED = 0;
+  static final int DEFLATED = 8;
+
+  static final int LOCSIG = 0x04034b50;
+  static final int CENSIG = 0x02014b50;
+  static final int ENDSIG = 0x06054b50;
+  static final int LOCHDR = 30;
+  static final int CENHDR = 46;
+  static final int ENDHDR = 22;
+
+  final ByteBuffer archive;
+  final String archiveName;
+  final String name;
+  final int method;
+  final long crc;
+  final int compressedSize;
+  final int size;
+  final int localHeaderOffset;
+  volatile int dataOffset = -1;
+  long lastModified;
+  String extra;
+
+  MappedZipResource(ByteBuffer archive,
+                    String archiveName,
+                    String name,
+                    int method,
+                    long crc,
+                    int compressedSize,
+                    int size,
+                    int localHeaderOffset,
+                    long lastModified) {
+    this.archive = archive;
+    this.archiveName = archiveName;
+    this.name = name;
+    this.method = method;
+    this.crc = crc;
+    this.compressedSize = compressedSize;
+    this.size = size;
+    this.localHeaderOffset = localHeaderOffset;
+    this.lastModified = lastModified;
+  }
+
+  public InputStream openInputStream() throws IOException {
+    InputStream in = new ByteBufferInputStream(getRawBuffer());
+    if (method == STORED) return in;
+    return new EntryInflaterInputStream(in, compressedSize, size);
+  }
+
+  /**
+   * Answer the content of this resource. Stored entries are returned in
+   * place, deflated entries are inflated into a new buffer.
+   *
+   * @return a buffer positioned at the start of the content
+   */
+  public ByteBuffer buffer() throws IOException {
+    if (method == STORED) return getRawBuffer();
+
+    byte[] data = new byte[size];
+    DataInputStream in = new DataInputStream(openInputStream());
+    try {
+      in.readFully(data);
+    }
+    finally {
+      in.close();
+    }
+    return ByteBuffer.wrap(data);
+  }
+
+  /**
+   * Answer the data of this entry as it is stored in the archive, i.e.
+   * compressed if the entry is deflated.
+   */
+  ByteBuffer getRawBuffer() throws IOException {
+    return slice(archive, getDataOffset(), compressedSize);
+  }
+
+  private int getDataOffset() throws IOException {
+    int offset = dataOffset;
+    if (offset < 0) {
+      if (archive.getInt(localHeaderOffset) != LOCSIG) throw new ZipException("Invalid local header for " + this);
+      int nameLength = archive.getShort(localHeaderOffset + 26) & 0xFFFF;
+      int extraLength = archive.getShort(localHeaderOffset + 28) & 0xFFFF;
+      dataOffset = offset = localHeaderOffset + LOCHDR + nameLength + extraLength;
+    }
+    return offset;
+  }
+
+  public void write(OutputStream out) throws Exception {
+    if (method != STORED) {
+      InputStream in = openInputStream();
+      try {
+        byte buffer[] = new byte[20000];
+        int size = in.read(buffer);
+        while (size > 0) {
+          out.write(buffer, 0, size);
+          size = in.read(buffer);
+        }
+      }
+      finally {
+        in.close();
+      }
+      return;
+    }
+    write(getRawBuffer(), out);
+  }
+
+  static void write(ByteBuffer bb, OutputStream out) throws IOException {
+    if (bb.hasArray()) {
+      out.write(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining());
+      return;
+    }
+    byte buffer[] = new byte[Math.min(bb.remaining(), 20000)];
+    while (bb.hasRemaining()) {
+      int n = Math.min(bb.remaining(), buffer.length);
+      bb.get(buffer, 0, n);
+      out.write(buffer, 0, n);
+    }
+  }
+
+  public String toString() {
+    return ":" + archiveName + "(" + name + "):";
+  }
+
+  public long lastModified() {
+    return lastModified;
+  }
+
+  public String getExtra() {
+    return extra;
+  }
+
+  public void setExtra(String extra) {
+    this.extra = extra;
+  }
+
+  public long size() {
+    return size;
+  }
+
+  /**
+   * Map the given file and add its entries to the JAR.
+   *
+   * @param jar     the JAR to add the entries to
+   * @param file    the archive
+   * @param pattern if not null, only entries matching the pattern are added
+   * @throws ZipException if the archive is not a valid ZIP file or uses
+   *                      features that are not supported, like ZIP64
+   */
+  public static void build(Jar jar, File file, Pattern pattern) throws IOException {
+    ByteBuffer archive;
+    try {
+      archive = map(file);
+    }
+    catch (FileNotFoundException e) {
+      throw new IllegalArgumentException("Problem opening JAR: " + file.getAbsolutePath());
+    }
+    try {
+      build(jar, archive, file.getName(), file.lastModified(), pattern);
+    }
+    catch (ZipException ze) {
+      throw new ZipException("The JAR/ZIP file (" + file.getAbsolutePath() + ") seems corrupted, error: " + ze.getMessage());
+    }
+  }
+
+  /**
+   * Add the entries of an embedded archive to the JAR. The archive is read in
+   * place if possible, otherwise it is read once into a single buffer. A file
+   * is only mapped if {@link Jar#mapped} is set, a mapped file may stay
+   * locked until the buffer is garbage collected.
+   *
+   * @param jar      the JAR to add the entries to
+   * @param resource the embedded archive
+   */
+  public static void build(Jar jar, Resource resource) throws Exception {
+    ByteBuffer archive;
+    if (resource instanceof MappedZipResource) {
+      archive = ((MappedZipResource)resource).buffer();
+    }
+    else if (resource instanceof EmbeddedResource) {
+      archive = ByteBuffer.wrap(((EmbeddedResource)resource).data);
+    }
+    else if (resource instanceof FileResource) {
+      File file = ((FileResource)resource).file;
+      archive = Jar.mapped ? map(file) : read(file);
+    }
+    else {
+      InputStream in = resource.openInputStream();
+      try {
+        archive = ByteBuffer.wrap(EmbeddedResource.collect(in));
+      }
+      finally {
+        in.close();
+      }
+    }
+    build(jar, archive, resource.toString(), resource.lastModified(), null);
+  }
+
+  static ByteBuffer read(File file) throws IOException {
+    if (file.length() > Integer.MAX_VALUE) throw new ZipException("Archive is too large to be read: " + file);
+
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      byte[] data = new byte[(int)raf.length()];
+      raf.readFully(data);
+      return ByteBuffer.wrap(data);
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+  static ByteBuffer map(File file) throws IOException {
+    if (file.length() > Integer.MAX_VALUE) throw new ZipException("Archive is too large to be mapped: " + file);
+
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      // the mapping stays valid after the channel is closed
+      return channel.map(MapMode.READ_ONLY, 0, channel.size());
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Read the central directory of the archive in the buffer and add its
+   * entries to the JAR.
+   */
+  static void build(Jar jar, ByteBuffer buffer, String archiveName, long defaultTime, Pattern pattern) throws ZipException {
+    ByteBuffer archive = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+
+    int end = findEndOfCentralDirectory(archive);
+    int count = archive.getShort(end + 10) & 0xFFFF;
+    long directorySize = archive.getInt(end + 12) & 0xFFFFFFFFL;
+    long directoryOffset = archive.getInt(end + 16) & 0xFFFFFFFFL;
+    if (count == 0xFFFF || directorySize == 0xFFFFFFFFL || directoryOffset == 0xFFFFFFFFL) throw new ZipException("ZIP64 archives are not supported");
+    if (directoryOffset + directorySize > end) throw new ZipException("Invalid central directory");
+
+    Calendar calendar = Calendar.getInstance();
+    int offset = (int)directoryOffset;
+    try {
+      for (int i = 0; i < count; i++) {
+        if (archive.getInt(offset) != CENSIG) throw new ZipException("Invalid central directory header");
+
+        int flags = archive.getShort(offset + 8) & 0xFFFF;
+        int method = archive.getShort(offset + 10) & 0xFFFF;
+        int time = archive.getShort(offset + 12) & 0xFFFF;
+        int date = archive.getShort(offset + 14) & 0xFFFF;
+        long crc = archive.getInt(offset + 16) & 0xFFFFFFFFL;
+        long compressedSize = archive.getInt(offset + 20) & 0xFFFFFFFFL;
+        long size = archive.getInt(offset + 24) & 0xFFFFFFFFL;
+        int nameLength = archive.getShort(offset + 28) & 0xFFFF;
+        int extraLength = archive.getShort(offset + 30) & 0xFFFF;
+        int commentLength = archive.getShort(offset + 32) & 0xFFFF;
+        long localHeaderOffset = archive.getInt(offset + 42) & 0xFFFFFFFFL;
+
+        String name = new String(bytes(archive, offset + CENHDR, nameLength), "UTF-8");
+        int next = offset + CENHDR + nameLength + extraLength + commentLength;
+
+        if (!name.endsWith("/") && (pattern == null || pattern.matcher(name).matches())) {
+          if ((flags & 1) != 0) throw new ZipException("Encrypted entries are not supported: " + name);
+          if (method != STORED && method != DEFLATED) throw new ZipException("Unsupported compression method " + method + " for " + name);
+          if (size > Integer.MAX_VALUE || compressedSize > Integer.MAX_VALUE || localHeaderOffset >= end) {
+            throw new ZipException("ZIP64 archives are not supported");
+          }
+
+          long lastModified = extendedTime(archive, offset + CENHDR + nameLength, extraLength);
+          if (lastModified < 0) lastModified = dosToJavaTime(calendar, time, date);
+          if (lastModified <= 0) lastModified = defaultTime;
+          MappedZipResource resource =
+            new MappedZipResource(archive, archiveName, name, method, crc, (int)compressedSize, (int)size, (int)localHeaderOffset, lastModified);
+          if (extraLength > 0) resource.extra = new String(bytes(archive, offset + CENHDR + nameLength, extraLength));
+          jar.putResource(name, resource, true);
+        }
+        offset = next;
+      }
+    }
+    catch (IndexOutOfBoundsException e) {
+      throw new ZipException("Truncated central directory");
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static int findEndOfCentralDirectory(ByteBuffer archive) throws ZipException {
+    // the end record is followed by a comment of at most 64k
+    int limit = Math.max(0, archive.limit() - ENDHDR - 0xFFFF);
+    for (int offset = archive.limit() - ENDHDR; offset >= limit; offset--) {
+      if (archive.getInt(offset) == ENDSIG) return offset;
+    }
+    throw new ZipException("No central directory found");
+  }
+
+  /**
+   * Answer the modification time of the extended timestamp or the NTFS extra
+   * field, like {@link java.util.zip.ZipEntry#getTime()} does.
+   *
+   * @return the time or -1 if there is no such field
+   */
+  private static long extendedTime(ByteBuffer archive, int offset, int length) {
+    int end = offset + length;
+    while (offset + 4 <= end) {
+      int tag = archive.getShort(offset) & 0xFFFF;
+      int size = archive.getShort(offset + 2) & 0xFFFF;
+      offset += 4;
+      if (offset + size > end) break;
+
+      if (tag == 0x5455 && size >= 5 && (archive.get(offset) & 1) != 0) {
+        return (archive.getInt(offset + 1) & 0xFFFFFFFFL) * 1000;
+      }
+      if (tag == 0x000A && size >= 32 && archive.getShort(offset + 4) == 0x0001 && archive.getShort(offset + 6) == 24) {
+        // 100ns intervals since 1601
+        return archive.getLong(offset + 8) / 10000 - 11644473600000L;
+      }
+      offset += size;
+    }
+    return -1;
+  }
+
+  private static long dosToJavaTime(Calendar calendar, int time, int date) {
+    if (date == 0) return -1;
+    calendar.clear();
+    calendar.set(((date >> 9) & 0x7f) + 1980, ((date >> 5) & 0x0f) - 1, date & 0x1f, (time >> 11) & 0x1f, (time >> 5) & 0x3f, (time << 1) & 0x3e);
+    return calendar.getTimeInMillis();
+  }
+
+  private static byte[] bytes(ByteBuffer archive, int offset, int length) {
+    byte[] bytes = new byte[length];
+    ByteBuffer bb = archive.duplicate();
+    bb.position(offset);
+    bb.get(bytes);
+    return bytes;
+  }
+
+  static ByteBuffer slice(ByteBuffer archive, int offset, int length) {
+    ByteBuffer bb = archive.duplicate();
+    bb.limit(offset + length);
+    bb.position(offset);
+    return bb.slice();
+  }
+
+  /**
+   * Reads the remaining bytes of a buffer.
+   */
+  static class ByteBufferInputStream extends InputStream {
+    final ByteBuffer bb;
+
+    ByteBufferInputStream(ByteBuffer bb) {
+      this.bb = bb;
+    }
+
+    public int read() {
+      return bb.hasRemaining() ? bb.get() & 0xFF : -1;
+    }
+
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) return 0;
+      if (!bb.hasRemaining()) return -1;
+      len = Math.min(len, bb.remaining());
+      bb.get(b, off, len);
+      return len;
+    }
+
+    public long skip(long n) {
+      int skipped = (int)Math.min(Math.max(n, 0), bb.remaining());
+      bb.position(bb.position() + skipped);
+      return skipped;
+    }
+
+    public int available() {
+      return bb.remaining();
+    }
+  }
+
+  /**
+   * Inflates an entry. Raw deflate data needs an extra dummy byte at the end
+   * of the input, and the inflater is released when the stream is closed.
+   */
+  static class EntryInflaterInputStream extends InflaterInputStream {
+    final int size;
+    int read;
+    boolean eof;
+    boolean closed;
+
+    EntryInflaterInputStream(InputStream in, int compressedSize, int size) {
+      super(in, new Inflater(true), Math.max(512, Math.min(compressedSize + 1, 8192)));
+      this.size = size;
+    }
+
+    protected void fill() throws IOException {
+      if (eof) throw new EOFException("Unexpected end of ZLIB input stream");
+      len = in.read(buf, 0, buf.length);
+      if (len == -1) {
+        buf[0] = 0;
+        len = 1;
+        eof = true;
+      }
+      inf.setInput(buf, 0, len);
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) read += n;
+      return n;
+    }
+
+    public int available() throws IOException {
+      if (closed) return 0;
+      return Math.max(0, size - read);
+    }
+
+    public void close() throws IOException {
+      if (!closed) {
+        closed = true;
+        inf.end();
+        in.close();
+      }
+    }
+  }
+}
@@ -502,6 +502,14 @@ public class Processor implements Reporter, Registry, Constants, Closeable {
     setProperties(p);
   }
 
+  /**
+   * Answer the files included by the properties of this processor.
+   */
+  public synchronized Collection<File> getIncluded() {
+    if (included == null) return Collections.emptySet();
+    return new ArrayList<File>(included);
+  }
+
   public synchronized void addIncluded(File file) {
     if (included == null) included = new HashSet<File>();
     included.add(file);
@@ -11,6 +11,7 @@ public class Tarjan<T> {
     final List<Node> adjacent = new ArrayList<Node>();
     int low = -1;
     int index = -1;
+    boolean onStack;
 
     public Node(T name) {
       this.name = name;
@@ -23,7 +24,7 @@ public class Tarjan<T> {
 
   private int index = 0;
   private List<Node> stack = new ArrayList<Node>();
-  private Set<Set<T>> scc = new HashSet<Set<T>>();
+  private Set<Set<T>> scc = new LinkedHashSet<Set<T>>();
   private Node root = new Node(null);
 
 
@@ -57,14 +58,15 @@ public class Tarjan<T> {
     v.index = index;
     v.low = index;
     index++;
-    stack.add(0, v);
+    stack.add(v);
+    v.onStack = true;
     for (Node n : v.adjacent) {
       if (n.index == -1) {
         // first time visit
         tarjan(n);
         v.low = min(v.low, n.low);
       }
-      else if (stack.contains(n)) {
+      else if (n.onStack) {
         v.low = min(v.low, n.index);
       }
     }
@@ -73,7 +75,8 @@ public class Tarjan<T> {
       Set<T> component = new HashSet<T>();
       Node n;
       do {
-        n = stack.remove(0);
+        n = stack.remove(stack.size() - 1);
+        n.onStack = false;
         component.add(n.name);
       }
       while (n != v);
@@ -104,6 +107,10 @@ public class Tarjan<T> {
     return node;
   }
 
+  /**
+   * Answer the strongly connected components of the graph. A component comes
+   * after all the components it has edges to.
+   */
   public static <T> Set<Set<T>> tarjan(Map<T, Set<T>> graph) {
     Tarjan<T> tarjan = new Tarjan<T>();
     return tarjan.getResult(graph);
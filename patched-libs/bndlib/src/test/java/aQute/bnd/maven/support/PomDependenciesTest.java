@@ -0,0 +1,190 @@
+package aQute.bnd.maven.support;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import aQute.bnd.maven.support.Pom.Scope;
+import aQute.lib.hex.Hex;
+import aQute.lib.io.IO;
+
+/**
+ * Resolves dependencies from a file repository, which stands in for a
+ * remote repository, into a local repository in a temporary directory.
+ */
+public class PomDependenciesTest {
+  File dir;
+  File remote;
+  URI repo;
+  File m2;
+  ExecutorService executor;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = File.createTempFile("maven", "");
+    dir.delete();
+    remote = new File(dir, "remote");
+    m2 = new File(dir, "m2");
+    repo = remote.toURI();
+    executor = Executors.newCachedThreadPool();
+
+    // a -> b (excluding d) -> c, d; c has the parent p, which has the parent gp
+    deploy("a", null, dependency("b", "<exclusions><exclusion><groupId>g</groupId><artifactId>d</artifactId></exclusion></exclusions>"));
+    deploy("b", null, dependency("c", "") + dependency("d", ""));
+    deploy("c", "p", "");
+    deploy("d", null, "");
+    deploy("p", "gp", "");
+    deploy("gp", null, "");
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+    IO.delete(dir);
+  }
+
+  static String dependency(String artifactId, String extra) {
+    return "<dependency><groupId>g</groupId><artifactId>" + artifactId + "</artifactId><version>1</version>" + extra
+        + "</dependency>";
+  }
+
+  void deploy(String artifactId, String parent, String dependencies) throws Exception {
+    StringBuilder pom = new StringBuilder();
+    pom.append("<?xml version='1.0' encoding='UTF-8'?>\n<project>\n");
+    if (parent != null) {
+      pom.append("<parent><groupId>g</groupId><artifactId>").append(parent).append("</artifactId><version>1</version></parent>\n");
+    }
+    pom.append("<groupId>g</groupId><artifactId>").append(artifactId).append("</artifactId><version>1</version>\n");
+    pom.append("<dependencies>").append(dependencies).append("</dependencies>\n</project>\n");
+
+    byte[] jar = new byte[200];
+    Arrays.fill(jar, (byte)artifactId.charAt(0));
+
+    File base = new File(remote, "g/" + artifactId + "/1/" + artifactId + "-1");
+    base.getParentFile().mkdirs();
+    write(new File(base.getPath() + ".pom"), pom.toString().getBytes("UTF-8"));
+    write(new File(base.getPath() + ".jar"), jar);
+  }
+
+  static void write(File file, byte[] data) throws Exception {
+    store(file, data);
+    for (String algorithm : Maven.ALGORITHMS) {
+      byte[] digest = MessageDigest.getInstance(algorithm).digest(data);
+      store(new File(file.getPath() + "." + algorithm), Hex.toHexString(digest).getBytes("UTF-8"));
+    }
+  }
+
+  static void store(File file, byte[] data) throws IOException {
+    OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data);
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  Maven maven() {
+    Maven maven = new Maven(executor);
+    maven.setM2(m2);
+    return maven;
+  }
+
+  List<String> resolve(Maven maven) throws Exception {
+    List<String> names = new ArrayList<String>();
+    for (Pom pom : maven.getPom("g", "a", "1", repo).getDependencies(Scope.compile, repo)) {
+      names.add(pom.getArtifactId());
+      ((CachedPom)pom).getArtifact();
+    }
+    return names;
+  }
+
+  File local(String artifactId, String extension) {
+    return new File(m2, "repository/g/" + artifactId + "/1/" + artifactId + "-1." + extension);
+  }
+
+  File cache() {
+    return new File(m2, "repository/g/a/1/compile.deps");
+  }
+
+  @Test
+  public void testTransitiveDependencies() throws Exception {
+    assertEquals(Arrays.asList("b", "c"), resolve(maven()));
+    assertTrue(local("c", "jar").isFile());
+    assertFalse(local("d", "pom").exists());
+  }
+
+  @Test
+  public void testCacheRecordsParents() throws Exception {
+    // the parents are only followed as far as they are in the local repository
+    Maven maven = maven();
+    maven.getPom("g", "p", "1", repo).getArtifact();
+    resolve(maven);
+    String cache = IO.collect(cache());
+    assertTrue(cache.contains(local("a", "pom").getAbsolutePath()));
+    assertTrue(cache.contains(local("c", "pom").getAbsolutePath()));
+    assertTrue(cache.contains(local("p", "pom").getAbsolutePath()));
+    assertTrue(cache.contains(local("gp", "pom").getAbsolutePath()));
+  }
+
+  @Test
+  public void testCacheIsUsed() throws Exception {
+    resolve(maven());
+    dropFromCache("c");
+    assertEquals(Arrays.asList("b"), resolve(maven()));
+  }
+
+  @Test
+  public void testCacheOutdatedByParent() throws Exception {
+    Maven maven = maven();
+    maven.getPom("g", "p", "1", repo).getArtifact();
+    maven.getPom("g", "gp", "1", repo).getArtifact();
+    resolve(maven);
+
+    dropFromCache("c");
+    assertEquals(Arrays.asList("b"), resolve(maven()));
+
+    File parent = local("gp", "pom");
+    assertTrue(parent.setLastModified(parent.lastModified() + 10000));
+    assertEquals(Arrays.asList("b", "c"), resolve(maven()));
+  }
+
+  @Test
+  public void testCacheOutdatedByOtherRepositories() throws Exception {
+    resolve(maven());
+    dropFromCache("c");
+
+    URI other = new File(dir, "other").toURI();
+    List<String> names = new ArrayList<String>();
+    for (Pom pom : maven().getPom("g", "a", "1", repo).getDependencies(Scope.compile, repo, other)) {
+      names.add(pom.getArtifactId());
+    }
+    assertEquals(Arrays.asList("b", "c"), names);
+  }
+
+  /**
+   * Remove a dependency from the cache, so a result that still lacks it was
+   * read from the cache.
+   */
+  void dropFromCache(String artifactId) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (String line : IO.collect(cache()).split("\n")) {
+      if (!line.equals("pom\tg\t" + artifactId + "\t1")) sb.append(line).append("\n");
+    }
+    store(cache(), sb.toString().getBytes("UTF-8"));
+  }
+}
@@ -0,0 +1,241 @@
+package aQute.lib.deployer.obr;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import aQute.bnd.service.url.TaggedData;
+import aQute.lib.deployer.obr.CachingURLResourceHandle.CachingMode;
+import aQute.lib.io.IO;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Downloads from a local HTTP server, which answers conditional requests
+ * with 304 Not Modified if the validators match.
+ */
+public class CachingURLResourceHandleTest {
+  static final String PATH = "/repo/repository.xml";
+
+  HttpServer server;
+  File cacheDir;
+  String url;
+
+  volatile String body = "<repository name='one'/>";
+  volatile String etag;
+  volatile long lastModified;
+  final List<String> responses = Collections.synchronizedList(new ArrayList<String>());
+
+  @Before
+  public void setUp() throws IOException {
+    cacheDir = File.createTempFile("cache", "");
+    cacheDir.delete();
+    cacheDir.mkdirs();
+
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          respond(exchange);
+        }
+        finally {
+          exchange.close();
+        }
+      }
+    });
+    server.start();
+    url = "http://127.0.0.1:" + server.getAddress().getPort() + PATH;
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+    IO.delete(cacheDir);
+  }
+
+  void respond(HttpExchange exchange) throws IOException {
+    String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+    String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+    boolean notModified;
+    if (ifNoneMatch != null) {
+      notModified = ifNoneMatch.equals(etag);
+    }
+    else if (ifModifiedSince != null) {
+      notModified = lastModified > 0 && parseDate(ifModifiedSince) >= lastModified;
+    }
+    else {
+      notModified = false;
+    }
+
+    if (notModified) {
+      responses.add("304");
+      exchange.sendResponseHeaders(304, -1);
+      return;
+    }
+
+    responses.add("200");
+    byte[] data = body.getBytes("UTF-8");
+    if (etag != null) exchange.getResponseHeaders().add("ETag", etag);
+    if (lastModified > 0) exchange.getResponseHeaders().add("Last-Modified", formatDate(lastModified));
+    exchange.sendResponseHeaders(200, data.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(data);
+    out.close();
+  }
+
+  static SimpleDateFormat dateFormat() {
+    SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return format;
+  }
+
+  static String formatDate(long time) {
+    return dateFormat().format(new Date(time));
+  }
+
+  static long parseDate(String date) throws IOException {
+    try {
+      return dateFormat().parse(date).getTime();
+    }
+    catch (ParseException e) {
+      throw new IOException("Invalid date " + date);
+    }
+  }
+
+  CachingURLResourceHandle handle(CachingMode mode) throws IOException {
+    return new CachingURLResourceHandle(url, null, cacheDir, mode);
+  }
+
+  static String read(File file) throws IOException {
+    return IO.collect(file);
+  }
+
+  @Test
+  public void testDownload() throws Exception {
+    etag = "\"v1\"";
+    CachingURLResourceHandle handle = handle(CachingMode.PreferRemote);
+    File file = handle.request();
+
+    assertEquals("<repository name='one'/>", read(file));
+    assertEquals(Collections.singletonList("200"), responses);
+    assertNotNull(handle.getContentHash());
+    assertEquals("\"v1\"", handle.readInfo().getProperty(CachingURLResourceHandle.INFO_TAG));
+  }
+
+  @Test
+  public void testNotModifiedByTag() throws Exception {
+    etag = "\"v1\"";
+    File file = handle(CachingMode.PreferRemote).request();
+    long fileModified = file.lastModified();
+
+    CachingURLResourceHandle handle = handle(CachingMode.PreferRemote);
+    assertEquals(file, handle.request());
+    assertEquals("200", responses.get(0));
+    assertEquals("304", responses.get(1));
+    assertEquals(fileModified, file.lastModified());
+    assertEquals("<repository name='one'/>", read(file));
+    assertNotNull(handle.getContentHash());
+  }
+
+  @Test
+  public void testNotModifiedSince() throws Exception {
+    lastModified = 1000000000000L;
+    File file = handle(CachingMode.PreferRemote).request();
+    assertEquals(Long.toString(lastModified), handle(CachingMode.PreferRemote).readInfo().getProperty(CachingURLResourceHandle.INFO_LAST_MODIFIED));
+
+    assertEquals(file, handle(CachingMode.PreferRemote).request());
+    assertEquals(2, responses.size());
+    assertEquals("304", responses.get(1));
+    assertEquals("<repository name='one'/>", read(file));
+  }
+
+  @Test
+  public void testModified() throws Exception {
+    etag = "\"v1\"";
+    CachingURLResourceHandle first = handle(CachingMode.PreferRemote);
+    File file = first.request();
+    String hash = first.getContentHash();
+
+    etag = "\"v2\"";
+    body = "<repository name='two'/>";
+    CachingURLResourceHandle second = handle(CachingMode.PreferRemote);
+    assertEquals(file, second.request());
+
+    assertEquals(2, responses.size());
+    assertEquals("200", responses.get(1));
+    assertEquals("<repository name='two'/>", read(file));
+    assertFalse(hash.equals(second.getContentHash()));
+    assertEquals("\"v2\"", second.readInfo().getProperty(CachingURLResourceHandle.INFO_TAG));
+  }
+
+  @Test
+  public void testConnectorValidators() throws Exception {
+    etag = "\"v1\"";
+    lastModified = 1000000000000L;
+    DefaultURLConnector connector = new DefaultURLConnector();
+    TaggedData data = connector.connectTagged(new URL(url), null, 0);
+    assertEquals("\"v1\"", data.getTag());
+    assertEquals(lastModified, data.getLastModified());
+    data.getInputStream().close();
+
+    assertNull(connector.connectTagged(new URL(url), "\"v1\"", 0));
+    assertNull(connector.connectTagged(new URL(url), null, lastModified));
+    data = connector.connectTagged(new URL(url), "\"v0\"", 0);
+    assertNotNull(data);
+    data.getInputStream().close();
+    assertEquals(Arrays.asList("200", "304", "304", "200"), responses);
+  }
+
+  @Test
+  public void testRequestedOncePerHandle() throws Exception {
+    etag = "\"v1\"";
+    CachingURLResourceHandle handle = handle(CachingMode.PreferRemote);
+    handle.request();
+    handle.request();
+    assertEquals(1, responses.size());
+  }
+
+  @Test
+  public void testPreferCacheDoesNotRevalidate() throws Exception {
+    etag = "\"v1\"";
+    File file = handle(CachingMode.PreferCache).request();
+    assertEquals(file, handle(CachingMode.PreferCache).request());
+    assertEquals(1, responses.size());
+  }
+
+  @Test
+  public void testOfflineFallback() throws Exception {
+    etag = "\"v1\"";
+    File file = handle(CachingMode.PreferRemote).request();
+    server.stop(0);
+
+    CachingURLResourceHandle handle = handle(CachingMode.PreferRemote);
+    assertEquals(file, handle.request());
+    assertEquals("<repository name='one'/>", read(file));
+  }
+
+  @Test(expected = IOException.class)
+  public void testOfflineWithoutCache() throws Exception {
+    server.stop(0);
+    handle(CachingMode.PreferRemote).request();
+  }
+}
@@ -0,0 +1,134 @@
+package aQute.lib.osgi;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+import org.junit.Test;
+
+import aQute.lib.io.IO;
+
+/**
+ * Compares the outcome of the {@link ClassFileScanner} with the full
+ * {@link Clazz} parser on real class files.
+ */
+public class ClassFileScannerTest {
+
+  @Retention(RetentionPolicy.CLASS)
+  @interface ClassRetained {
+    String value() default "";
+  }
+
+  @Retention(RetentionPolicy.RUNTIME)
+  @interface RuntimeRetained {
+    ElementType[] value();
+  }
+
+  @ClassRetained("type")
+  @RuntimeRetained({ElementType.TYPE})
+  static abstract class Annotated extends AbstractList<javax.swing.JComponent> implements Serializable, Callable<java.net.URI> {
+    private static final long serialVersionUID = 1L;
+
+    @ClassRetained
+    java.util.regex.Pattern pattern;
+
+    @RuntimeRetained({ElementType.METHOD})
+    public abstract java.sql.Date method(@ClassRetained java.math.BigDecimal parameter) throws java.util.zip.ZipException;
+  }
+
+  enum Kind {
+    ONE, TWO;
+
+    java.util.logging.Level level() {
+      return java.util.logging.Level.INFO;
+    }
+  }
+
+  interface Marker extends Runnable, java.util.EventListener {
+    double VALUE = 1.5;
+    long OTHER = 42L;
+  }
+
+  @Test
+  public void testSameAsParserForOwnClasses() throws Exception {
+    assertSame(Annotated.class);
+    assertSame(Kind.class);
+    assertSame(Marker.class);
+    assertSame(ClassFileScannerTest.class);
+  }
+
+  @Test
+  public void testSameAsParserForBndClasses() throws Exception {
+    assertSame(Clazz.class);
+    assertSame(ClassFileScanner.class);
+    assertSame(Analyzer.class);
+    assertSame(Jar.class);
+    assertSame(aQute.bnd.annotation.component.Component.class);
+    assertSame(aQute.bnd.annotation.component.Reference.class);
+  }
+
+  @Test
+  public void testAnnotationsAreFound() throws Exception {
+    Clazz scanned = scan(Annotated.class);
+    assertTrue(scanned.annotations.contains("L" + binaryName(ClassRetained.class) + ";"));
+    assertTrue(scanned.annotations.contains("L" + binaryName(RuntimeRetained.class) + ";"));
+    assertTrue(scanned.imports.contains("java.sql"));
+    assertTrue(scanned.imports.contains("java.math"));
+    assertTrue(scanned.imports.contains("java.util.regex"));
+  }
+
+  @Test
+  public void testScanDoesNotMoveBuffer() throws Exception {
+    ByteBuffer bb = ByteBuffer.wrap(read(Annotated.class));
+    new Clazz("Annotated.class", null).scanClassFile(bb);
+    assertEquals(0, bb.position());
+  }
+
+  private static void assertSame(Class< ? > type) throws Exception {
+    Clazz parsed = new Clazz(type.getName(), null);
+    parsed.parseClassFile(new ByteArrayInputStream(read(type)));
+    Clazz scanned = scan(type);
+
+    String name = type.getName();
+    assertEquals(name, parsed.imports, scanned.imports);
+    assertEquals(name, parsed.className, scanned.className);
+    assertEquals(name, parsed.zuper, scanned.zuper);
+    assertEquals(name, parsed.interfaces == null ? null : Arrays.asList(parsed.interfaces), scanned.interfaces == null ? null
+        : Arrays.asList(scanned.interfaces));
+    assertEquals(name, parsed.annotations, scanned.annotations);
+    assertEquals(name, parsed.isAbstract, scanned.isAbstract);
+    assertEquals(name, parsed.isPublic, scanned.isPublic);
+    assertEquals(name, parsed.isEnum, scanned.isEnum);
+    assertEquals(name, parsed.major, scanned.major);
+    assertEquals(name, parsed.minor, scanned.minor);
+  }
+
+  private static Clazz scan(Class< ? > type) throws IOException {
+    Clazz clazz = new Clazz(type.getName(), null);
+    clazz.scanClassFile(ByteBuffer.wrap(read(type)));
+    return clazz;
+  }
+
+  private static String binaryName(Class< ? > type) {
+    return type.getName().replace('.', '/');
+  }
+
+  private static byte[] read(Class< ? > type) throws IOException {
+    InputStream in = type.getResourceAsStream("/" + binaryName(type) + ".class");
+    assertNotNull(type.getName(), in);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    IO.copy(in, out);
+    return out.toByteArray();
+  }
+}
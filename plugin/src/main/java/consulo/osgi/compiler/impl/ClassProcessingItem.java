@@ -18,11 +18,15 @@ public class ClassProcessingItem implements FileProcessingCompiler.ProcessingIte
 {
 	private final VirtualFile myVirtualFile;
 	private final VirtualFile myModuleOutputDirectory;
+	private final String myClassPath;
+	private final ValidityState myValidityState;
 
-	public ClassProcessingItem(VirtualFile virtualFile, VirtualFile moduleOutputDirectory)
+	public ClassProcessingItem(VirtualFile virtualFile, VirtualFile moduleOutputDirectory, String classPath, ValidityState validityState)
 	{
 		myVirtualFile = virtualFile;
 		myModuleOutputDirectory = moduleOutputDirectory;
+		myClassPath = classPath;
+		myValidityState = validityState;
 	}
 
 	@Nonnull
@@ -36,7 +40,7 @@ public class ClassProcessingItem implements FileProcessingCompiler.ProcessingIte
 	@Override
 	public ValidityState getValidityState()
 	{
-		return null;
+		return myValidityState;
 	}
 
 	@Nonnull
@@ -44,4 +48,13 @@ public class ClassProcessingItem implements FileProcessingCompiler.ProcessingIte
 	{
 		return myModuleOutputDirectory;
 	}
+
+	/**
+	 * @return the path of the class file relative to the module output directory
+	 */
+	@Nonnull
+	public String getClassPath()
+	{
+		return myClassPath;
+	}
 }
@@ -0,0 +1,112 @@
+package consulo.osgi.compiler.impl;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.intellij.openapi.compiler.ValidityState;
+import com.intellij.openapi.util.io.FileUtil;
+
+/**
+ * Validity state of a class file: its time stamp and the hash of its content. A class file which was written again with the same
+ * content (for example after a rebuild of the module) is still valid, the hash is only calculated when the time stamps differ.
+ */
+public class ClassValidityState implements ValidityState
+{
+	private final long myTimeStamp;
+	@Nullable
+	private final File myFile;
+	private final boolean myOutputPresent;
+	@Nullable
+	private byte[] myHash;
+
+	/**
+	 * @param file          the class file
+	 * @param outputPresent false if the component files generated from the class are missing, the class is processed again then
+	 */
+	public ClassValidityState(@Nonnull File file, boolean outputPresent)
+	{
+		myFile = file;
+		myTimeStamp = file.lastModified();
+		myOutputPresent = outputPresent;
+	}
+
+	private ClassValidityState(long timeStamp, @Nonnull byte[] hash)
+	{
+		myFile = null;
+		myTimeStamp = timeStamp;
+		myOutputPresent = true;
+		myHash = hash;
+	}
+
+	@Nonnull
+	public static ClassValidityState load(@Nonnull DataInput in) throws IOException
+	{
+		long timeStamp = in.readLong();
+		byte[] hash = new byte[in.readUnsignedByte()];
+		in.readFully(hash);
+		return new ClassValidityState(timeStamp, hash);
+	}
+
+	@Override
+	public boolean equalsTo(ValidityState otherState)
+	{
+		if(!(otherState instanceof ClassValidityState))
+		{
+			return false;
+		}
+		ClassValidityState other = (ClassValidityState) otherState;
+		if(!myOutputPresent || !other.myOutputPresent)
+		{
+			return false;
+		}
+		if(myTimeStamp == other.myTimeStamp)
+		{
+			return true;
+		}
+		byte[] hash = getHash();
+		return hash != null && Arrays.equals(hash, other.getHash());
+	}
+
+	@Override
+	public void save(DataOutput out) throws IOException
+	{
+		byte[] hash = getHash();
+		if(hash == null)
+		{
+			throw new IOException("Could not read " + myFile);
+		}
+		out.writeLong(myTimeStamp);
+		out.writeByte(hash.length);
+		out.write(hash);
+	}
+
+	@Nullable
+	private byte[] getHash()
+	{
+		if(myHash == null && myFile != null)
+		{
+			try
+			{
+				MessageDigest digest = MessageDigest.getInstance("MD5");
+				myHash = digest.digest(FileUtil.loadFileBytes(myFile));
+			}
+			catch(IOException e)
+			{
+				return null;
+			}
+			catch(NoSuchAlgorithmException e)
+			{
+				throw new IllegalStateException(e);
+			}
+		}
+		return myHash;
+	}
+}
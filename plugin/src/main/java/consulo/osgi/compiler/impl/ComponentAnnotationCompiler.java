@@ -4,11 +4,13 @@ import java.io.DataInput;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.annotation.Nonnull;
-import javax.annotation.Nullable;
 
 import aQute.bnd.make.component.ComponentAnnotationReader;
 import aQute.lib.osgi.Clazz;
@@ -21,9 +23,10 @@ import com.intellij.openapi.compiler.ValidityState;
 import com.intellij.openapi.module.Module;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.io.FileUtilRt;
+import com.intellij.openapi.vfs.CharsetToolkit;
+import com.intellij.openapi.vfs.VfsUtilCore;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.vcsUtil.VcsUtil;
-import consulo.osgi.OSGiConstants;
 import consulo.osgi.compiler.artifact.bndTools.BndReporter;
 import consulo.osgi.compiler.artifact.bndTools.serviceComponent.BndServiceComponentUtil;
 import consulo.osgi.module.OSGiModuleExtensionUtil;
@@ -55,6 +58,8 @@ public class ComponentAnnotationCompiler implements ClassInstrumentingCompiler
 			List<VirtualFile> list = new ArrayList<VirtualFile>();
 			VcsUtil.collectFiles(moduleOutputDirectory, list, true, false);
 
+			ComponentIndex index = ComponentIndex.load(VfsUtilCore.virtualToIoFile(moduleOutputDirectory));
+			Set<String> classPaths = new HashSet<String>();
 			for(VirtualFile maybeClassFile : list)
 			{
 				if(maybeClassFile.getFileType() != JavaClassFileType.INSTANCE)
@@ -62,8 +67,26 @@ public class ComponentAnnotationCompiler implements ClassInstrumentingCompiler
 					continue;
 				}
 
-				items.add(new ClassProcessingItem(maybeClassFile, moduleOutputDirectory));
+				String classPath = VfsUtilCore.getRelativePath(maybeClassFile, moduleOutputDirectory, '/');
+				if(classPath == null)
+				{
+					continue;
+				}
+				classPaths.add(classPath);
+
+				ClassValidityState validityState = new ClassValidityState(VfsUtilCore.virtualToIoFile(maybeClassFile), index.isUpToDate(classPath));
+				items.add(new ClassProcessingItem(maybeClassFile, moduleOutputDirectory, classPath, validityState));
+			}
+
+			// remove the component files of deleted classes
+			for(String classPath : new ArrayList<String>(index.getClassPaths()))
+			{
+				if(!classPaths.contains(classPath))
+				{
+					index.remove(classPath);
+				}
 			}
+			index.save();
 		}
 		return items.toArray(new ProcessingItem[items.size()]);
 	}
@@ -74,46 +97,44 @@ public class ComponentAnnotationCompiler implements ClassInstrumentingCompiler
 		context.getProgressIndicator().setText("Generating service component files");
 
 		List<ProcessingItem> itemList = new ArrayList<ProcessingItem>(items.length);
+		Map<VirtualFile, ComponentIndex> indexes = new HashMap<VirtualFile, ComponentIndex>();
 		for(ProcessingItem processingItem : items)
 		{
 			ClassProcessingItem classProcessingItem = (ClassProcessingItem) processingItem;
 			final File file = classProcessingItem.getFile();
 
+			final VirtualFile moduleOutputDirectory = classProcessingItem.getModuleOutputDirectory();
+			ComponentIndex index = indexes.get(moduleOutputDirectory);
+			if(index == null)
+			{
+				index = ComponentIndex.load(VfsUtilCore.virtualToIoFile(moduleOutputDirectory));
+				indexes.put(moduleOutputDirectory, index);
+			}
+
 			Clazz clazz = new Clazz(file.getPath(), new FileResource(file));
 			try
 			{
 				final Map<String, String> definition = ComponentAnnotationReader.getDefinition(clazz, new BndReporter(context));
 				if(definition == null)
 				{
+					index.put(classProcessingItem.getClassPath(), null);
+					itemList.add(processingItem);
 					continue;
 				}
 
-				final VirtualFile moduleOutputDirectory = classProcessingItem.getModuleOutputDirectory();
-
 				final String name = BndServiceComponentUtil.getName(definition, clazz);
 				final String fileText = BndServiceComponentUtil.toXml(definition, name);
 
-				final File outFile = new File(moduleOutputDirectory.getPath() + "/" + OSGiConstants.OSGI_INFO_ROOT, name + ".xml");
-				FileUtilRt.createIfNotExists(outFile);
-
-				FileUtil.writeToFile(outFile, fileText);
-				itemList.add(new ProcessingItem()
+				// do not touch an unchanged file, so the artifacts which contain it are not rebuilt
+				final File outFile = index.getComponentFile(name);
+				if(!outFile.isFile() || !fileText.equals(FileUtil.loadFile(outFile, CharsetToolkit.UTF8)))
 				{
-					@Nonnull
-					@Override
-					public File getFile()
-					{
-						return outFile;
-					}
-
-					@Nullable
-					@Override
-					public ValidityState getValidityState()
-					{
-						return null;
-					}
-				});
+					FileUtilRt.createIfNotExists(outFile);
 
+					FileUtil.writeToFile(outFile, fileText);
+				}
+				index.put(classProcessingItem.getClassPath(), name);
+				itemList.add(processingItem);
 			}
 			catch(Exception e)
 			{
@@ -121,6 +142,11 @@ public class ComponentAnnotationCompiler implements ClassInstrumentingCompiler
 			}
 
 		}
+
+		for(ComponentIndex index : indexes.values())
+		{
+			index.save();
+		}
 		return itemList.toArray(new ProcessingItem[itemList.size()]);
 	}
 
@@ -140,6 +166,6 @@ public class ComponentAnnotationCompiler implements ClassInstrumentingCompiler
 	@Override
 	public ValidityState createValidityState(DataInput in) throws IOException
 	{
-		return null;
+		return ClassValidityState.load(in);
 	}
 }
@@ -0,0 +1,197 @@
+package consulo.osgi.compiler.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.intellij.openapi.util.io.FileUtil;
+import consulo.container.boot.ContainerPathManager;
+import consulo.logging.Logger;
+import consulo.osgi.OSGiConstants;
+
+/**
+ * Remembers which service component file was generated from which class of a module output directory, so the files of deleted classes
+ * and of classes which are no longer components can be removed.
+ */
+public class ComponentIndex
+{
+	private static final Logger LOG = Logger.getInstance(ComponentIndex.class);
+
+	private static final int FORMAT_VERSION = 1;
+
+	private final File myOutputDirectory;
+	private final File myIndexFile;
+	// class path relative to the output directory -> component name, null if the class is no component
+	private final Map<String, String> myComponents = new HashMap<String, String>();
+	private boolean myDirty;
+
+	private ComponentIndex(@Nonnull File outputDirectory)
+	{
+		myOutputDirectory = outputDirectory;
+		String name = Integer.toHexString(outputDirectory.getPath().hashCode()) + ".dat";
+		myIndexFile = new File(ContainerPathManager.get().getSystemPath() + File.separator + "osmorc" + File.separator + "components", name);
+	}
+
+	@Nonnull
+	public static ComponentIndex load(@Nonnull File outputDirectory)
+	{
+		ComponentIndex index = new ComponentIndex(outputDirectory);
+		if(index.myIndexFile.isFile())
+		{
+			try
+			{
+				index.read();
+			}
+			catch(IOException e)
+			{
+				LOG.info("Could not load component index of " + outputDirectory + ", it will be rebuilt", e);
+				index.myComponents.clear();
+			}
+		}
+		return index;
+	}
+
+	private void read() throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(myIndexFile)));
+		try
+		{
+			if(in.readInt() != FORMAT_VERSION || !in.readUTF().equals(myOutputDirectory.getPath()))
+			{
+				return;
+			}
+			int size = in.readInt();
+			for(int i = 0; i < size; i++)
+			{
+				String classPath = in.readUTF();
+				myComponents.put(classPath, in.readBoolean() ? in.readUTF() : null);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	public void save()
+	{
+		if(!myDirty)
+		{
+			return;
+		}
+		try
+		{
+			File parent = myIndexFile.getParentFile();
+			if(!parent.isDirectory() && !parent.mkdirs())
+			{
+				throw new IOException("Could not create " + parent);
+			}
+			File tempFile = new File(parent, myIndexFile.getName() + ".tmp");
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			try
+			{
+				out.writeInt(FORMAT_VERSION);
+				out.writeUTF(myOutputDirectory.getPath());
+				out.writeInt(myComponents.size());
+				for(Map.Entry<String, String> entry : myComponents.entrySet())
+				{
+					out.writeUTF(entry.getKey());
+					out.writeBoolean(entry.getValue() != null);
+					if(entry.getValue() != null)
+					{
+						out.writeUTF(entry.getValue());
+					}
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+			if(myIndexFile.exists() && !myIndexFile.delete() || !tempFile.renameTo(myIndexFile))
+			{
+				throw new IOException("Could not replace " + myIndexFile);
+			}
+			myDirty = false;
+		}
+		catch(IOException e)
+		{
+			LOG.info("Could not save component index of " + myOutputDirectory, e);
+			FileUtil.delete(myIndexFile);
+		}
+	}
+
+	/**
+	 * @return true if the class was processed before and the component file generated from it still exists
+	 */
+	public boolean isUpToDate(@Nonnull String classPath)
+	{
+		if(!myComponents.containsKey(classPath))
+		{
+			return false;
+		}
+		String name = myComponents.get(classPath);
+		return name == null || getComponentFile(name).isFile();
+	}
+
+	@Nonnull
+	public Collection<String> getClassPaths()
+	{
+		return myComponents.keySet();
+	}
+
+	/**
+	 * Records the component generated from the class, or that the class is no component, and removes the component file previously
+	 * generated from the class if it is not generated anymore.
+	 *
+	 * @param classPath the class path relative to the output directory
+	 * @param name      the component name, or null if the class is no component
+	 */
+	public void put(@Nonnull String classPath, @Nullable String name)
+	{
+		boolean known = myComponents.containsKey(classPath);
+		String oldName = myComponents.put(classPath, name);
+		if(known && (oldName == null ? name == null : oldName.equals(name)))
+		{
+			return;
+		}
+		myDirty = true;
+		if(oldName != null && !myComponents.containsValue(oldName))
+		{
+			FileUtil.delete(getComponentFile(oldName));
+		}
+	}
+
+	/**
+	 * Removes a deleted class and the component file generated from it.
+	 */
+	public void remove(@Nonnull String classPath)
+	{
+		if(!myComponents.containsKey(classPath))
+		{
+			return;
+		}
+		String name = myComponents.remove(classPath);
+		myDirty = true;
+		if(name != null && !myComponents.containsValue(name))
+		{
+			FileUtil.delete(getComponentFile(name));
+		}
+	}
+
+	@Nonnull
+	public File getComponentFile(@Nonnull String name)
+	{
+		return new File(myOutputDirectory.getPath() + "/" + OSGiConstants.OSGI_INFO_ROOT, name + ".xml");
+	}
+}
@@ -1,11 +1,14 @@
 package consulo.osgi.ide;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 
 import com.intellij.codeInsight.AnnotationUtil;
 import com.intellij.codeInsight.navigation.ClassImplementationsSearch;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.pom.Navigatable;
 import com.intellij.psi.CommonClassNames;
 import com.intellij.psi.NavigatablePsiElement;
@@ -15,18 +18,24 @@ import com.intellij.psi.PsiArrayInitializerMemberValue;
 import com.intellij.psi.PsiClass;
 import com.intellij.psi.PsiClassObjectAccessExpression;
 import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
 import com.intellij.psi.PsiType;
-import com.intellij.psi.search.GlobalSearchScope;
 import com.intellij.psi.util.PsiTypesUtil;
 import com.intellij.psi.xml.XmlElement;
+import com.intellij.psi.xml.XmlFile;
 import com.intellij.util.Processor;
+import com.intellij.util.indexing.ID;
 import com.intellij.util.xml.DomFileElement;
-import com.intellij.util.xml.DomService;
+import com.intellij.util.xml.DomManager;
 import consulo.osgi.OSGiConstants;
 import consulo.osgi.psi.NavigatablePsiElementWrapper;
 import consulo.osgi.serviceComponent.dom.TComponent;
 import consulo.osgi.serviceComponent.dom.TProvide;
 import consulo.osgi.serviceComponent.dom.TService;
+import consulo.osgi.serviceComponent.index.ServiceComponentImplementationIndex;
+import consulo.osgi.serviceComponent.index.ServiceComponentIndexBase;
+import consulo.osgi.serviceComponent.index.ServiceComponentProvideIndex;
 
 /**
  * @author VISTALL
@@ -44,8 +53,7 @@ public class OSGiComponentResolver
 			list.add((NavigatablePsiElement) annotation);
 		}
 
-		final List<DomFileElement<TComponent>> fileElements = DomService.getInstance().getFileElements(TComponent.class, psiClass.getProject(), GlobalSearchScope.allScope(psiClass.getProject()));
-		for(DomFileElement<TComponent> fileElement : fileElements)
+		for(DomFileElement<TComponent> fileElement : getComponentFiles(ServiceComponentImplementationIndex.NAME, psiClass))
 		{
 			final TComponent rootElement = fileElement.getRootElement();
 
@@ -125,8 +133,7 @@ public class OSGiComponentResolver
 			}
 		}, psiClass.getUseScope());
 
-		final List<DomFileElement<TComponent>> fileElements = DomService.getInstance().getFileElements(TComponent.class, psiClass.getProject(), GlobalSearchScope.allScope(psiClass.getProject()));
-		for(DomFileElement<TComponent> fileElement : fileElements)
+		for(DomFileElement<TComponent> fileElement : getComponentFiles(ServiceComponentProvideIndex.NAME, psiClass))
 		{
 			final TComponent rootElement = fileElement.getRootElement();
 
@@ -149,4 +156,41 @@ public class OSGiComponentResolver
 		}
 		return list;
 	}
+
+	/**
+	 * Service component files which mention the class in the given index.
+	 */
+	private static List<DomFileElement<TComponent>> getComponentFiles(ID<String, Void> indexId, PsiClass psiClass)
+	{
+		String qualifiedName = psiClass.getQualifiedName();
+		if(qualifiedName == null)
+		{
+			return Collections.emptyList();
+		}
+
+		Project project = psiClass.getProject();
+		Collection<VirtualFile> files = ServiceComponentIndexBase.getFiles(indexId, qualifiedName, project);
+		if(files.isEmpty())
+		{
+			return Collections.emptyList();
+		}
+
+		PsiManager psiManager = PsiManager.getInstance(project);
+		DomManager domManager = DomManager.getDomManager(project);
+		List<DomFileElement<TComponent>> fileElements = new ArrayList<DomFileElement<TComponent>>(files.size());
+		for(VirtualFile file : files)
+		{
+			PsiFile psiFile = psiManager.findFile(file);
+			if(!(psiFile instanceof XmlFile))
+			{
+				continue;
+			}
+			DomFileElement<TComponent> fileElement = domManager.getFileElement((XmlFile) psiFile, TComponent.class);
+			if(fileElement != null)
+			{
+				fileElements.add(fileElement);
+			}
+		}
+		return fileElements;
+	}
 }
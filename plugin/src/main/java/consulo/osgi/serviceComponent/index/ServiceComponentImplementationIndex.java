@@ -0,0 +1,31 @@
+package consulo.osgi.serviceComponent.index;
+
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import com.intellij.util.indexing.ID;
+
+/**
+ * Service component descriptors by the class of their implementation tag.
+ */
+public class ServiceComponentImplementationIndex extends ServiceComponentIndexBase
+{
+	public static final ID<String, Void> NAME = ID.create("osgi.serviceComponent.implementation");
+
+	@Nonnull
+	@Override
+	public ID<String, Void> getName()
+	{
+		return NAME;
+	}
+
+	@Override
+	protected void indexComponent(@Nonnull ComponentTag componentTag, @Nonnull Map<String, Void> map)
+	{
+		for(ComponentTag implementationTag : findSubTags(componentTag, "implementation"))
+		{
+			addClassName(map, implementationTag.getAttributeValue("class"));
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package consulo.osgi.serviceComponent.index;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.intellij.ide.highlighter.XmlFileType;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Ref;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.util.indexing.DataIndexer;
+import com.intellij.util.indexing.DefaultFileTypeSpecificInputFilter;
+import com.intellij.util.indexing.FileBasedIndex;
+import com.intellij.util.indexing.FileContent;
+import com.intellij.util.indexing.ID;
+import com.intellij.util.indexing.ScalarIndexExtension;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import com.intellij.util.io.KeyDescriptor;
+import com.intellij.util.text.CharArrayUtil;
+import com.intellij.util.xml.NanoXmlUtil;
+
+/**
+ * Index of the service component descriptors by class names they mention. Every xml file with a component root tag is indexed, the
+ * files found for a class still have to be checked to be service component files of an OSGi module.
+ * <p/>
+ * The keys are qualified class names, binary names of nested classes are stored with dots so they match {@link
+ * com.intellij.psi.PsiClass#getQualifiedName()}.
+ */
+public abstract class ServiceComponentIndexBase extends ScalarIndexExtension<String>
+{
+	private static final String COMPONENT_TAG = "component";
+
+	private final DataIndexer<String, Void, FileContent> myIndexer = new DataIndexer<String, Void, FileContent>()
+	{
+		@Nonnull
+		@Override
+		public Map<String, Void> map(@Nonnull FileContent inputData)
+		{
+			// most xml files are no component descriptors, they are skipped before they are parsed, and the others are parsed without
+			// building a syntax tree. The check also matches qualified scr:component tags
+			CharSequence text = inputData.getContentAsText();
+			if(!StringUtil.contains(text, COMPONENT_TAG))
+			{
+				return Collections.emptyMap();
+			}
+			ComponentTag rootTag = parseComponent(text);
+			if(rootTag == null)
+			{
+				return Collections.emptyMap();
+			}
+
+			Map<String, Void> map = new HashMap<String, Void>();
+			indexComponent(rootTag, map);
+			return map;
+		}
+	};
+
+	/**
+	 * Tag of a component descriptor, with the local names of the tag and its attributes.
+	 */
+	protected static final class ComponentTag
+	{
+		private final String myLocalName;
+		private final Map<String, String> myAttributes = new HashMap<String, String>();
+		private final List<ComponentTag> mySubTags = new ArrayList<ComponentTag>();
+
+		private ComponentTag(@Nonnull String localName)
+		{
+			myLocalName = localName;
+		}
+
+		@Nonnull
+		public String getLocalName()
+		{
+			return myLocalName;
+		}
+
+		@Nullable
+		public String getAttributeValue(@Nonnull String localName)
+		{
+			return myAttributes.get(localName);
+		}
+
+		@Nonnull
+		public List<ComponentTag> getSubTags()
+		{
+			return mySubTags;
+		}
+	}
+
+	/**
+	 * Parses the root tag of a component descriptor, the parser stops at the root tag of any other xml file.
+	 *
+	 * @return the root tag, or null if the root tag is no component tag
+	 */
+	@Nullable
+	private static ComponentTag parseComponent(@Nonnull CharSequence text)
+	{
+		final Ref<ComponentTag> rootTag = Ref.create();
+		final Deque<ComponentTag> openTags = new ArrayDeque<ComponentTag>();
+		NanoXmlUtil.parse(CharArrayUtil.readerFromCharSequence(text), new NanoXmlUtil.IXMLBuilderAdapter()
+		{
+			@Override
+			public void startElement(String name, String nsPrefix, String nsURI, String systemID, int lineNr) throws Exception
+			{
+				ComponentTag tag = new ComponentTag(getLocalName(name));
+				ComponentTag parent = openTags.peek();
+				if(parent != null)
+				{
+					parent.mySubTags.add(tag);
+				}
+				else if(COMPONENT_TAG.equals(tag.myLocalName))
+				{
+					rootTag.set(tag);
+				}
+				else
+				{
+					NanoXmlUtil.stop();
+				}
+				openTags.push(tag);
+			}
+
+			@Override
+			public void addAttribute(String key, String nsPrefix, String nsURI, String value, String type) throws Exception
+			{
+				ComponentTag tag = openTags.peek();
+				if(tag != null)
+				{
+					tag.myAttributes.put(getLocalName(key), value);
+				}
+			}
+
+			@Override
+			public void endElement(String name, String nsPrefix, String nsURI) throws Exception
+			{
+				openTags.pop();
+			}
+		});
+		return rootTag.get();
+	}
+
+	@Nonnull
+	private static String getLocalName(@Nonnull String name)
+	{
+		return name.substring(name.indexOf(':') + 1);
+	}
+
+	@Nonnull
+	public static Collection<VirtualFile> getFiles(@Nonnull ID<String, Void> indexId, @Nonnull String qualifiedName, @Nonnull Project project)
+	{
+		return FileBasedIndex.getInstance().getContainingFiles(indexId, qualifiedName, GlobalSearchScope.allScope(project));
+	}
+
+	/**
+	 * Adds the class names of the component to the map.
+	 */
+	protected abstract void indexComponent(@Nonnull ComponentTag componentTag, @Nonnull Map<String, Void> map);
+
+	/**
+	 * Sub tags by their local name, the tags of a component may or may not be qualified.
+	 */
+	@Nonnull
+	protected static List<ComponentTag> findSubTags(@Nonnull ComponentTag tag, @Nonnull String localName)
+	{
+		List<ComponentTag> subTags = new ArrayList<ComponentTag>();
+		for(ComponentTag subTag : tag.getSubTags())
+		{
+			if(localName.equals(subTag.getLocalName()))
+			{
+				subTags.add(subTag);
+			}
+		}
+		return subTags;
+	}
+
+	protected static void addClassName(@Nonnull Map<String, Void> map, String className)
+	{
+		if(className == null)
+		{
+			return;
+		}
+		className = className.trim();
+		if(!className.isEmpty())
+		{
+			map.put(className.replace('$', '.'), null);
+		}
+	}
+
+	@Nonnull
+	@Override
+	public DataIndexer<String, Void, FileContent> getIndexer()
+	{
+		return myIndexer;
+	}
+
+	@Nonnull
+	@Override
+	public KeyDescriptor<String> getKeyDescriptor()
+	{
+		return EnumeratorStringDescriptor.INSTANCE;
+	}
+
+	@Nonnull
+	@Override
+	public FileBasedIndex.InputFilter getInputFilter()
+	{
+		return new DefaultFileTypeSpecificInputFilter(XmlFileType.INSTANCE);
+	}
+
+	@Override
+	public boolean dependsOnFileContent()
+	{
+		return true;
+	}
+
+	@Override
+	public int getVersion()
+	{
+		return 2;
+	}
+}
@@ -0,0 +1,34 @@
+package consulo.osgi.serviceComponent.index;
+
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import com.intellij.util.indexing.ID;
+
+/**
+ * Service component descriptors by the interfaces their service provides.
+ */
+public class ServiceComponentProvideIndex extends ServiceComponentIndexBase
+{
+	public static final ID<String, Void> NAME = ID.create("osgi.serviceComponent.provide");
+
+	@Nonnull
+	@Override
+	public ID<String, Void> getName()
+	{
+		return NAME;
+	}
+
+	@Override
+	protected void indexComponent(@Nonnull ComponentTag componentTag, @Nonnull Map<String, Void> map)
+	{
+		for(ComponentTag serviceTag : findSubTags(componentTag, "service"))
+		{
+			for(ComponentTag provideTag : findSubTags(serviceTag, "provide"))
+			{
+				addClassName(map, provideTag.getAttributeValue("interface"));
+			}
+		}
+	}
+}
@@ -8,42 +8,105 @@ import org.osmorc.manifest.lang.valueparser.impl.valueobject.Version;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * The bundle cache holds information about all bundles within the project.
+ * The bundle cache holds information about all bundles within the project. Besides the known manifest holders it maintains indexes of
+ * exported packages, bundle symbolic names and fragment hosts, so lookups only need to check the manifests of likely candidates instead
+ * of every known bundle.
  */
 public class BundleCache {
 
-  private volatile Set<ManifestHolder> myManifestHolders;
-
-  public BundleCache() {
-    myManifestHolders = new HashSet<ManifestHolder>();
-  }
+  private final Map<ManifestHolder, IndexEntry> myEntries = new ConcurrentHashMap<ManifestHolder, IndexEntry>();
+  private final Map<Object, ManifestHolder> myBoundObjectIndex = new ConcurrentHashMap<Object, ManifestHolder>();
+  /**
+   * exported package name -> entries exporting it, sorted by descending bundle version.
+   */
+  private final Map<String, IndexEntry[]> myPackageIndex = new ConcurrentHashMap<String, IndexEntry[]>();
+  /**
+   * bundle symbolic name -> entries with that name, sorted by descending bundle version.
+   */
+  private final Map<String, IndexEntry[]> mySymbolicNameIndex = new ConcurrentHashMap<String, IndexEntry[]>();
+  /**
+   * symbolic name of a fragment host -> fragments naming it in their Fragment-Host header, sorted by descending bundle version.
+   */
+  private final Map<String, IndexEntry[]> myFragmentIndex = new ConcurrentHashMap<String, IndexEntry[]>();
+  private final RequiredBundleGraph myRequiredBundleGraph = new RequiredBundleGraph(this);
+  /**
+   * holders whose manifest was modified since they were indexed, they are re-indexed before the next lookup.
+   */
+  private final Set<ManifestHolder> myChangedHolders = Collections.newSetFromMap(new ConcurrentHashMap<ManifestHolder, Boolean>());
 
   /**
    * Clears the bundle cache.
    */
   public synchronized void clear() {
-    myManifestHolders = new HashSet<ManifestHolder>();
+    myEntries.clear();
+    myBoundObjectIndex.clear();
+    myPackageIndex.clear();
+    mySymbolicNameIndex.clear();
+    myFragmentIndex.clear();
+    myRequiredBundleGraph.clear();
+    myChangedHolders.clear();
   }
 
   /**
-   * Updates the cache with the given manifest holder.
+   * Marks the manifest of the given holder as modified. The holder is re-indexed before the next lookup, so lookups never use the index
+   * entries of an outdated manifest.
+   *
+   * @param holder the holder whose manifest was modified
+   */
+  public void manifestChanged(@Nonnull ManifestHolder holder) {
+    myChangedHolders.add(holder);
+  }
+
+  /**
+   * Re-indexes the holders whose manifest was modified.
+   */
+  private void updateChangedHolders() {
+    if (myChangedHolders.isEmpty()) {
+      return;
+    }
+    synchronized (this) {
+      for (Iterator<ManifestHolder> iterator = myChangedHolders.iterator(); iterator.hasNext(); ) {
+        ManifestHolder holder = iterator.next();
+        iterator.remove();
+        if (!holder.isDisposed()) {
+          updateWith(holder);
+        }
+      }
+    }
+  }
+
+  /**
+   * Updates the cache with the given manifest holder. If the holder is already known but its manifest has been modified since it was
+   * indexed, the holder is re-indexed.
    *
    * @param holder the holder
-   * @return true, if the holder was added to the cache, false if the holder was already known.
+   * @return true, if the holder was added to the cache or re-indexed, false if the holder was already known and is up to date.
    */
   public synchronized boolean updateWith(@Nonnull final ManifestHolder holder) {
-    if (!myManifestHolders.contains(holder)) {
-      // copy on write
-      HashSet<ManifestHolder> copy = new HashSet<ManifestHolder>(myManifestHolders);
-      copy.add(holder);
-      myManifestHolders = copy;
-      return true;
+    Object boundObject;
+    BundleManifest bundleManifest;
+    try {
+      boundObject = holder.getBoundObject();
+      bundleManifest = holder.getBundleManifest();
     }
-    else {
+    catch (ManifestHolderDisposedException ignore) {
+      // the holder is gone, cleanup will take care of the old entry.
       return false;
     }
+
+    long modificationCount = bundleManifest == null ? -1 : bundleManifest.getModificationCount();
+    IndexEntry oldEntry = myEntries.get(holder);
+    if (oldEntry != null) {
+      if (oldEntry.myModificationCount == modificationCount) {
+        return false;
+      }
+      removeFromIndexes(oldEntry);
+    }
+    addToIndexes(createEntry(holder, boundObject, bundleManifest, modificationCount));
+    return true;
   }
 
   /**
@@ -52,20 +115,19 @@ public class BundleCache {
    * @return true if there were stale entries, false if nothing changed.
    */
   public synchronized boolean cleanup() {
-    Set<ManifestHolder> toRemove = new HashSet<ManifestHolder>();
-    for (ManifestHolder manifestHolder : myManifestHolders) {
-      if (manifestHolder.isDisposed()) {
-        toRemove.add(manifestHolder);
+    List<IndexEntry> toRemove = new ArrayList<IndexEntry>();
+    for (IndexEntry entry : myEntries.values()) {
+      if (entry.myHolder.isDisposed()) {
+        toRemove.add(entry);
       }
     }
     if (toRemove.isEmpty()) {
       return false;
     }
 
-    // copy on write
-    HashSet<ManifestHolder> copy = new HashSet<ManifestHolder>(myManifestHolders);
-    copy.removeAll(toRemove);
-    myManifestHolders = copy;
+    for (IndexEntry entry : toRemove) {
+      removeFromIndexes(entry);
+    }
     return true;
   }
 
@@ -77,54 +139,66 @@ public class BundleCache {
    */
   @Nonnull
   public Set<ManifestHolder> whoProvides(@Nonnull final String packageSpec) {
+    updateChangedHolders();
+
+    // a spec may name several packages which all have to be exported, so candidates exporting the first one are enough.
+    List<String> packageNames = getClauseNames(packageSpec);
+    if (packageNames.isEmpty()) {
+      return Collections.emptySet();
+    }
+    IndexEntry[] candidates = myPackageIndex.get(packageNames.get(0));
+    if (candidates == null) {
+      return Collections.emptySet();
+    }
+
     Set<ManifestHolder> result = new HashSet<ManifestHolder>();
-    for (ManifestHolder manifestHolder : myManifestHolders) {
-      BundleManifest bundleManifest;
-      try {
-        bundleManifest = manifestHolder.getBundleManifest();
-      }
-      catch (ManifestHolderDisposedException ignore) {
-        // ok this thing is gone
-        continue;
-      }
-      if (bundleManifest != null) {
-        if (bundleManifest.exportsPackage(packageSpec)) {
-          result.add(manifestHolder);
-        }
+    for (IndexEntry candidate : candidates) {
+      BundleManifest bundleManifest = candidate.getBundleManifest();
+      if (bundleManifest != null && bundleManifest.exportsPackage(packageSpec)) {
+        result.add(candidate.myHolder);
       }
     }
     return result;
   }
 
   /**
-   * Returns a set of  manifest holders that represent fragments of the given manifest holder. Note, that this is a potentially costly operation
-   * when there are many manifests.
+   * Returns a set of  manifest holders that represent fragments of the given manifest holder.
    *
    * @param bundle the manifest holder to find the fragments for.
    * @return a set of matching manifest holders. If there are no fragments known, returns an empty set.
    */
   @Nonnull
   public Set<ManifestHolder> getFragmentsForBundle(@Nonnull ManifestHolder bundle) {
+    updateChangedHolders();
+    return findFragmentsForBundle(bundle);
+  }
+
+  /**
+   * {@link #getFragmentsForBundle(ManifestHolder)} without updating changed holders, for the {@link RequiredBundleGraph} which calls it
+   * while holding its own lock.
+   */
+  @Nonnull
+  Set<ManifestHolder> findFragmentsForBundle(@Nonnull ManifestHolder bundle) {
     try {
       BundleManifest bundleManifest = bundle.getBundleManifest();
       // if it has no manifest, we can short cut here
       if (bundleManifest == null) {
         return Collections.emptySet();
       }
+      String symbolicName = bundleManifest.getBundleSymbolicName();
+      if (symbolicName == null) {
+        return Collections.emptySet();
+      }
+      IndexEntry[] candidates = myFragmentIndex.get(symbolicName);
+      if (candidates == null) {
+        return Collections.emptySet();
+      }
 
       Set<ManifestHolder> result = new HashSet<ManifestHolder>();
-      for (ManifestHolder manifestHolder : myManifestHolders) {
-        try {
-          BundleManifest potentialFragmentManifest = manifestHolder.getBundleManifest();
-          if (potentialFragmentManifest == null) {
-            continue;
-          }
-          if (bundleManifest.isFragmentHostFor(potentialFragmentManifest)) {
-            result.add(manifestHolder);
-          }
-        }
-        catch (ManifestHolderDisposedException ignore) {
-          // ignore.
+      for (IndexEntry candidate : candidates) {
+        BundleManifest potentialFragmentManifest = candidate.getBundleManifest();
+        if (potentialFragmentManifest != null && bundleManifest.isFragmentHostFor(potentialFragmentManifest)) {
+          result.add(candidate.myHolder);
         }
       }
       return result;
@@ -142,26 +216,28 @@ public class BundleCache {
    */
   @Nonnull
   public Set<ManifestHolder> getFragmentHosts(@Nonnull ManifestHolder fragment) {
+    updateChangedHolders();
+
     try {
       BundleManifest fragmentManifest = fragment.getBundleManifest();
       // if its not a fragment or has no manifest, we can short cut here
-      if (fragmentManifest == null || !fragmentManifest.isFragmentBundle()) {
+      if (fragmentManifest == null) {
+        return Collections.emptySet();
+      }
+      String hostName = getFirstClauseName(fragmentManifest.getFragmentHost());
+      if (hostName == null) {
+        return Collections.emptySet();
+      }
+      IndexEntry[] candidates = mySymbolicNameIndex.get(hostName);
+      if (candidates == null) {
         return Collections.emptySet();
       }
 
       Set<ManifestHolder> result = new HashSet<ManifestHolder>();
-      for (ManifestHolder manifestHolder : myManifestHolders) {
-        try {
-          BundleManifest potentialHostManifest = manifestHolder.getBundleManifest();
-          if (potentialHostManifest == null) {
-            continue;
-          }
-          if (potentialHostManifest.isFragmentHostFor(fragmentManifest)) {
-            result.add(manifestHolder);
-          }
-        }
-        catch (ManifestHolderDisposedException ignore) {
-          // ignore.
+      for (IndexEntry candidate : candidates) {
+        BundleManifest potentialHostManifest = candidate.getBundleManifest();
+        if (potentialHostManifest != null && potentialHostManifest.isFragmentHostFor(fragmentManifest)) {
+          result.add(candidate.myHolder);
         }
       }
       return result;
@@ -175,23 +251,20 @@ public class BundleCache {
    * Returns  the manifest holders that have the given symbolic name.
    *
    * @param bundleSymbolicName the symbolic name
-   * @return the matching manifest holders. If no holder matches, returns an empty list.
+   * @return the matching manifest holders, ordered by descending bundle version. If no holder matches, returns an empty list.
    */
   @Nonnull
   public List<ManifestHolder> whoIs(@Nonnull final String bundleSymbolicName) {
-    List<ManifestHolder> result = new ArrayList<ManifestHolder>();
-    for (ManifestHolder manifestHolder : myManifestHolders) {
-      BundleManifest bundleManifest;
-      try {
-        bundleManifest = manifestHolder.getBundleManifest();
-      }
-      catch (ManifestHolderDisposedException ignore) {
-        continue;
-      }
-      if (bundleManifest != null) {
-        if (bundleSymbolicName.equals(bundleManifest.getBundleSymbolicName())) {
-          result.add(manifestHolder);
-        }
+    updateChangedHolders();
+
+    IndexEntry[] candidates = mySymbolicNameIndex.get(bundleSymbolicName);
+    if (candidates == null) {
+      return Collections.emptyList();
+    }
+    List<ManifestHolder> result = new ArrayList<ManifestHolder>(candidates.length);
+    for (IndexEntry candidate : candidates) {
+      if (!candidate.myHolder.isDisposed()) {
+        result.add(candidate.myHolder);
       }
     }
     return result;
@@ -206,27 +279,64 @@ public class BundleCache {
    */
   @Nullable
   public ManifestHolder whoIsRequiredBundle(@Nonnull final String requiredBundleSpec) {
-    List<ManifestHolder> candidates = new ArrayList<ManifestHolder>();
-    for (ManifestHolder manifestHolder : myManifestHolders) {
-      BundleManifest bundleManifest;
-      try {
-        bundleManifest = manifestHolder.getBundleManifest();
-      }
-      catch (ManifestHolderDisposedException ignore) {
-        // this thing is gone
-        continue;
-      }
+    updateChangedHolders();
+    return findRequiredBundle(requiredBundleSpec);
+  }
 
-      if (bundleManifest != null) {
-        if (bundleManifest.isRequiredBundle(requiredBundleSpec)) {
-          candidates.add(manifestHolder);
-        }
+  /**
+   * {@link #whoIsRequiredBundle(String)} without updating changed holders, for the {@link RequiredBundleGraph} which calls it while
+   * holding its own lock.
+   */
+  @Nullable
+  ManifestHolder findRequiredBundle(@Nonnull final String requiredBundleSpec) {
+    String symbolicName = getFirstClauseName(requiredBundleSpec);
+    if (symbolicName == null) {
+      return null;
+    }
+    IndexEntry[] candidates = mySymbolicNameIndex.get(symbolicName);
+    if (candidates == null) {
+      return null;
+    }
+
+    // candidates are sorted by descending version, so the first match is the one with the highest version.
+    for (IndexEntry candidate : candidates) {
+      BundleManifest bundleManifest = candidate.getBundleManifest();
+      if (bundleManifest != null && bundleManifest.isRequiredBundle(requiredBundleSpec)) {
+        return candidate.myHolder;
       }
     }
+    return null;
+  }
 
-    return getCandidateWithHighestVersion(candidates);
+  /**
+   * Returns the given bundle together with all bundles it re-exports via Require-Bundle, directly, transitively or through its
+   * fragments. The result is memoized until one of the involved bundles changes.
+   *
+   * @param bundle the bundle
+   * @return the re-export closure of the bundle, including the bundle itself.
+   */
+  @Nonnull
+  public Set<ManifestHolder> getReExportClosure(@Nonnull ManifestHolder bundle) {
+    updateChangedHolders();
+    return myRequiredBundleGraph.getReExportClosure(bundle);
   }
 
+  /**
+   * Returns the manifest holder for the given bundle object.
+   *
+   * @param bundle the bundle object
+   * @return the manifest
+   */
+  @Nullable
+  public ManifestHolder getManifestHolder(@Nonnull final Object bundle) {
+    updateChangedHolders();
+
+    ManifestHolder manifestHolder = myBoundObjectIndex.get(bundle);
+    if (manifestHolder == null || manifestHolder.isDisposed()) {
+      return null;
+    }
+    return manifestHolder;
+  }
 
   /**
    * Helper function which takes a collection of manifest holders, creates sets of manifest holders that have the same bundle symbolic name
@@ -333,26 +443,176 @@ public class BundleCache {
     return result;
   }
 
+  @Nonnull
+  private static IndexEntry createEntry(@Nonnull ManifestHolder holder,
+                                        @Nonnull Object boundObject,
+                                        @Nullable BundleManifest bundleManifest,
+                                        long modificationCount) {
+    if (bundleManifest == null) {
+      return new IndexEntry(holder, boundObject, modificationCount, null, null, Collections.<String>emptySet(), null);
+    }
+
+    Set<String> exportedPackages = new HashSet<String>();
+    for (String export : bundleManifest.getExports()) {
+      exportedPackages.addAll(getClauseNames(export));
+    }
+    return new IndexEntry(holder, boundObject, modificationCount, bundleManifest.getBundleSymbolicName(),
+                          bundleManifest.getBundleVersion(), exportedPackages, getFirstClauseName(bundleManifest.getFragmentHost()));
+  }
+
+  private void addToIndexes(@Nonnull IndexEntry entry) {
+    myEntries.put(entry.myHolder, entry);
+    myBoundObjectIndex.put(entry.myBoundObject, entry.myHolder);
+    for (String packageName : entry.myExportedPackages) {
+      addToIndex(myPackageIndex, packageName, entry);
+    }
+    if (entry.mySymbolicName != null) {
+      addToIndex(mySymbolicNameIndex, entry.mySymbolicName, entry);
+    }
+    if (entry.myFragmentHostName != null) {
+      addToIndex(myFragmentIndex, entry.myFragmentHostName, entry);
+    }
+    myRequiredBundleGraph.invalidate(entry.mySymbolicName);
+    myRequiredBundleGraph.invalidate(entry.myFragmentHostName);
+  }
+
+  private void removeFromIndexes(@Nonnull IndexEntry entry) {
+    myEntries.remove(entry.myHolder);
+    if (myBoundObjectIndex.get(entry.myBoundObject) == entry.myHolder) {
+      myBoundObjectIndex.remove(entry.myBoundObject);
+    }
+    for (String packageName : entry.myExportedPackages) {
+      removeFromIndex(myPackageIndex, packageName, entry);
+    }
+    if (entry.mySymbolicName != null) {
+      removeFromIndex(mySymbolicNameIndex, entry.mySymbolicName, entry);
+    }
+    if (entry.myFragmentHostName != null) {
+      removeFromIndex(myFragmentIndex, entry.myFragmentHostName, entry);
+    }
+    myRequiredBundleGraph.remove(entry.myHolder);
+    myRequiredBundleGraph.invalidate(entry.mySymbolicName);
+    myRequiredBundleGraph.invalidate(entry.myFragmentHostName);
+  }
+
   /**
-   * Returns the manifest holder for the given bundle object.
+   * Adds the entry to the given index. The arrays in the index are never modified in place (copy on write), so readers can iterate them
+   * without locking.
+   */
+  private static void addToIndex(@Nonnull Map<String, IndexEntry[]> index, @Nonnull String key, @Nonnull IndexEntry entry) {
+    IndexEntry[] entries = index.get(key);
+    IndexEntry[] copy;
+    if (entries == null) {
+      copy = new IndexEntry[]{entry};
+    }
+    else {
+      copy = Arrays.copyOf(entries, entries.length + 1);
+      copy[entries.length] = entry;
+      Arrays.sort(copy, IndexEntry.BY_DESCENDING_VERSION);
+    }
+    index.put(key, copy);
+  }
+
+  private static void removeFromIndex(@Nonnull Map<String, IndexEntry[]> index, @Nonnull String key, @Nonnull IndexEntry entry) {
+    IndexEntry[] entries = index.get(key);
+    if (entries == null) {
+      return;
+    }
+    List<IndexEntry> copy = new ArrayList<IndexEntry>(Arrays.asList(entries));
+    copy.remove(entry);
+    if (copy.isEmpty()) {
+      index.remove(key);
+    }
+    else {
+      index.put(key, copy.toArray(new IndexEntry[copy.size()]));
+    }
+  }
+
+  /**
+   * Returns the names of a manifest clause, that is all parameters which are neither attributes nor directives. For an Export-Package
+   * clause like <code>org.foo;org.bar;version=1.0</code> this yields the package names, for a Require-Bundle or Fragment-Host clause
+   * the bundle symbolic name.
    *
-   * @param bundle the bundle object
-   * @return the manifest
+   * @param clause the clause text
+   * @return the names in the clause, in order of appearance
    */
+  @Nonnull
+  private static List<String> getClauseNames(@Nonnull String clause) {
+    List<String> result = new ArrayList<String>(1);
+    int start = 0;
+    boolean quoted = false;
+    for (int i = 0; i <= clause.length(); i++) {
+      char c = i < clause.length() ? clause.charAt(i) : ';';
+      if (c == '"') {
+        quoted = !quoted;
+      }
+      else if (c == ';' && !quoted) {
+        String parameter = clause.substring(start, i).trim();
+        if (!parameter.isEmpty() && parameter.indexOf('=') < 0) {
+          result.add(parameter);
+        }
+        start = i + 1;
+      }
+    }
+    return result;
+  }
+
   @Nullable
-  public ManifestHolder getManifestHolder(@Nonnull final Object bundle) {
-    for (ManifestHolder manifestHolder : myManifestHolders) {
-      Object boundObject;
+  static String getFirstClauseName(@Nullable String clause) {
+    if (clause == null) {
+      return null;
+    }
+    List<String> names = getClauseNames(clause);
+    return names.isEmpty() ? null : names.get(0);
+  }
+
+  /**
+   * The indexed information of a single manifest holder, taken from its manifest at the time of indexing.
+   */
+  private static final class IndexEntry {
+    private static final Comparator<IndexEntry> BY_DESCENDING_VERSION = new Comparator<IndexEntry>() {
+      @Override
+      public int compare(IndexEntry o1, IndexEntry o2) {
+        if (o1.myVersion == null || o2.myVersion == null) {
+          return o1.myVersion == null ? (o2.myVersion == null ? 0 : 1) : -1;
+        }
+        return o2.myVersion.compareTo(o1.myVersion);
+      }
+    };
+
+    private final ManifestHolder myHolder;
+    private final Object myBoundObject;
+    private final long myModificationCount;
+    @Nullable private final String mySymbolicName;
+    @Nullable private final Version myVersion;
+    private final Set<String> myExportedPackages;
+    @Nullable private final String myFragmentHostName;
+
+    private IndexEntry(ManifestHolder holder,
+                       Object boundObject,
+                       long modificationCount,
+                       @Nullable String symbolicName,
+                       @Nullable Version version,
+                       Set<String> exportedPackages,
+                       @Nullable String fragmentHostName) {
+      myHolder = holder;
+      myBoundObject = boundObject;
+      myModificationCount = modificationCount;
+      mySymbolicName = symbolicName;
+      myVersion = version;
+      myExportedPackages = exportedPackages;
+      myFragmentHostName = fragmentHostName;
+    }
+
+    @Nullable
+    private BundleManifest getBundleManifest() {
       try {
-        boundObject = manifestHolder.getBoundObject();
+        return myHolder.getBundleManifest();
       }
       catch (ManifestHolderDisposedException ignore) {
-        continue;
-      }
-      if (boundObject.equals(bundle)) {
-        return manifestHolder;
+        // ok this thing is gone
+        return null;
       }
     }
-    return null;
   }
 }
@@ -1,14 +1,34 @@
 package org.osmorc.impl;
 
-import consulo.logging.Logger;
+import com.intellij.ProjectTopics;
+import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.module.Module;
 import com.intellij.openapi.module.ModuleManager;
 import com.intellij.openapi.module.ModuleServiceManager;
+import com.intellij.openapi.module.ModuleUtilCore;
+import com.intellij.openapi.project.ModuleAdapter;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ModuleRootAdapter;
+import com.intellij.openapi.roots.ModuleRootEvent;
 import com.intellij.openapi.roots.OrderRootType;
 import com.intellij.openapi.roots.impl.libraries.ProjectLibraryTable;
 import com.intellij.openapi.roots.libraries.Library;
+import com.intellij.openapi.roots.libraries.LibraryTable;
+import com.intellij.openapi.roots.RootProvider;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileContentChangeEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.PsiTreeChangeAdapter;
+import com.intellij.psi.PsiTreeChangeEvent;
+import com.intellij.util.Alarm;
+import com.intellij.util.messages.MessageBusConnection;
 import com.intellij.util.messages.Topic;
+import consulo.logging.Logger;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
@@ -19,8 +39,10 @@ import org.osmorc.BundleManager;
 import org.osmorc.manifest.ManifestHolder;
 import org.osmorc.manifest.ManifestHolderDisposedException;
 import org.osmorc.manifest.impl.LibraryManifestHolderImpl;
+import org.osmorc.manifest.lang.psi.ManifestFile;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -39,9 +61,155 @@ public class MyBundleManager extends BundleManager {
    */
   private static final Pattern JarPathPattern = Pattern.compile("(.*/)?([^/]+.jar)");
 
+  /**
+   * Delay in ms after which pending module and library changes are indexed as one batch.
+   */
+  private static final int REINDEX_DELAY = 300;
+
+  private static final String ARCHIVE_SEPARATOR = "!/";
+
+  private final Object myPendingChangesLock = new Object();
+  private final Set<Module> myPendingModules = new LinkedHashSet<Module>();
+  private final Set<Library> myPendingLibraries = new LinkedHashSet<Library>();
+  private boolean myPendingCleanup;
+  private final Set<Library> myWatchedLibraries = Collections.newSetFromMap(new ConcurrentHashMap<Library, Boolean>());
+  private final Alarm myReindexAlarm;
+
   public MyBundleManager(Project project) {
     myProject = project;
     myBundleCache = new BundleCache();
+    myReindexAlarm = new Alarm(Alarm.ThreadToUse.POOLED_THREAD, project);
+
+    MessageBusConnection connection = project.getMessageBus().connect(project);
+    connection.subscribe(ProjectTopics.MODULES, new ModuleAdapter() {
+      @Override
+      public void moduleAdded(Project project, Module module) {
+        scheduleReindex(Collections.singleton(module), Collections.<Library>emptySet(), false);
+      }
+
+      @Override
+      public void moduleRemoved(Project project, Module module) {
+        scheduleReindex(Collections.<Module>emptySet(), Collections.<Library>emptySet(), true);
+      }
+    });
+    connection.subscribe(ProjectTopics.PROJECT_ROOTS, new ModuleRootAdapter() {
+      @Override
+      public void rootsChanged(ModuleRootEvent event) {
+        // OSGi extensions may have been added or removed. Reindexing a module whose manifest did not change is cheap, as the bundle
+        // cache only compares modification counts, so all modules are rechecked. Library contents are tracked by their own listeners.
+        scheduleReindex(Arrays.asList(ModuleManager.getInstance(myProject).getModules()), Collections.<Library>emptySet(), true);
+      }
+    });
+    ProjectLibraryTable.getInstance(project).addListener(new LibraryTable.Listener() {
+      @Override
+      public void afterLibraryAdded(Library newLibrary) {
+        scheduleReindex(Collections.<Module>emptySet(), Collections.singleton(newLibrary), false);
+      }
+
+      @Override
+      public void afterLibraryRenamed(Library library) {
+      }
+
+      @Override
+      public void beforeLibraryRemoved(Library library) {
+      }
+
+      @Override
+      public void afterLibraryRemoved(Library library) {
+        myWatchedLibraries.remove(library);
+        scheduleReindex(Collections.<Module>emptySet(), Collections.<Library>emptySet(), true);
+      }
+    }, project);
+
+    PsiManager.getInstance(project).addPsiTreeChangeListener(new PsiTreeChangeAdapter() {
+      @Override
+      public void childAdded(@Nonnull PsiTreeChangeEvent event) {
+        manifestChanged(event.getFile());
+      }
+
+      @Override
+      public void childRemoved(@Nonnull PsiTreeChangeEvent event) {
+        manifestChanged(event.getFile());
+      }
+
+      @Override
+      public void childReplaced(@Nonnull PsiTreeChangeEvent event) {
+        manifestChanged(event.getFile());
+      }
+
+      @Override
+      public void childMoved(@Nonnull PsiTreeChangeEvent event) {
+        manifestChanged(event.getFile());
+      }
+
+      @Override
+      public void childrenChanged(@Nonnull PsiTreeChangeEvent event) {
+        manifestChanged(event.getFile());
+      }
+    }, project);
+    connection.subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener() {
+      @Override
+      public void after(@Nonnull List<? extends VFileEvent> events) {
+        for (VFileEvent event : events) {
+          if (event instanceof VFileContentChangeEvent) {
+            archiveChanged(((VFileContentChangeEvent)event).getFile());
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Reindexes the module of a manifest file which was edited. The module is marked as changed in the bundle cache right away, so
+   * lookups do not use the outdated manifest until the reindex is done.
+   */
+  private void manifestChanged(@Nullable PsiFile file) {
+    if (!(file instanceof ManifestFile)) {
+      return;
+    }
+    Module module = ModuleUtilCore.findModuleForPsiElement(file);
+    if (module == null || module.isDisposed() || OSGiModuleExtensionUtil.findExtension(module) == null) {
+      return;
+    }
+    myBundleCache.manifestChanged(ModuleServiceManager.getService(module, ManifestHolder.class));
+    scheduleReindex(Collections.singleton(module), Collections.<Library>emptySet(), false);
+  }
+
+  /**
+   * Reindexes the libraries containing a jar which was rebuilt.
+   */
+  private void archiveChanged(@Nonnull VirtualFile file) {
+    if (file.isDirectory() || !"jar".equalsIgnoreCase(file.getExtension())) {
+      return;
+    }
+    String path = file.getPath();
+    LibraryManifestHolderImpl.archiveChanged(path);
+    List<Library> libraries = new ArrayList<Library>();
+    for (Library library : myWatchedLibraries) {
+      for (String url : library.getUrls(OrderRootType.CLASSES)) {
+        if (path.equals(getArchivePath(url))) {
+          libraries.add(library);
+          break;
+        }
+      }
+    }
+    if (!libraries.isEmpty()) {
+      scheduleReindex(Collections.<Module>emptySet(), libraries, false);
+    }
+  }
+
+  /**
+   * Returns the local path of the jar a class root url points into, or null if the url is no jar url.
+   */
+  @Nullable
+  private static String getArchivePath(@Nonnull String url) {
+    int separator = url.indexOf(ARCHIVE_SEPARATOR);
+    if (separator < 0) {
+      return null;
+    }
+    String path = VfsUtilCore.urlToPath(url);
+    separator = path.indexOf(ARCHIVE_SEPARATOR);
+    return separator < 0 ? path : path.substring(0, separator);
   }
 
   private void notifyListenersOfBundleIndexChange() {
@@ -50,6 +218,61 @@ public class MyBundleManager extends BundleManager {
     }
   }
 
+  /**
+   * Queues the given modules and libraries for reindexing. Changes arriving within {@link #REINDEX_DELAY} are indexed together and
+   * result in at most one notification of the {@link #BUNDLE_INDEX_CHANGE_TOPIC}.
+   *
+   * @param modules   the modules to reindex
+   * @param libraries the libraries to reindex
+   * @param cleanup   true if bundles may have been removed, so stale holders need to be dropped from the cache
+   */
+  private void scheduleReindex(@Nonnull Collection<Module> modules, @Nonnull Collection<Library> libraries, boolean cleanup) {
+    synchronized (myPendingChangesLock) {
+      myPendingModules.addAll(modules);
+      myPendingLibraries.addAll(libraries);
+      myPendingCleanup |= cleanup;
+    }
+    myReindexAlarm.cancelAllRequests();
+    myReindexAlarm.addRequest(new Runnable() {
+      @Override
+      public void run() {
+        processPendingChanges();
+      }
+    }, REINDEX_DELAY);
+  }
+
+  private void processPendingChanges() {
+    final List<Module> modules;
+    final List<Library> libraries;
+    final boolean cleanup;
+    synchronized (myPendingChangesLock) {
+      modules = new ArrayList<Module>(myPendingModules);
+      libraries = new ArrayList<Library>(myPendingLibraries);
+      cleanup = myPendingCleanup;
+      myPendingModules.clear();
+      myPendingLibraries.clear();
+      myPendingCleanup = false;
+    }
+    if (myProject.isDisposed()) {
+      return;
+    }
+
+    boolean needsNotification = ReadAction.compute(() -> {
+      boolean changed = false;
+      for (Module module : modules) {
+        changed |= doReindex(module);
+      }
+      changed |= doReindex(libraries);
+      if (cleanup) {
+        changed |= myBundleCache.cleanup();
+      }
+      return changed;
+    });
+    if (needsNotification) {
+      notifyListenersOfBundleIndexChange();
+    }
+  }
+
   @Override
   public void reindexAll() {
     boolean needsNotification = false;
@@ -57,12 +280,13 @@ public class MyBundleManager extends BundleManager {
     // there are no osgi structures on project level, so we can simply get all modules and index these.
     Module[] modules = ModuleManager.getInstance(myProject).getModules();
     for (Module module : modules) {
-      needsNotification |= doReindex(module, false);
+      needsNotification |= doReindex(module);
     }
 
     // finally index the project level libraries
     Library[] libraries = ProjectLibraryTable.getInstance(myProject).getLibraries();
-    needsNotification |= doReindex(Arrays.asList(libraries), false);
+    needsNotification |= doReindex(Arrays.asList(libraries));
+    needsNotification |= myBundleCache.cleanup();
     if (needsNotification) {
       notifyListenersOfBundleIndexChange();
     }
@@ -70,7 +294,11 @@ public class MyBundleManager extends BundleManager {
 
   @Override
   public void reindex(@Nonnull final Module module) {
-    doReindex(module, true);
+    boolean needsNotification = doReindex(module);
+    needsNotification |= myBundleCache.cleanup();
+    if (needsNotification) {
+      notifyListenersOfBundleIndexChange();
+    }
   }
 
   /**
@@ -84,14 +312,12 @@ public class MyBundleManager extends BundleManager {
   }
 
   /**
-   * Adds the given module to the cache.
+   * Adds the given module to the cache. Stale holders are not removed, callers should do a {@link BundleCache#cleanup()} once per batch.
    *
-   * @param module            the module to add
-   * @param sendNotifications a flag indicating, if listeners should be notified of a library change.
+   * @param module the module to add
    * @return a boolean indicating if the operations of this method have changed the internal state, so that listeners should be notified.
-   *         If this method already notified the listeners, this will return false in any case.
    */
-  private boolean doReindex(Module module, boolean sendNotifications) {
+  private boolean doReindex(Module module) {
     if (module.isDisposed()) {
       return false; // don't work on disposed modules
     }
@@ -104,44 +330,52 @@ public class MyBundleManager extends BundleManager {
     // if the module has an OSGi facet, treat it as a bundle and add it to the cache
     if (OSGiModuleExtensionUtil.findExtension(module) != null) {
       ManifestHolder manifestHolder = ModuleServiceManager.getService(module, ManifestHolder.class);
-      boolean needsNotification = myBundleCache.updateWith(manifestHolder);
-      needsNotification |= myBundleCache.cleanup();
-      if (needsNotification && sendNotifications) {
-        notifyListenersOfBundleIndexChange();
-      }
-      return needsNotification && !sendNotifications;
+      return myBundleCache.updateWith(manifestHolder);
     }
     return false;
   }
 
   @Override
   public void reindex(@Nonnull Collection<Library> libraries) {
-    doReindex(libraries, true);
+    boolean needsNotification = doReindex(libraries);
+    needsNotification |= myBundleCache.cleanup();
+    if (needsNotification) {
+      notifyListenersOfBundleIndexChange();
+    }
   }
 
   /**
-   * Adds the given libraries to the cache.
+   * Adds the given libraries to the cache. Stale holders are not removed, callers should do a {@link BundleCache#cleanup()} once per batch.
    *
-   * @param libraries         the libraries
-   * @param sendNotifications a flag indicating if listeners should be notified of a library change
+   * @param libraries the libraries
    * @return a boolean indicating if the operations of this method have changed the internal state, so that listeners should be notified.
-   *         If this method already notified the listeners, this will return false in any case.
    */
-  private boolean doReindex(Collection<Library> libraries, boolean sendNotifications) {
+  private boolean doReindex(Collection<Library> libraries) {
     boolean needsNotification = false;
     for (Library library : libraries) {
+      watchLibrary(library);
       Collection<ManifestHolder> manifestHolders = LibraryManifestHolderImpl.createForLibrary(library, myProject);
       for (ManifestHolder manifestHolder : manifestHolders) {
         needsNotification |= myBundleCache.updateWith(manifestHolder);
       }
     }
-    needsNotification |= myBundleCache.cleanup();
-    if (needsNotification && sendNotifications) {
-      notifyListenersOfBundleIndexChange();
-    }
-    return needsNotification && !sendNotifications;
+    return needsNotification;
   }
 
+  /**
+   * Makes sure the given library is reindexed when its class roots change.
+   */
+  private void watchLibrary(@Nonnull final Library library) {
+    if (!myWatchedLibraries.add(library) || library.getTable() != ProjectLibraryTable.getInstance(myProject)) {
+      return;
+    }
+    library.getRootProvider().addRootSetChangedListener(new RootProvider.RootSetChangedListener() {
+      @Override
+      public void rootSetChanged(RootProvider wrapper) {
+        scheduleReindex(Collections.<Module>emptySet(), Collections.singleton(library), true);
+      }
+    }, library);
+  }
 
   @Override
   @Nonnull
@@ -162,11 +396,13 @@ public class MyBundleManager extends BundleManager {
 
     // Resolve Require-Bundle
     List<String> requiredBundles = manifest.getRequiredBundles();
-    List<ManifestHolder> allRequiredBundles = new ArrayList<ManifestHolder>();
     for (String requiredBundle : requiredBundles) {
-      resolveRequiredBundle(requiredBundle, allRequiredBundles);
+      ManifestHolder requiredBundleHolder = myBundleCache.whoIsRequiredBundle(requiredBundle);
+      if (requiredBundleHolder != null) {
+        // the bundle including re-exports and possible amendments by fragments
+        dependencyHolders.addAll(myBundleCache.getReExportClosure(requiredBundleHolder));
+      }
     }
-    dependencyHolders.addAll(allRequiredBundles);
 
 
     // Resolve Fragment-Hosts
@@ -194,75 +430,6 @@ public class MyBundleManager extends BundleManager {
     return result;
   }
 
-  /**
-   * This method fully resolves a Require-Bundle specification including re-exports and possible amendments by fragments. All resolved
-   * dependencies will be added to the <code>resolvedDependencies</code> list.
-   *
-   * @param requireBundleSpec    the spec to resolve
-   * @param resolvedDependencies the resolved dependencies.
-   */
-  private void resolveRequiredBundle(@Nonnull String requireBundleSpec,
-                                     @Nonnull List<ManifestHolder> resolvedDependencies) {
-
-    // first get the manifest holder of the required bundle
-    ManifestHolder manifestHolder = myBundleCache.whoIsRequiredBundle(requireBundleSpec);
-
-    if (manifestHolder == null) {
-      // unresolvable, may happen if the user misses some dependencies.
-      return;
-    }
-
-    if (resolvedDependencies.contains(manifestHolder)) {
-      // we're done here, we already resolved this dependency
-      return;
-    }
-
-    BundleManifest requireBundleManifest;
-    try {
-      requireBundleManifest = manifestHolder.getBundleManifest();
-    }
-    catch (ManifestHolderDisposedException e) {
-      // ok it's gone. Should rarely happen but in this case there is nothing we can do anymore.
-      return;
-    }
-
-
-    if (requireBundleManifest != null) {
-      // its kosher, so add it to the result list.
-      resolvedDependencies.add(manifestHolder);
-
-      // now determine additional dependencies
-      List<String> toResolve = new ArrayList<String>();
-
-      // -  bundles that are re-exported from the current dependency
-      toResolve.addAll(requireBundleManifest.getReExportedBundles());
-
-      // - bundles that are re-exported from any fragments
-      Set<ManifestHolder> fragments = myBundleCache.getFragmentsForBundle(manifestHolder);
-
-      // we only want the highest version of each fragment, so filter this out:
-      fragments = BundleCache.getCandidatesWithHighestVersions(fragments);
-
-      for (ManifestHolder fragment : fragments) {
-        BundleManifest manifest = null;
-        try {
-          manifest = fragment.getBundleManifest();
-        }
-        catch (ManifestHolderDisposedException e) {
-          // ok it's gone, ignore it.
-        }
-        if (manifest != null) {
-          toResolve.addAll(manifest.getReExportedBundles());
-        }
-      }
-
-      // now recursively resolve these dependencies
-      for (String dependencySpec : toResolve) {
-        resolveRequiredBundle(dependencySpec, resolvedDependencies);
-      }
-    }
-  }
-
   /**
    * Resolves the given bundle classpath entries.
    *
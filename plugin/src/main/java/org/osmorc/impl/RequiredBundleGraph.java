@@ -0,0 +1,308 @@
+package org.osmorc.impl;
+
+import aQute.libg.tarjan.Tarjan;
+import consulo.osgi.manifest.BundleManifest;
+import org.osmorc.manifest.ManifestHolder;
+import org.osmorc.manifest.ManifestHolderDisposedException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * Memoized graph of Require-Bundle re-exports between the bundles of a {@link BundleCache}. A bundle has an edge to every bundle it
+ * re-exports, either itself or through one of its fragments (only the highest version of each fragment counts). Re-export closures
+ * are computed once per strongly connected component and kept until one of the bundles they depend on changes. Besides the explicit
+ * invalidation by the bundle cache, the edges remember the modification counts of the manifests they were computed from, so a closure
+ * is recomputed as soon as the manifest of one of its bundles is edited.
+ */
+class RequiredBundleGraph {
+  private final BundleCache myBundleCache;
+
+  /**
+   * holder -> bundles it re-exports.
+   */
+  private final Map<ManifestHolder, Edges> myEdges = new HashMap<ManifestHolder, Edges>();
+  /**
+   * holder -> holders which re-export it.
+   */
+  private final Map<ManifestHolder, Set<ManifestHolder>> myReverseEdges = new HashMap<ManifestHolder, Set<ManifestHolder>>();
+  /**
+   * bundle symbolic name -> holders whose edges have been computed using bundles of that name.
+   */
+  private final Map<String, Set<ManifestHolder>> myDependents = new HashMap<String, Set<ManifestHolder>>();
+  private final Map<ManifestHolder, Set<ManifestHolder>> myClosures = new HashMap<ManifestHolder, Set<ManifestHolder>>();
+
+  RequiredBundleGraph(@Nonnull BundleCache bundleCache) {
+    myBundleCache = bundleCache;
+  }
+
+  /**
+   * Returns the given bundle together with all bundles it re-exports, directly or transitively.
+   *
+   * @param holder the bundle
+   * @return the re-export closure of the bundle.
+   */
+  @Nonnull
+  synchronized Set<ManifestHolder> getReExportClosure(@Nonnull ManifestHolder holder) {
+    Set<ManifestHolder> closure = myClosures.get(holder);
+    if (closure != null && isUpToDate(closure)) {
+      return closure;
+    }
+
+    // collect the part of the graph reachable from the holder for which no closures are known yet
+    Map<ManifestHolder, Set<ManifestHolder>> graph = new HashMap<ManifestHolder, Set<ManifestHolder>>();
+    Deque<ManifestHolder> queue = new ArrayDeque<ManifestHolder>();
+    queue.add(holder);
+    while (!queue.isEmpty()) {
+      ManifestHolder current = queue.poll();
+      if (graph.containsKey(current)) {
+        continue;
+      }
+      Set<ManifestHolder> adjacent = new LinkedHashSet<ManifestHolder>();
+      for (ManifestHolder target : getEdges(current)) {
+        Set<ManifestHolder> targetClosure = myClosures.get(target);
+        if (targetClosure == null || !isUpToDate(targetClosure)) {
+          adjacent.add(target);
+          queue.add(target);
+        }
+      }
+      graph.put(current, adjacent);
+    }
+
+    // bundles re-exporting each other share one closure
+    Map<ManifestHolder, Set<ManifestHolder>> components = new HashMap<ManifestHolder, Set<ManifestHolder>>();
+    for (Set<ManifestHolder> component : Tarjan.tarjan(graph)) {
+      for (ManifestHolder member : component) {
+        components.put(member, component);
+      }
+    }
+    return computeClosure(holder, components);
+  }
+
+  @Nonnull
+  private Set<ManifestHolder> computeClosure(@Nonnull ManifestHolder holder, @Nonnull Map<ManifestHolder, Set<ManifestHolder>> components) {
+    Set<ManifestHolder> closure = myClosures.get(holder);
+    if (closure != null) {
+      return closure;
+    }
+
+    Set<ManifestHolder> component = components.get(holder);
+    if (component == null) {
+      // not part of the collected graph: its closure was known during the collection but has been dropped since, or a manifest changed
+      // while walking and the holder became a new target. It is collected on its own.
+      return getReExportClosure(holder);
+    }
+    closure = new HashSet<ManifestHolder>(component);
+    for (ManifestHolder member : component) {
+      for (ManifestHolder target : getEdges(member)) {
+        if (!component.contains(target)) {
+          closure.addAll(computeClosure(target, components));
+        }
+      }
+    }
+    closure = Collections.unmodifiableSet(closure);
+    for (ManifestHolder member : component) {
+      myClosures.put(member, closure);
+    }
+    return closure;
+  }
+
+  /**
+   * Checks the edges of all bundles of a closure against their manifests, dropping the edges and closures which are outdated.
+   *
+   * @return true if the closure is still valid.
+   */
+  private boolean isUpToDate(@Nonnull Set<ManifestHolder> closure) {
+    boolean upToDate = true;
+    for (ManifestHolder member : closure) {
+      Edges edges = myEdges.get(member);
+      if (edges == null || !edges.isUpToDate()) {
+        invalidateEdges(member);
+        upToDate = false;
+      }
+    }
+    return upToDate;
+  }
+
+  @Nonnull
+  private ManifestHolder[] getEdges(@Nonnull ManifestHolder holder) {
+    Edges edges = myEdges.get(holder);
+    if (edges != null) {
+      if (edges.isUpToDate()) {
+        return edges.myTargets;
+      }
+      invalidateEdges(holder);
+    }
+
+    List<ManifestHolder> inputs = new ArrayList<ManifestHolder>();
+    List<BundleManifest> inputManifests = new ArrayList<BundleManifest>();
+    BundleManifest manifest = getBundleManifest(holder);
+    if (manifest == null) {
+      edges = new Edges(new ManifestHolder[0], inputs, inputManifests);
+      myEdges.put(holder, edges);
+      return edges.myTargets;
+    }
+    inputs.add(holder);
+    inputManifests.add(manifest);
+
+    // -  bundles that are re-exported from the current dependency
+    List<String> specs = new ArrayList<String>(manifest.getReExportedBundles());
+
+    // - bundles that are re-exported from any fragments, we only want the highest version of each fragment.
+    addDependent(manifest.getBundleSymbolicName(), holder);
+    Set<ManifestHolder> fragments = BundleCache.getCandidatesWithHighestVersions(myBundleCache.findFragmentsForBundle(holder));
+    for (ManifestHolder fragment : fragments) {
+      BundleManifest fragmentManifest = getBundleManifest(fragment);
+      if (fragmentManifest != null) {
+        specs.addAll(fragmentManifest.getReExportedBundles());
+        inputs.add(fragment);
+        inputManifests.add(fragmentManifest);
+      }
+    }
+
+    Set<ManifestHolder> targets = new LinkedHashSet<ManifestHolder>();
+    for (String spec : specs) {
+      addDependent(BundleCache.getFirstClauseName(spec), holder);
+      ManifestHolder target = myBundleCache.findRequiredBundle(spec);
+      if (target != null && targets.add(target)) {
+        // the version of the target decides whether it still matches the spec
+        BundleManifest targetManifest = getBundleManifest(target);
+        if (targetManifest != null) {
+          inputs.add(target);
+          inputManifests.add(targetManifest);
+        }
+        Set<ManifestHolder> sources = myReverseEdges.get(target);
+        if (sources == null) {
+          sources = new HashSet<ManifestHolder>();
+          myReverseEdges.put(target, sources);
+        }
+        sources.add(holder);
+      }
+    }
+    edges = new Edges(targets.toArray(new ManifestHolder[targets.size()]), inputs, inputManifests);
+    myEdges.put(holder, edges);
+    return edges.myTargets;
+  }
+
+  private void addDependent(@Nullable String symbolicName, @Nonnull ManifestHolder holder) {
+    if (symbolicName == null) {
+      return;
+    }
+    Set<ManifestHolder> dependents = myDependents.get(symbolicName);
+    if (dependents == null) {
+      dependents = new HashSet<ManifestHolder>();
+      myDependents.put(symbolicName, dependents);
+    }
+    dependents.add(holder);
+  }
+
+  /**
+   * Called when a bundle or fragment of the given name was added, removed or modified. Drops the edges computed with bundles of that name,
+   * and the closures of all bundles re-exporting them.
+   *
+   * @param symbolicName the bundle symbolic name
+   */
+  synchronized void invalidate(@Nullable String symbolicName) {
+    if (symbolicName == null) {
+      return;
+    }
+    Set<ManifestHolder> dependents = myDependents.remove(symbolicName);
+    if (dependents != null) {
+      for (ManifestHolder dependent : dependents) {
+        invalidateEdges(dependent);
+      }
+    }
+  }
+
+  /**
+   * Called when the given holder was removed from the bundle cache.
+   *
+   * @param holder the holder
+   */
+  synchronized void remove(@Nonnull ManifestHolder holder) {
+    invalidateEdges(holder);
+    myReverseEdges.remove(holder);
+  }
+
+  synchronized void clear() {
+    myEdges.clear();
+    myReverseEdges.clear();
+    myDependents.clear();
+    myClosures.clear();
+  }
+
+  private void invalidateEdges(@Nonnull ManifestHolder holder) {
+    Edges edges = myEdges.remove(holder);
+    if (edges != null) {
+      for (ManifestHolder target : edges.myTargets) {
+        Set<ManifestHolder> sources = myReverseEdges.get(target);
+        if (sources != null) {
+          sources.remove(holder);
+        }
+      }
+    }
+    invalidateClosures(holder);
+  }
+
+  /**
+   * Drops the closure of the given holder and, following the reverse edges, of every holder which re-exports it.
+   */
+  private void invalidateClosures(@Nonnull ManifestHolder holder) {
+    Set<ManifestHolder> visited = new HashSet<ManifestHolder>();
+    Deque<ManifestHolder> queue = new ArrayDeque<ManifestHolder>();
+    queue.add(holder);
+    while (!queue.isEmpty()) {
+      ManifestHolder current = queue.poll();
+      if (!visited.add(current)) {
+        continue;
+      }
+      myClosures.remove(current);
+      Set<ManifestHolder> sources = myReverseEdges.get(current);
+      if (sources != null) {
+        queue.addAll(sources);
+      }
+    }
+  }
+
+  /**
+   * The bundles a holder re-exports, together with the manifests and their modification counts they were computed from.
+   */
+  private static class Edges {
+    private final ManifestHolder[] myTargets;
+    private final ManifestHolder[] myInputs;
+    private final BundleManifest[] myManifests;
+    private final long[] myModificationCounts;
+
+    private Edges(@Nonnull ManifestHolder[] targets, @Nonnull List<ManifestHolder> inputs, @Nonnull List<BundleManifest> manifests) {
+      myTargets = targets;
+      myInputs = inputs.toArray(new ManifestHolder[inputs.size()]);
+      myManifests = manifests.toArray(new BundleManifest[manifests.size()]);
+      myModificationCounts = new long[myManifests.length];
+      for (int i = 0; i < myManifests.length; i++) {
+        myModificationCounts[i] = myManifests[i].getModificationCount();
+      }
+    }
+
+    private boolean isUpToDate() {
+      for (int i = 0; i < myInputs.length; i++) {
+        BundleManifest manifest = getBundleManifest(myInputs[i]);
+        if (manifest != myManifests[i] || manifest.getModificationCount() != myModificationCounts[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  @Nullable
+  private static BundleManifest getBundleManifest(@Nonnull ManifestHolder holder) {
+    try {
+      return holder.getBundleManifest();
+    }
+    catch (ManifestHolderDisposedException ignore) {
+      // ok it's gone, ignore it.
+      return null;
+    }
+  }
+}
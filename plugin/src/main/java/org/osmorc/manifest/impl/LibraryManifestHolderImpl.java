@@ -29,6 +29,7 @@ import com.intellij.openapi.project.Project;
 import com.intellij.openapi.roots.OrderRootType;
 import com.intellij.openapi.roots.impl.libraries.LibraryEx;
 import com.intellij.openapi.roots.libraries.Library;
+import com.intellij.openapi.util.Computable;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.PsiManager;
@@ -36,6 +37,7 @@ import consulo.disposer.Disposable;
 import consulo.disposer.Disposer;
 import consulo.osgi.manifest.BundleManifest;
 import consulo.osgi.manifest.impl.BundleManifestImpl;
+import consulo.osgi.manifest.impl.IndexedBundleManifestImpl;
 import consulo.vfs.util.ArchiveVfsUtil;
 import org.osmorc.manifest.ManifestHolder;
 import org.osmorc.manifest.ManifestHolderDisposedException;
@@ -43,22 +45,42 @@ import org.osmorc.manifest.lang.psi.ManifestFile;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.io.File;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Author: Robert F. Beeger (robert@beeger.net)
  */
 public class LibraryManifestHolderImpl extends AbstractManifestHolderImpl<Library> {
+  private static final String ARCHIVE_SEPARATOR = "!/";
 
   private BundleManifest myBundleManifest;
   private final Library myLibrary;
   private final Project myProject;
   private final String myPath;
 
-  private LibraryManifestHolderImpl(Library library, Project project, String rootPath) {
+  /**
+   * Local path of the jar file, if the root is a jar. The manifest of jars is taken from the {@link LibraryManifestIndex}.
+   */
+  @Nullable
+  private final String myArchivePath;
+  /**
+   * The manifest last returned by the index for the jar, {@link #myBundleManifest} is the navigable view of it.
+   */
+  @Nullable
+  private IndexedBundleManifestImpl myIndexedManifest;
+  /**
+   * Set if the jar may have changed since it was last looked up in the index, see {@link #archiveChanged(String)}.
+   */
+  private volatile boolean myArchiveStale = true;
+
+  private LibraryManifestHolderImpl(Library library, Project project, String rootPath, @Nullable String archivePath) {
     myLibrary = library;
     myProject = project;
     myPath = rootPath;
+    myArchivePath = archivePath;
   }
 
   @Nullable
@@ -68,31 +90,62 @@ public class LibraryManifestHolderImpl extends AbstractManifestHolderImpl<Librar
       throw new ManifestHolderDisposedException();
     }
 
-    if (myBundleManifest == null) {
+    if (myArchivePath != null) {
+      if (!myArchiveStale) {
+        synchronized (this) {
+          return myBundleManifest;
+        }
+      }
+      // cleared before the lookup, so a change arriving meanwhile leads to another lookup. The index compares the size and time
+      // stamp of the jar, so a jar which was rebuilt is read again.
+      myArchiveStale = false;
+      IndexedBundleManifestImpl indexedManifest = LibraryManifestIndex.getInstance().getManifest(new File(myArchivePath));
+      synchronized (this) {
+        if (indexedManifest != myIndexedManifest) {
+          myIndexedManifest = indexedManifest;
+          myBundleManifest = indexedManifest == null ? null : indexedManifest.withManifestFile(new Computable<ManifestFile>() {
+            @Override
+            public ManifestFile compute() {
+              return isDisposed() ? null : findManifestFile();
+            }
+          });
+        }
+        return myBundleManifest;
+      }
+    }
+    else if (myBundleManifest == null) {
+      ManifestFile manifestFile = findManifestFile();
+      if (manifestFile != null) {
+        myBundleManifest = new BundleManifestImpl(manifestFile);
+      }
+    }
+    return myBundleManifest;
+  }
 
-      VirtualFile[] classRoots = myLibrary.getFiles(OrderRootType.CLASSES);
-      for (VirtualFile classRoot : classRoots) {
-        if (classRoot.getUrl().equals(myPath)) {
-          VirtualFile classDir;
-          if (classRoot.isDirectory()) {
-            classDir = classRoot;
-          }
-          else {
-            classDir = ArchiveVfsUtil.getJarRootForLocalFile(classRoot);
-          }
+  @Nullable
+  private ManifestFile findManifestFile() {
+    VirtualFile[] classRoots = myLibrary.getFiles(OrderRootType.CLASSES);
+    for (VirtualFile classRoot : classRoots) {
+      if (classRoot.getUrl().equals(myPath)) {
+        VirtualFile classDir;
+        if (classRoot.isDirectory()) {
+          classDir = classRoot;
+        }
+        else {
+          classDir = ArchiveVfsUtil.getJarRootForLocalFile(classRoot);
+        }
 
-          if (classDir != null) {
-            final VirtualFile manifestFile = classDir.findFileByRelativePath("META-INF/MANIFEST.MF");
-            if (manifestFile != null) {
-              PsiFile psiFile = ReadAction.compute(() -> PsiManager.getInstance(myProject).findFile(manifestFile));
-              myBundleManifest = new BundleManifestImpl((ManifestFile)psiFile);
-            }
+        if (classDir != null) {
+          final VirtualFile manifestFile = classDir.findFileByRelativePath("META-INF/MANIFEST.MF");
+          if (manifestFile != null) {
+            PsiFile psiFile = ReadAction.compute(() -> PsiManager.getInstance(myProject).findFile(manifestFile));
+            return psiFile instanceof ManifestFile ? (ManifestFile)psiFile : null;
           }
-          break; // we're done here.
         }
+        break; // we're done here.
       }
     }
-    return myBundleManifest;
+    return null;
   }
 
   public boolean isDisposed() {
@@ -112,8 +165,7 @@ public class LibraryManifestHolderImpl extends AbstractManifestHolderImpl<Librar
    * @return the manifest holders
    */
   @Nonnull
-  public static synchronized Collection<ManifestHolder> createForLibrary(@Nonnull Library library, @Nonnull Project project) {
-    cleanupHolderCache();
+  public static Collection<ManifestHolder> createForLibrary(@Nonnull Library library, @Nonnull Project project) {
     List<ManifestHolder> result = new ArrayList<ManifestHolder>();
     if (isLibraryDisposed(library) || project.isDisposed()) {
       return result;
@@ -121,66 +173,86 @@ public class LibraryManifestHolderImpl extends AbstractManifestHolderImpl<Librar
     VirtualFile[] classRoots = library.getFiles(OrderRootType.CLASSES);
     for (VirtualFile classRoot : classRoots) {
       String jarFileUrl = classRoot.getUrl();
-      ManifestHolder cachedHolder = myHolderCache.get(jarFileUrl);
+      LibraryManifestHolderImpl cachedHolder = myHolderCache.get(jarFileUrl);
       if (cachedHolder != null) {
-        result.add(cachedHolder);
-        continue;
+        if (!cachedHolder.isDisposed()) {
+          result.add(cachedHolder);
+          continue;
+        }
+        // the holder's library is gone, only this entry is stale so replace it.
+        myHolderCache.remove(jarFileUrl, cachedHolder);
       }
-      VirtualFile classDir;
-      if (classRoot.isDirectory()) {
-        classDir = classRoot;
+      String archivePath = getArchivePath(classRoot);
+      boolean hasManifest;
+      if (archivePath != null) {
+        // jars are looked up in the index, so they don't need to be opened again.
+        hasManifest = LibraryManifestIndex.getInstance().getManifest(new File(archivePath)) != null;
       }
       else {
-        classDir = ArchiveVfsUtil.getJarRootForLocalFile(classRoot);
+        hasManifest = classRoot.isDirectory() && classRoot.findFileByRelativePath("META-INF/MANIFEST.MF") != null;
       }
 
-      if (classDir != null) {
-        final VirtualFile manifestFile = classDir.findFileByRelativePath("META-INF/MANIFEST.MF");
-        if (manifestFile != null) {
-          // potential bundle
-          final LibraryManifestHolderImpl newHolder = new LibraryManifestHolderImpl(library, project, jarFileUrl);
+      if (hasManifest) {
+        // potential bundle
+        final LibraryManifestHolderImpl newHolder = new LibraryManifestHolderImpl(library, project, jarFileUrl, archivePath);
+        LibraryManifestHolderImpl existingHolder = myHolderCache.putIfAbsent(jarFileUrl, newHolder);
+        if (existingHolder != null) {
+          // someone else was faster
+          result.add(existingHolder);
+          continue;
+        }
 
-          // kill reference to the project when it is being disposed. (project leak fix by Alexey Kudravtsev)
-          Disposer.register(project, new Disposable() {
-            @Override
-            public void dispose() {
-              synchronized (LibraryManifestHolderImpl.class) {  // make sure there is no concurrent access to the holder cache.
-                for (Iterator<LibraryManifestHolderImpl> iterator = myHolderCache.values().iterator(); iterator.hasNext(); ) {
-                  LibraryManifestHolderImpl holder = iterator.next();
-                  if (holder == newHolder) {
-                    iterator.remove();
-                    break;
-                  }
-                }
-              }
-            }
-          });
+        // kill reference to the project when it is being disposed. (project leak fix by Alexey Kudravtsev)
+        final String key = jarFileUrl;
+        Disposer.register(project, new Disposable() {
+          @Override
+          public void dispose() {
+            myHolderCache.remove(key, newHolder);
+          }
+        });
 
-          myHolderCache.put(jarFileUrl, newHolder);
-          result.add(newHolder);
-        }
+        result.add(newHolder);
       }
     }
     return result;
   }
 
-
   /**
-   * Removes disposed holders from the holder cache.
+   * Makes the holders of the given jar look up its manifest in the index again, called when the jar was changed.
+   *
+   * @param archivePath the local path of the jar
    */
-  private static void cleanupHolderCache() {
-    for (Iterator<Map.Entry<String, LibraryManifestHolderImpl>> iterator = myHolderCache.entrySet().iterator(); iterator.hasNext(); ) {
-      Map.Entry<String, LibraryManifestHolderImpl> entry = iterator.next();
-      if (entry.getValue().isDisposed()) {
-        iterator.remove();
+  public static void archiveChanged(@Nonnull String archivePath) {
+    for (LibraryManifestHolderImpl holder : myHolderCache.values()) {
+      if (archivePath.equals(holder.myArchivePath)) {
+        holder.myArchiveStale = true;
       }
     }
   }
 
+  /**
+   * Returns the local path of the jar file the given class root belongs to.
+   *
+   * @param classRoot the class root, either the root of a jar or the jar file itself
+   * @return the path, or null if the class root is no jar.
+   */
+  @Nullable
+  private static String getArchivePath(@Nonnull VirtualFile classRoot) {
+    String path = classRoot.getPath();
+    int separator = path.indexOf(ARCHIVE_SEPARATOR);
+    if (separator >= 0) {
+      return path.substring(0, separator);
+    }
+    if (!classRoot.isDirectory() && classRoot.isInLocalFileSystem()) {
+      return path;
+    }
+    return null;
+  }
+
   /**
    * Cache for generated manifest holders. This is to make sure we don't create two manifest holders for the same jar file.
    */
-  private static final Map<String, LibraryManifestHolderImpl> myHolderCache = new HashMap<String, LibraryManifestHolderImpl>();
+  private static final ConcurrentMap<String, LibraryManifestHolderImpl> myHolderCache = new ConcurrentHashMap<String, LibraryManifestHolderImpl>();
 
   @Override
   public Library getBoundObject() throws ManifestHolderDisposedException {
@@ -0,0 +1,260 @@
+package org.osmorc.manifest.impl;
+
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.util.Alarm;
+import consulo.container.boot.ContainerPathManager;
+import consulo.disposer.Disposable;
+import consulo.logging.Logger;
+import consulo.osgi.manifest.impl.IndexedBundleManifestImpl;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * Application wide, persistent index of the manifests of library jars. Entries are keyed by the jar path and are valid as long as the
+ * size and time stamp of the jar do not change, so after a restart the manifests of unchanged jars are known without opening them.
+ * The index keeps the most recently used jars only and is saved a while after it was changed, not just on shutdown.
+ */
+public class LibraryManifestIndex implements Disposable {
+  private static final Logger LOG = Logger.getInstance(LibraryManifestIndex.class);
+
+  private static final int FORMAT_VERSION = 1;
+
+  /**
+   * Maximum number of indexed jars.
+   */
+  private static final int MAX_ENTRIES = 5000;
+
+  /**
+   * Delay in ms after the last change before the index is saved.
+   */
+  private static final int SAVE_DELAY = 10000;
+
+  private final File myIndexFile;
+  /**
+   * The indexed jars, least recently used first. Guarded by itself.
+   */
+  private final Map<String, Entry> myEntries = new LinkedHashMap<String, Entry>(1024, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+      return size() > MAX_ENTRIES;
+    }
+  };
+  private final Alarm mySaveAlarm = new Alarm(Alarm.ThreadToUse.POOLED_THREAD, this);
+  private volatile boolean myLoaded;
+  private volatile boolean myDirty;
+
+  public static LibraryManifestIndex getInstance() {
+    return ServiceManager.getService(LibraryManifestIndex.class);
+  }
+
+  public LibraryManifestIndex() {
+    myIndexFile = new File(ContainerPathManager.get().getSystemPath() + File.separator + "osmorc" + File.separator + "library-manifests.dat");
+  }
+
+  /**
+   * Returns the manifest of the given jar. The jar is only read if it is not indexed yet or was modified since it was indexed.
+   *
+   * @param jarFile the jar file
+   * @return the manifest, or null if the jar has no manifest or could not be read.
+   */
+  @Nullable
+  public IndexedBundleManifestImpl getManifest(@Nonnull File jarFile) {
+    ensureLoaded();
+
+    String path = jarFile.getPath();
+    long length = jarFile.length();
+    long timeStamp = jarFile.lastModified();
+    Entry entry;
+    synchronized (myEntries) {
+      entry = myEntries.get(path);
+    }
+    if (entry != null && entry.myLength == length && entry.myTimeStamp == timeStamp) {
+      return entry.myManifest;
+    }
+
+    entry = new Entry(length, timeStamp, readManifest(jarFile, timeStamp));
+    synchronized (myEntries) {
+      myEntries.put(path, entry);
+    }
+    myDirty = true;
+    scheduleSave();
+    return entry.myManifest;
+  }
+
+  private void scheduleSave() {
+    if (mySaveAlarm.isDisposed()) {
+      return;
+    }
+    mySaveAlarm.cancelAllRequests();
+    mySaveAlarm.addRequest(new Runnable() {
+      @Override
+      public void run() {
+        saveIfDirty();
+      }
+    }, SAVE_DELAY);
+  }
+
+  @Nullable
+  private static IndexedBundleManifestImpl readManifest(@Nonnull File jarFile, long timeStamp) {
+    if (!jarFile.isFile()) {
+      return null;
+    }
+    JarFile jar = null;
+    try {
+      jar = new JarFile(jarFile, false);
+      Manifest manifest = jar.getManifest();
+      return manifest == null ? null : IndexedBundleManifestImpl.create(manifest, timeStamp);
+    }
+    catch (IOException e) {
+      LOG.debug("Could not read manifest of " + jarFile, e);
+      return null;
+    }
+    finally {
+      if (jar != null) {
+        try {
+          jar.close();
+        }
+        catch (IOException ignore) {
+        }
+      }
+    }
+  }
+
+  private void ensureLoaded() {
+    if (myLoaded) {
+      return;
+    }
+    synchronized (this) {
+      if (myLoaded) {
+        return;
+      }
+      if (myIndexFile.isFile()) {
+        try {
+          load();
+        }
+        catch (IOException e) {
+          LOG.info("Could not load library manifest index, it will be rebuilt", e);
+          synchronized (myEntries) {
+            myEntries.clear();
+          }
+        }
+      }
+      myLoaded = true;
+    }
+  }
+
+  private void load() throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(myIndexFile)));
+    try {
+      if (in.readInt() != FORMAT_VERSION) {
+        return;
+      }
+      int size = in.readInt();
+      for (int i = 0; i < size; i++) {
+        String path = in.readUTF();
+        long length = in.readLong();
+        long timeStamp = in.readLong();
+        IndexedBundleManifestImpl manifest = in.readBoolean() ? IndexedBundleManifestImpl.read(in) : null;
+        synchronized (myEntries) {
+          myEntries.put(path, new Entry(length, timeStamp, manifest));
+        }
+      }
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  private synchronized void save() throws IOException {
+    File parent = myIndexFile.getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Could not create " + parent);
+    }
+
+    // cleared before taking the snapshot, so changes made while saving are saved the next time
+    myDirty = false;
+    List<Map.Entry<String, Entry>> snapshot;
+    synchronized (myEntries) {
+      snapshot = new ArrayList<Map.Entry<String, Entry>>(myEntries.entrySet());
+    }
+
+    // entries are serialized one by one, so a single entry which cannot be written (e.g. a huge header) does not break the index.
+    ByteArrayOutputStream entries = new ByteArrayOutputStream();
+    int size = 0;
+    for (Map.Entry<String, Entry> mapEntry : snapshot) {
+      if (!new File(mapEntry.getKey()).exists()) {
+        continue; // the jar is gone, forget about it.
+      }
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream entryOut = new DataOutputStream(bytes);
+      try {
+        Entry entry = mapEntry.getValue();
+        entryOut.writeUTF(mapEntry.getKey());
+        entryOut.writeLong(entry.myLength);
+        entryOut.writeLong(entry.myTimeStamp);
+        entryOut.writeBoolean(entry.myManifest != null);
+        if (entry.myManifest != null) {
+          entry.myManifest.write(entryOut);
+        }
+        entryOut.flush();
+      }
+      catch (UTFDataFormatException ignore) {
+        continue;
+      }
+      bytes.writeTo(entries);
+      size++;
+    }
+
+    File tempFile = new File(parent, myIndexFile.getName() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+    try {
+      out.writeInt(FORMAT_VERSION);
+      out.writeInt(size);
+      entries.writeTo(out);
+    }
+    finally {
+      out.close();
+    }
+    if (myIndexFile.exists() && !myIndexFile.delete() || !tempFile.renameTo(myIndexFile)) {
+      throw new IOException("Could not replace " + myIndexFile);
+    }
+  }
+
+  private void saveIfDirty() {
+    if (!myDirty) {
+      return;
+    }
+    try {
+      save();
+    }
+    catch (IOException e) {
+      myDirty = true;
+      LOG.info("Could not save library manifest index", e);
+    }
+  }
+
+  @Override
+  public void dispose() {
+    saveIfDirty();
+  }
+
+  private static final class Entry {
+    private final long myLength;
+    private final long myTimeStamp;
+    @Nullable private final IndexedBundleManifestImpl myManifest;
+
+    private Entry(long length, long timeStamp, @Nullable IndexedBundleManifestImpl manifest) {
+      myLength = length;
+      myTimeStamp = timeStamp;
+      myManifest = manifest;
+    }
+  }
+}